@@ -0,0 +1,326 @@
+import java.io.*; // 导入用于输入输出的类
+import java.lang.management.GarbageCollectorMXBean; // 导入垃圾回收器管理接口
+import java.lang.management.ManagementFactory; // 导入管理工厂类
+import java.util.ArrayList; // 导入数组列表类
+import java.util.Arrays; // 导入数组工具类
+import java.util.List; // 导入列表接口
+import java.util.Locale; // 导入区域设置类
+import java.util.regex.Pattern; // 导入正则表达式类
+
+// 基准测试的运行器
+// 每个基准在单独的 JVM 中运行（--forks 份），先预热若干轮，再测量若干轮，每轮固定时长。
+// 每轮记录操作次数、耗时、本线程分配的字节数和 GC 次数，汇总为吞吐量、平均时间、每次操作的分配字节数
+// 和分配速率，误差为 99.9% 置信区间的半宽。用法见 README 或 bench/run.sh --help。
+public class Bench {
+    // 一个基准的运行环境：构造时准备数据，op 为被测的一次操作
+    abstract static class Fixture implements AutoCloseable {
+        abstract Object op() throws Exception;
+
+        @Override
+        public void close() throws IOException {
+        }
+    }
+
+    interface Setup {
+        Fixture create(int param) throws Exception;
+    }
+
+    // 一个基准：名称、参数名和各参数值，每个参数值单独运行一次
+    static final class Benchmark {
+        final String name;
+        final String paramName;
+        final int[] params;
+        final Setup setup;
+
+        Benchmark(String name, String paramName, int[] params, Setup setup) {
+            this.name = name;
+            this.paramName = paramName;
+            this.params = params;
+            this.setup = setup;
+        }
+    }
+
+    // 一轮测量的结果
+    static final class Sample {
+        final long ops; // 操作次数
+        final long nanos; // 耗时
+        final long allocated; // 本线程分配的字节数
+        final long gcCount; // 期间的 GC 次数
+
+        Sample(long ops, long nanos, long allocated, long gcCount) {
+            this.ops = ops;
+            this.nanos = nanos;
+            this.allocated = allocated;
+            this.gcCount = gcCount;
+        }
+
+        String encode() {
+            return ops + " " + nanos + " " + allocated + " " + gcCount;
+        }
+
+        static Sample decode(String line) {
+            String[] p = line.trim().split(" ");
+            return new Sample(Long.parseLong(p[0]), Long.parseLong(p[1]), Long.parseLong(p[2]), Long.parseLong(p[3]));
+        }
+    }
+
+    private static final String RESULT = "#sample "; // 子进程输出测量结果的行前缀
+    private static final Object SENTINEL = new Object(); // 与操作结果比较，防止结果被优化掉
+    private static long sinkHits = 0;
+
+    static List<Benchmark> all() {
+        List<Benchmark> list = new ArrayList<>();
+        list.addAll(ProtocolBench.benchmarks());
+        list.addAll(ServerBench.benchmarks());
+        list.addAll(ClientBench.benchmarks());
+        return list;
+    }
+
+    // 运行一个基准的一个参数：返回测量轮的结果
+    static List<Sample> runInProcess(Benchmark b, int param, int warmups, int iterations, long millis)
+            throws Exception {
+        List<Sample> samples = new ArrayList<>();
+        try (Fixture fixture = b.setup.create(param)) {
+            long batch = calibrate(fixture);
+            for (int i = 0; i < warmups + iterations; i++) {
+                Sample s = iteration(fixture, batch, millis);
+                if (i >= warmups) {
+                    samples.add(s);
+                }
+            }
+        }
+        return samples;
+    }
+
+    // 估计约 1 毫秒的操作次数，之后按批运行，批内不读时钟
+    private static long calibrate(Fixture fixture) throws Exception {
+        long batch = 1;
+        while (true) {
+            long start = System.nanoTime();
+            for (long i = 0; i < batch; i++) {
+                consume(fixture.op());
+            }
+            long elapsed = System.nanoTime() - start;
+            if (elapsed > 1_000_000 || batch >= 1 << 20) {
+                return Math.max(1, batch * 1_000_000 / Math.max(1, elapsed));
+            }
+            batch *= 2;
+        }
+    }
+
+    private static Sample iteration(Fixture fixture, long batch, long millis) throws Exception {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long gcBefore = gcCount();
+        long allocBefore = threads.getCurrentThreadAllocatedBytes();
+        long start = System.nanoTime();
+        long deadline = start + millis * 1_000_000;
+        long ops = 0;
+        long now;
+        do {
+            for (long i = 0; i < batch; i++) {
+                consume(fixture.op());
+            }
+            ops += batch;
+            now = System.nanoTime();
+        } while (now < deadline);
+        long allocated = threads.getCurrentThreadAllocatedBytes() - allocBefore;
+        return new Sample(ops, now - start, allocated, gcCount() - gcBefore);
+    }
+
+    private static void consume(Object result) {
+        if (result == SENTINEL) {
+            sinkHits++;
+        }
+    }
+
+    private static long gcCount() {
+        long count = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            count += Math.max(0, gc.getCollectionCount());
+        }
+        return count;
+    }
+
+    // 在新的 JVM 中运行，沿用当前的类路径和 JVM 参数
+    private static List<Sample> runForked(Benchmark b, int param, int warmups, int iterations, long millis)
+            throws IOException, InterruptedException {
+        List<String> cmd = new ArrayList<>();
+        cmd.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+        cmd.addAll(ManagementFactory.getRuntimeMXBean().getInputArguments());
+        cmd.add("-cp");
+        cmd.add(System.getProperty("java.class.path"));
+        cmd.add("Bench");
+        cmd.add("--child");
+        cmd.add(b.name);
+        cmd.add(String.valueOf(param));
+        cmd.add(String.valueOf(warmups));
+        cmd.add(String.valueOf(iterations));
+        cmd.add(String.valueOf(millis));
+        Process process = new ProcessBuilder(cmd).redirectError(ProcessBuilder.Redirect.INHERIT).start();
+        List<Sample> samples = new ArrayList<>();
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(process.getInputStream()))) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (line.startsWith(RESULT)) {
+                    samples.add(Sample.decode(line.substring(RESULT.length())));
+                } else {
+                    System.out.println(line);
+                }
+            }
+        }
+        if (process.waitFor() != 0) {
+            throw new IOException(b.name + " 子进程退出码 " + process.exitValue());
+        }
+        return samples;
+    }
+
+    // 99.9% 置信区间的 t 分布分位数，自由度 1~10，更大时取近似值
+    private static final double[] T_999 = {636.62, 31.60, 12.92, 8.61, 6.87, 5.96, 5.41, 5.04, 4.78, 4.59};
+
+    private static double t999(int df) {
+        if (df <= 0) {
+            return Double.NaN;
+        }
+        if (df <= T_999.length) {
+            return T_999[df - 1];
+        }
+        return df <= 15 ? 4.07 : df <= 20 ? 3.85 : df <= 30 ? 3.65 : 3.29;
+    }
+
+    // 一组数的平均值和置信区间半宽
+    private static double[] meanAndError(double[] values) {
+        double sum = 0;
+        for (double v : values) {
+            sum += v;
+        }
+        double mean = sum / values.length;
+        double sq = 0;
+        for (double v : values) {
+            sq += (v - mean) * (v - mean);
+        }
+        double error = values.length > 1
+                ? t999(values.length - 1) * Math.sqrt(sq / (values.length - 1)) / Math.sqrt(values.length)
+                : Double.NaN;
+        return new double[] {mean, error};
+    }
+
+    private static String score(double[] s, String format) {
+        return String.format(Locale.ROOT, format, s[0])
+                + (Double.isNaN(s[1]) ? "" : " ± " + String.format(Locale.ROOT, format, s[1]));
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length > 0 && args[0].equals("--child")) {
+            Benchmark b = find(args[1]);
+            for (Sample s : runInProcess(b, Integer.parseInt(args[2]), Integer.parseInt(args[3]),
+                    Integer.parseInt(args[4]), Long.parseLong(args[5]))) {
+                System.out.println(RESULT + s.encode());
+            }
+            System.exit(0); // 被测代码可能留下非守护线程
+        }
+
+        int warmups = 3;
+        int iterations = 5;
+        long millis = 1000;
+        int forks = 1;
+        String csv = null;
+        Pattern filter = Pattern.compile(".*");
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--warmup":
+                    warmups = Integer.parseInt(args[++i]);
+                    break;
+                case "--iterations":
+                    iterations = Integer.parseInt(args[++i]);
+                    break;
+                case "--time":
+                    millis = Long.parseLong(args[++i]);
+                    break;
+                case "--forks":
+                    forks = Integer.parseInt(args[++i]);
+                    break;
+                case "--csv":
+                    csv = args[++i];
+                    break;
+                case "--list":
+                    for (Benchmark b : all()) {
+                        System.out.println(b.name + (b.paramName.isEmpty() ? "" : "  " + b.paramName + "="
+                                + Arrays.toString(b.params)));
+                    }
+                    return;
+                case "--help":
+                    System.out.println("用法: bench/run.sh [--warmup 3] [--iterations 5] [--time 毫秒] [--forks 1]"
+                            + " [--csv 文件] [--list] [名称正则]");
+                    System.out.println("--forks 0 在当前 JVM 中运行，只用于调试");
+                    return;
+                default:
+                    filter = Pattern.compile(args[i]);
+            }
+        }
+
+        System.out.printf("预热 %d 轮，测量 %d 轮，每轮 %d 毫秒，%d 个进程；%s %s%n", warmups, iterations, millis, forks,
+                System.getProperty("java.vm.name"), System.getProperty("java.version"));
+        String header = String.format("%-22s %10s %26s %20s %14s %14s %8s", "基准", "参数", "吞吐量(ops/s)",
+                "平均时间(µs/op)", "分配(B/op)", "分配(MB/s)", "GC次数");
+        System.out.println(header);
+        PrintWriter out = csv == null ? null : new PrintWriter(new FileWriter(csv));
+        if (out != null) {
+            out.println("benchmark,param,ops_per_s,ops_per_s_error,us_per_op,us_per_op_error,bytes_per_op,mb_per_s,gc");
+        }
+        for (Benchmark b : all()) {
+            if (!filter.matcher(b.name).find()) {
+                continue;
+            }
+            for (int param : b.params) {
+                List<Sample> samples = new ArrayList<>();
+                for (int f = 0; f < Math.max(1, forks); f++) {
+                    samples.addAll(forks == 0
+                            ? runInProcess(b, param, warmups, iterations, millis)
+                            : runForked(b, param, warmups, iterations, millis));
+                }
+                double[] throughput = new double[samples.size()];
+                double[] average = new double[samples.size()];
+                long ops = 0;
+                long nanos = 0;
+                long allocated = 0;
+                long gc = 0;
+                for (int i = 0; i < samples.size(); i++) {
+                    Sample s = samples.get(i);
+                    throughput[i] = s.ops * 1e9 / s.nanos;
+                    average[i] = s.nanos / 1e3 / s.ops;
+                    ops += s.ops;
+                    nanos += s.nanos;
+                    allocated += s.allocated;
+                    gc += s.gcCount;
+                }
+                double[] t = meanAndError(throughput);
+                double[] a = meanAndError(average);
+                double bytesPerOp = (double) allocated / ops;
+                double mbPerSecond = allocated / 1e6 / (nanos / 1e9);
+                System.out.printf(Locale.ROOT, "%-22s %10s %26s %20s %14.1f %14.1f %8d%n", b.name,
+                        b.paramName.isEmpty() ? "" : b.paramName + "=" + param, score(t, "%.0f"), score(a, "%.3f"),
+                        bytesPerOp, mbPerSecond, gc);
+                if (out != null) {
+                    out.printf(Locale.ROOT, "%s,%d,%.1f,%.1f,%.4f,%.4f,%.1f,%.1f,%d%n", b.name, param, t[0], t[1],
+                            a[0], a[1], bytesPerOp, mbPerSecond, gc);
+                    out.flush();
+                }
+            }
+        }
+        if (out != null) {
+            out.close();
+        }
+        if (sinkHits < 0) {
+            System.out.println(sinkHits); // 不会发生，只为让结果被使用
+        }
+    }
+
+    private static Benchmark find(String name) {
+        for (Benchmark b : all()) {
+            if (b.name.equals(name)) {
+                return b;
+            }
+        }
+        throw new IllegalArgumentException("没有名为 " + name + " 的基准");
+    }
+}
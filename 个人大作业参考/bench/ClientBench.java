@@ -0,0 +1,54 @@
+import javax.imageio.ImageIO; // 导入图片读写类
+import java.awt.*; // 导入用于布局和图形处理的 AWT 库
+import java.awt.image.BufferedImage; // 导入缓冲图片类
+import java.io.*; // 导入用于输入输出的类
+import java.util.Arrays; // 导入数组工具类
+import java.util.Base64; // 导入 Base64 编解码类
+import java.util.List; // 导入列表接口
+import java.util.Random; // 导入随机数类
+
+// 客户端收图路径的基准：旧协议图片的 Base64 解码、ImageIO 解码和缩放为缩略图（原 handleReceivedMessage 的工作，
+// 现在由 ChatView 交给 ImageDecoder 在后台完成）
+class ClientBench {
+    private static final int THUMB_SIZE = 300; // 与 ChatView 的缩略图大小相同
+
+    static List<Bench.Benchmark> benchmarks() {
+        return Arrays.asList(
+                new Bench.Benchmark("clientImageDecode", "width", new int[] {640, 1600}, width -> new Bench.Fixture() {
+                    final String base64 = Base64.getEncoder().encodeToString(jpeg(width, width * 3 / 4));
+
+                    @Override
+                    Object op() throws Exception {
+                        byte[] bytes = Base64.getMimeDecoder().decode(base64);
+                        BufferedImage image = ImageIO.read(new ByteArrayInputStream(bytes));
+                        double scale = Math.min(1.0, Math.min((double) THUMB_SIZE / image.getWidth(),
+                                (double) THUMB_SIZE / image.getHeight()));
+                        return ImageDecoder.scale(image, Math.max(1, (int) (image.getWidth() * scale)),
+                                Math.max(1, (int) (image.getHeight() * scale)));
+                    }
+                }));
+    }
+
+    // 带渐变和噪点的照片式 JPEG，压缩率接近真实照片
+    static byte[] jpeg(int width, int height) throws IOException {
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = image.createGraphics();
+        g.setPaint(new GradientPaint(0, 0, new Color(40, 90, 160), width, height, new Color(230, 180, 90)));
+        g.fillRect(0, 0, width, height);
+        g.dispose();
+        Random random = new Random(width);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int rgb = image.getRGB(x, y);
+                int noise = random.nextInt(17) - 8;
+                int r = Math.max(0, Math.min(255, ((rgb >> 16) & 0xFF) + noise));
+                int gr = Math.max(0, Math.min(255, ((rgb >> 8) & 0xFF) + noise));
+                int b = Math.max(0, Math.min(255, (rgb & 0xFF) + noise));
+                image.setRGB(x, y, (r << 16) | (gr << 8) | b);
+            }
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ImageIO.write(image, "jpeg", out);
+        return out.toByteArray();
+    }
+}
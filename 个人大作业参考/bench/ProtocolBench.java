@@ -0,0 +1,47 @@
+import java.nio.ByteBuffer; // 导入字节缓冲区类
+import java.util.Arrays; // 导入数组工具类
+import java.util.List; // 导入列表接口
+import java.util.Random; // 导入随机数类
+
+// 协议编解码的基准：图片的旧协议分块和帧协议编码，以及帧的解码
+class ProtocolBench {
+    private static final int[] IMAGE_KB = {16, 256}; // 图片大小，单位 KB
+
+    static List<Bench.Benchmark> benchmarks() {
+        return Arrays.asList(
+                // 旧协议图片：Base64 编码后按 8KB 分块（原 sendImageData 的工作），每次都是新消息，不命中缓存
+                new Bench.Benchmark("legacyImageEncode", "kb", IMAGE_KB, kb -> new Bench.Fixture() {
+                    final ByteBuffer image = randomImage(kb);
+
+                    @Override
+                    Object op() throws Exception {
+                        return Packet.image("[bench]：", "bench", image).encode(false);
+                    }
+                }),
+                // 帧协议图片：原始字节整帧发送
+                new Bench.Benchmark("framedImageEncode", "kb", IMAGE_KB, kb -> new Bench.Fixture() {
+                    final ByteBuffer image = randomImage(kb);
+
+                    @Override
+                    Object op() throws Exception {
+                        return Packet.image("[bench]：", "bench", image).encode(true);
+                    }
+                }),
+                // 帧的解码，NIO 事件循环和客户端收到每一帧都要经过
+                new Bench.Benchmark("frameDecode", "kb", IMAGE_KB, kb -> new Bench.Fixture() {
+                    final byte[] encoded = Frame.encode(Frame.IMAGE, (byte) 0, randomImage(kb), "bench");
+
+                    @Override
+                    Object op() throws Exception {
+                        return Frame.decode(ByteBuffer.wrap(encoded));
+                    }
+                }));
+    }
+
+    // 随机内容的“图片”，编码路径不解析图片格式
+    static ByteBuffer randomImage(int kb) {
+        byte[] data = new byte[kb * 1024];
+        new Random(kb).nextBytes(data);
+        return ByteBuffer.wrap(data);
+    }
+}
@@ -0,0 +1,166 @@
+import java.io.*; // 导入用于输入输出的类
+import java.util.ArrayList; // 导入数组列表类
+import java.util.Arrays; // 导入数组工具类
+import java.util.Base64; // 导入 Base64 编解码类
+import java.util.List; // 导入列表接口
+
+// 服务器转发路径的基准：在 ChatServer 中登录若干个连接，连接的传输层只放进发送队列再立即取出，
+// 相当于写线程总能跟上，测得的是服务器自身的处理开销，不含网络
+class ServerBench {
+    private static final int[] RECIPIENTS = {10, 100, 1000}; // 在线人数
+    private static final String TEXT = "今天晚上的实验报告大家写完了吗？明天中午之前要交。";
+
+    static List<Bench.Benchmark> benchmarks() {
+        return Arrays.asList(
+                // 广播扇出（原 broadcast）：一次编码，逐个放进接收者的发送队列
+                new Bench.Benchmark("broadcast", "users", RECIPIENTS, n -> new Room(n) {
+                    @Override
+                    Object op() {
+                        sender().broadcast(TEXT);
+                        return null;
+                    }
+                }),
+                // 完整的公共消息：记录日志和消息记录，再广播
+                new Bench.Benchmark("publicMessage", "users", RECIPIENTS, n -> new Room(n) {
+                    @Override
+                    Object op() throws Exception {
+                        return sender().onMessage(TEXT);
+                    }
+                }),
+                // 房间内的公共消息：前 10 人在同一个房间，开销应与在线总人数无关
+                new Bench.Benchmark("roomMessage", "users", RECIPIENTS, n -> new Room(n) {
+                    {
+                        for (int i = 0; i < 10; i++) {
+                            clients.get(i).onMessage("@@join bench");
+                        }
+                    }
+
+                    @Override
+                    Object op() throws Exception {
+                        return sender().onMessage(TEXT);
+                    }
+                }),
+                // 私聊（原 handlePrivateMessage）：按用户名查找接收者，接收者轮流变化
+                new Bench.Benchmark("privateMessage", "users", RECIPIENTS, n -> new Room(n) {
+                    final String[] messages = new String[n];
+                    int next = 0;
+
+                    {
+                        for (int i = 0; i < n; i++) {
+                            messages[i] = "@bench" + i + "：" + TEXT;
+                        }
+                    }
+
+                    @Override
+                    Object op() throws Exception {
+                        String message = messages[next];
+                        next = next + 1 == messages.length ? 0 : next + 1;
+                        return sender().onMessage(message);
+                    }
+                }),
+                // 旧协议的图片上传（原 handleImageChunks）：收齐分块、Base64 解码、计算摘要，再私聊转发给一个人
+                new Bench.Benchmark("legacyImageUpload", "kb", new int[] {16, 256}, kb -> new Room(2) {
+                    final String[] chunks = legacyChunks("@bench1：", kb);
+
+                    @Override
+                    Object op() throws Exception {
+                        for (String chunk : chunks) {
+                            sender().onMessage(chunk);
+                        }
+                        return null;
+                    }
+                }),
+                // 日志追加（原 logToFile）：调用方只把一行放进队列，由写线程落盘
+                new Bench.Benchmark("journalAppend", "", new int[] {0}, p -> new Bench.Fixture() {
+                    final Journal journal = new Journal("bench-journal.txt");
+
+                    @Override
+                    Object op() {
+                        journal.append(Journal.now() + " 登录成功: 用户[bench0], IP地址: 127.0.0.1"
+                                + System.lineSeparator());
+                        return null;
+                    }
+
+                    @Override
+                    public void close() {
+                        journal.close();
+                        if (journal.dropped() > 0) {
+                            System.err.println("journalAppend: 写线程跟不上，丢弃 " + journal.dropped() + " 行");
+                        }
+                    }
+                }));
+    }
+
+    // 与 Client 相同的旧协议图片分块：[IMG_START]块数、每块 60000 字符、[IMG_END]
+    static String[] legacyChunks(String prefix, int kb) {
+        String message = prefix + "[IMG]bench0|"
+                + Base64.getEncoder().encodeToString(ProtocolBench.randomImage(kb).array());
+        int chunkSize = 60000;
+        int count = (message.length() + chunkSize - 1) / chunkSize;
+        String[] chunks = new String[count + 2];
+        chunks[0] = "[IMG_START]" + count;
+        for (int i = 0; i < count; i++) {
+            chunks[i + 1] = message.substring(i * chunkSize, Math.min((i + 1) * chunkSize, message.length()));
+        }
+        chunks[count + 1] = "[IMG_END]";
+        return chunks;
+    }
+
+    // 一个已登录 n 个用户（bench0 ~ bench{n-1}）的服务器，bench0 为发送者
+    abstract static class Room extends Bench.Fixture {
+        final ChatServer server = new ChatServer(ChatServer.Events.QUIET);
+        final List<ChatServer.HandleClient> clients = new ArrayList<>();
+
+        Room(int n) throws IOException {
+            for (int i = 0; i < n; i++) {
+                ChatServer.HandleClient c = server.new HandleClient(new NullTransport());
+                c.onMessage("REGISTER:bench" + i + ",bench"); // 上次运行已注册时失败，不影响登录
+                c.onMessage("bench" + i + ",bench");
+                clients.add(c);
+            }
+        }
+
+        ChatServer.HandleClient sender() {
+            return clients.get(0);
+        }
+
+        @Override
+        public void close() {
+            server.close();
+        }
+    }
+
+    // 放进发送队列后立即取出的传输层
+    static final class NullTransport implements ChatServer.Transport {
+        private final OutboundQueue queue = new OutboundQueue();
+        long bytes = 0; // 写出的总字节数
+
+        @Override
+        public void write(byte[] data, boolean bulk) {
+            queue.offer(data, bulk);
+            byte[] sent = queue.poll();
+            if (sent != null) {
+                bytes += sent.length;
+            }
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+
+        @Override
+        public String remoteAddress() {
+            return "127.0.0.1";
+        }
+
+        @Override
+        public OutboundQueue queue() {
+            return queue;
+        }
+    }
+}
@@ -0,0 +1,10 @@
+#!/bin/sh
+# 编译源代码和基准测试并运行，参数原样传给 Bench，例如：bench/run.sh broadcast --forks 2
+# 在临时目录中运行，基准创建的用户、日志和消息记录不会写进项目目录
+set -e
+root=$(cd "$(dirname "$0")/.." && pwd)
+work=$(mktemp -d)
+trap 'rm -rf "$work"' EXIT
+javac -encoding UTF-8 -d "$work/classes" "$root"/src/*.java "$root"/bench/*.java
+cd "$work"
+java -Djava.awt.headless=true -Xms1g -Xmx1g -cp "$work/classes" Bench "$@"
@@ -0,0 +1,342 @@
+import java.io.*; // 导入用于输入输出的类
+import java.nio.ByteBuffer; // 导入字节缓冲区类
+import java.nio.file.*; // 导入文件路径相关类
+import java.security.MessageDigest; // 导入摘要算法类
+import java.security.NoSuchAlgorithmException; // 导入算法不存在异常
+import java.util.ArrayList; // 导入数组列表类
+import java.util.Iterator; // 导入迭代器接口
+import java.util.LinkedHashMap; // 导入按顺序排列的哈希表
+import java.util.List; // 导入列表接口
+import java.util.Map; // 导入地图接口
+import java.util.concurrent.ConcurrentHashMap; // 导入并发哈希表
+import java.util.concurrent.ExecutorService; // 导入线程池接口
+import java.util.concurrent.Executors; // 导入线程池工厂类
+import java.util.concurrent.atomic.AtomicLong; // 导入原子长整数类
+import java.util.concurrent.locks.ReentrantLock; // 导入可重入锁类
+import java.util.function.Consumer; // 导入消费者接口
+
+// 按内容寻址的图片存储
+// 每张图片以其 SHA-256 摘要（十六进制）为文件名保存在一个目录中，相同的图片只保存一份。
+// 总大小超过上限时删除最久未被访问的图片。服务器用它保存收到的图片，客户端用它做本地磁盘缓存。
+// 写文件在后台线程进行，写完之前的图片留在内存中，调用 put 的线程（例如 NIO 的 I/O 线程）不会等待磁盘。
+class BlobStore {
+    private final Path dir; // 存储目录
+    private final long maxBytes; // 总大小上限
+    private final ReentrantLock lock = new ReentrantLock(); // 保护索引的锁
+    private final LinkedHashMap<String, Long> index = new LinkedHashMap<>(16, 0.75f, true); // 摘要 → 大小，按访问顺序
+    private final Map<String, byte[]> unwritten = new ConcurrentHashMap<>(); // 尚未写入磁盘的图片
+    private final ExecutorService writer; // 写文件的后台线程
+    private long totalBytes = 0; // 已保存的总字节数
+
+    BlobStore(Path dir, long maxBytes) throws IOException {
+        this.dir = dir;
+        this.maxBytes = maxBytes;
+        Files.createDirectories(dir);
+        this.writer = Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "blob-writer");
+            t.setDaemon(true);
+            return t;
+        });
+        load();
+    }
+
+    // 扫描目录重建索引，按最后修改时间排列，最旧的最先淘汰
+    private void load() throws IOException {
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+            for (Path p : stream) {
+                if (isHash(p.getFileName().toString())) {
+                    files.add(p);
+                } else if (p.getFileName().toString().endsWith(".tmp")) {
+                    Files.deleteIfExists(p); // 上次未写完的临时文件
+                }
+            }
+        }
+        files.sort((a, b) -> {
+            try {
+                return Files.getLastModifiedTime(a).compareTo(Files.getLastModifiedTime(b));
+            } catch (IOException e) {
+                return 0;
+            }
+        });
+        for (Path p : files) {
+            long size = Files.size(p);
+            index.put(p.getFileName().toString(), size);
+            totalBytes += size;
+        }
+        lock.lock();
+        try {
+            evict(null);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // 计算数据的 SHA-256 摘要，返回十六进制字符串
+    static String hash(ByteBuffer data) {
+        MessageDigest md = newDigest();
+        md.update(data.duplicate());
+        return hex(md.digest());
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e); // 所有 JDK 都提供 SHA-256
+        }
+    }
+
+    private static String hex(byte[] digest) {
+        StringBuilder sb = new StringBuilder(64);
+        for (byte b : digest) {
+            sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return sb.toString();
+    }
+
+    static String hash(byte[] data) {
+        return hash(ByteBuffer.wrap(data));
+    }
+
+    // 摘要格式检查，防止客户端用 "../" 之类的名字访问目录外的文件
+    static boolean isHash(String hash) {
+        if (hash.length() != 64) {
+            return false;
+        }
+        for (int i = 0; i < hash.length(); i++) {
+            char c = hash.charAt(i);
+            if ((c < '0' || c > '9') && (c < 'a' || c > 'f')) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    boolean contains(String hash) {
+        lock.lock();
+        try {
+            return index.get(hash) != null; // get 同时更新访问顺序
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // 保存一张图片，已存在时只更新访问顺序；data 会被复制，可以是帧负载的一部分
+    void put(String hash, ByteBuffer data) {
+        if (isHash(hash) && !contains(hash)) {
+            byte[] bytes = new byte[data.remaining()];
+            data.duplicate().get(bytes);
+            put(hash, bytes);
+        }
+    }
+
+    // 保存一张图片，bytes 不会被复制，调用方之后不能再修改
+    void put(String hash, byte[] bytes) {
+        if (!isHash(hash)) {
+            return;
+        }
+        lock.lock();
+        try {
+            if (index.get(hash) != null) {
+                return;
+            }
+            index.put(hash, (long) bytes.length);
+            totalBytes += bytes.length;
+            unwritten.put(hash, bytes);
+            evict(hash);
+            writer.execute(() -> write(hash, bytes));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void write(String hash, byte[] bytes) {
+        try {
+            Path tmp = Files.createTempFile(dir, hash, ".tmp"); // 多个进程共用目录时临时文件名也不冲突
+            Files.write(tmp, bytes);
+            Files.move(tmp, dir.resolve(hash), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            System.err.println("保存图片失败: " + e.getMessage());
+            remove(hash);
+        } finally {
+            unwritten.remove(hash);
+        }
+    }
+
+    // 开始边接收边保存一张图片，摘要在收完后才知道
+    Upload upload() {
+        return new Upload();
+    }
+
+    // 边接收边保存的一张图片：摘要随数据计算，写文件在后台线程进行，内存中只有尚未写出的分片。
+    // write、finish、abort 只由接收该图片的线程调用，文件操作都在写线程上按顺序执行。
+    // 调用方用 queued 限制尚未写出的字节数，用 afterWrites 在已交给写线程的数据写完后再接收更多数据
+    final class Upload {
+        private final MessageDigest md = newDigest();
+        private long size = 0; // 已收到的字节数
+        private final AtomicLong queued = new AtomicLong(); // 已交给写线程但尚未写出的字节数
+        private Path tmp; // 临时文件，以下字段只在写线程上访问
+        private OutputStream out; // 临时文件的输出流
+        private boolean failed = false; // 写文件出错，之后的数据不再写入
+
+        // 追加一段数据，data 不会被复制，调用方之后不能再修改
+        void write(byte[] data, int offset, int length) {
+            md.update(data, offset, length);
+            size += length;
+            queued.addAndGet(length);
+            writer.execute(() -> {
+                append(data, offset, length);
+                queued.addAndGet(-length);
+            });
+        }
+
+        // 尚未写出的字节数
+        long queued() {
+            return queued.get();
+        }
+
+        // 在写线程上于此前交给它的数据写完后执行 task
+        void afterWrites(Runnable task) {
+            writer.execute(task);
+        }
+
+        // 收完了，返回图片的摘要；文件写完后才加入索引，此前 contains 返回 false。
+        // done 不为 null 时在写线程上于加入索引后调用（保存失败时 get 返回 null）
+        String finish(Consumer<String> done) {
+            String hash = hex(md.digest());
+            long n = size;
+            writer.execute(() -> {
+                commit(hash, n);
+                if (done != null) {
+                    done.accept(hash);
+                }
+            });
+            return hash;
+        }
+
+        // 上传被取消，删除临时文件
+        void abort() {
+            writer.execute(this::discard);
+        }
+
+        private void append(byte[] data, int offset, int length) {
+            if (failed) {
+                return;
+            }
+            try {
+                if (out == null) {
+                    tmp = Files.createTempFile(dir, "upload", ".tmp");
+                    out = new BufferedOutputStream(Files.newOutputStream(tmp), 64 * 1024);
+                }
+                out.write(data, offset, length);
+            } catch (IOException e) {
+                System.err.println("保存图片失败: " + e.getMessage());
+                discard();
+                failed = true;
+            }
+        }
+
+        private void commit(String hash, long n) {
+            append(new byte[0], 0, 0); // 空图片也要有文件
+            if (failed) {
+                return;
+            }
+            try {
+                out.close();
+                out = null;
+                lock.lock();
+                try {
+                    if (index.get(hash) != null) {
+                        Files.deleteIfExists(tmp); // 已保存过同一张图片
+                        return;
+                    }
+                    Files.move(tmp, dir.resolve(hash), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                    index.put(hash, n);
+                    totalBytes += n;
+                    evict(hash);
+                } finally {
+                    lock.unlock();
+                }
+            } catch (IOException e) {
+                System.err.println("保存图片失败: " + e.getMessage());
+                discard();
+            }
+        }
+
+        private void discard() {
+            try {
+                if (out != null) {
+                    out.close();
+                }
+                if (tmp != null) {
+                    Files.deleteIfExists(tmp);
+                }
+            } catch (IOException e) {
+                e.printStackTrace(); // 打印异常信息
+            } finally {
+                out = null;
+                tmp = null;
+            }
+        }
+    }
+
+    // 读取一张图片，不存在时返回 null
+    byte[] get(String hash) {
+        if (!isHash(hash) || !contains(hash)) {
+            return null;
+        }
+        byte[] bytes = unwritten.get(hash);
+        if (bytes != null) {
+            return bytes;
+        }
+        try {
+            return Files.readAllBytes(dir.resolve(hash));
+        } catch (IOException e) {
+            remove(hash); // 文件已被删除
+            bytes = unwritten.get(hash); // 读取期间可能刚好被重新写入
+            return bytes;
+        }
+    }
+
+    private void remove(String hash) {
+        lock.lock();
+        try {
+            Long size = index.remove(hash);
+            if (size != null) {
+                totalBytes -= size;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // 超过上限时按访问顺序删除最旧的图片，keep 为刚放入的不删（调用时持有锁）
+    private void evict(String keep) {
+        Iterator<Map.Entry<String, Long>> it = index.entrySet().iterator();
+        while (totalBytes > maxBytes && it.hasNext()) {
+            Map.Entry<String, Long> eldest = it.next();
+            String hash = eldest.getKey();
+            if (hash.equals(keep) || unwritten.containsKey(hash)) {
+                continue;
+            }
+            totalBytes -= eldest.getValue();
+            it.remove();
+            try {
+                Files.deleteIfExists(dir.resolve(hash));
+            } catch (IOException e) {
+                e.printStackTrace(); // 打印异常信息
+            }
+        }
+    }
+
+    // 图片数量和总字节数，用于控制台显示
+    String stats() {
+        lock.lock();
+        try {
+            return index.size() + " 张 / " + totalBytes + " 字节";
+        } finally {
+            lock.unlock();
+        }
+    }
+}
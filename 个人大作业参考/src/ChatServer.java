@@ -0,0 +1,1894 @@
+import java.io.*; // 导入用于输入输出的类
+import java.net.ServerSocket; // 导入服务器套接字类
+import java.net.Socket; // 导入客户端套接字类
+import java.nio.ByteBuffer; // 导入字节缓冲区类
+import java.nio.file.Paths; // 导入路径工具类
+//import java.net.SocketException; // 导入套接字异常类
+import java.time.Instant; // 导入时间点类
+import java.time.ZoneId; // 导入时区类
+import java.time.format.DateTimeFormatter; // 导入日期时间格式化类
+import java.util.ArrayList; // 导入数组列表类
+import java.util.Base64; // 导入 Base64 编解码类
+import java.util.HashMap; // 导入哈希表类
+import java.util.Iterator; // 导入迭代器接口
+import java.util.List; // 导入列表接口
+import java.util.Map; // 导入地图接口
+import java.util.Set; // 导入集合接口
+import java.util.concurrent.ConcurrentHashMap; // 导入并发哈希表
+import java.util.concurrent.Executor; // 导入任务执行器接口
+import java.util.concurrent.ExecutorService; // 导入线程池接口
+import java.util.concurrent.Executors; // 导入线程池工厂类
+import java.util.concurrent.ScheduledExecutorService; // 导入定时线程池接口
+import java.util.concurrent.TimeUnit; // 导入时间单位枚举
+import java.util.concurrent.locks.ReentrantLock; // 导入可重入锁类
+import java.util.function.Consumer; // 导入消费者函数接口
+import java.util.function.Supplier; // 导入提供者函数接口
+import java.util.zip.Inflater; // 导入解压器类
+
+// 聊天服务器的核心，不依赖任何界面
+// 负责监听端口、消息转发、在线用户、账号和各种持久化数据。日志和在线人数变化通过 Events 通知外部：
+// 命令行运行时打印到标准输出，Server 窗口则显示在控制台文本区域和标签上。
+public class ChatServer {
+    static final int DEFAULT_PORT = Integer.getInteger("chat.port", 8080); // 默认监听端口
+    // 服务器 I/O 模式：blocking（每连接一个平台线程，默认）、virtual（每连接一个虚拟线程）或 nio（Selector 事件循环）
+    static final String DEFAULT_IO_MODE = System.getProperty("chat.io", "blocking");
+    // NIO 模式下的 I/O 线程数
+    static final int DEFAULT_IO_THREADS = Integer.getInteger("chat.io.threads",
+            Runtime.getRuntime().availableProcessors());
+    // 图片存储目录和总大小上限，超过上限时删除最久未被访问的图片
+    private static final String BLOB_DIR = System.getProperty("chat.blobs.dir", "blobs");
+    private static final long BLOB_BYTES = Long.getLong("chat.blobs.bytes", 256L * 1024 * 1024);
+    // 消息记录目录，登录时回放的消息数，以及一次最多返回的更早消息数
+    private static final String HISTORY_DIR = System.getProperty("chat.history.dir", "history");
+    private static final int HISTORY_REPLAY = Integer.getInteger("chat.history.replay", 50);
+    private static final int HISTORY_PAGE = 200;
+    private static final long HISTORY_BYTES = 1024 * 1024;
+    private static final DateTimeFormatter HISTORY_TIME = DateTimeFormatter.ofPattern("MM-dd HH:mm");
+    // 每个用户最多同时加入的房间数
+    private static final int ROOMS_PER_USER = Integer.getInteger("chat.rooms.per.user", 32);
+
+    // 服务器事件的接收方，可能在任意线程上被调用，实现不能阻塞
+    interface Events {
+        void log(String text); // 一段日志文本，通常以换行结尾
+
+        void onlineChanged(int online); // 在线人数变化
+
+        // 丢弃所有事件，用于压测
+        Events QUIET = new Events() {
+            @Override
+            public void log(String text) {
+            }
+
+            @Override
+            public void onlineChanged(int online) {
+            }
+        };
+    }
+
+    private final int port; // 监听端口
+    private final String ioMode; // I/O 模式
+    private final int ioThreads; // NIO 模式下的 I/O 线程数
+    private final Events events; // 日志和在线人数的接收方
+    private volatile boolean isStart = false; // 是否正在运行
+    private ServerSocket serverSocket = null; 
+    private NioServer nioServer = null; // NIO 模式下的事件循环
+    private ExecutorService connectionExecutor = null; // 阻塞模式下运行接收循环和 HandleClient 的线程池
+    // 在线用户登记表：按用户名常数时间查找，广播时无锁遍历
+    private final Presence<HandleClient> presence = new Presence<>();
+    // 房间的订阅索引：公共消息只发给所在房间的成员
+    private final Rooms<HandleClient> rooms = new Rooms<>();
+    private UserStore users; // 用户账号存储：快照 users.txt + 注册日志 users.log
+    private BlobStore blobs; // 按内容寻址的图片存储，打开失败时为 null，不提供去重
+    private MessageLog history; // 公共消息记录，打开失败时为 null，不回放
+    private final Journal journal = new Journal("journal.txt"); // 日志文件写入器
+    private Cluster cluster; // 集群中其他节点的连接，未开启集群时为 null
+    // 可恢复的会话：令牌 → 会话当前所在的连接（断线保留期间为原连接）
+    private final ConcurrentHashMap<String, HandleClient> sessions = new ConcurrentHashMap<>();
+    // 会话在连接之间交接、断线保留和到期时持有，三者互斥
+    private final ReentrantLock sessionLock = new ReentrantLock();
+    // 断线后保留时间到期时结束会话
+    private final ScheduledExecutorService sessionTimer = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "session-expiry");
+        t.setDaemon(true);
+        return t;
+    });
+    // 读取更早消息的线程，读文件不占用连接的读线程或 I/O 线程
+    private final ExecutorService historyReader = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "history-reader");
+        t.setDaemon(true);
+        return t;
+    });
+    // 从图片存储读出图片的线程，读冷门图片的文件时 NIO 的 I/O 线程不会停下，同一线程上的其他连接照常收发
+    private final ExecutorService blobReader = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "blob-reader");
+        t.setDaemon(true);
+        return t;
+    });
+
+    ChatServer(Events events) {
+        this(DEFAULT_PORT, DEFAULT_IO_MODE, DEFAULT_IO_THREADS, events);
+    }
+
+    ChatServer(int port, String ioMode, int ioThreads, Events events) {
+        this.port = port;
+        this.ioMode = ioMode;
+        this.ioThreads = ioThreads;
+        this.events = events;
+        loadUsers(); // 从文件加载用户数据
+        loadBlobs(); // 打开图片存储
+        loadHistory(); // 打开消息记录
+        setCluster(Cluster.DEFAULT_NODE_ID, Cluster.DEFAULT_PORT, Cluster.DEFAULT_PEERS);
+        registerGauges();
+        Runtime.getRuntime().addShutdownHook(new Thread(this::close));
+    }
+
+    // 注册即时指标，只在查看时计算
+    private void registerGauges() {
+        Metrics.gauge("chat_online", presence::online);
+        Metrics.gauge("chat_rooms", rooms::count);
+        Metrics.gauge("chat_queued_messages", () -> {
+            long total = 0;
+            for (HandleClient c : presence.members()) {
+                total += c.transport.queue().depth();
+            }
+            return total;
+        });
+        Metrics.gauge("chat_queued_bytes", () -> {
+            long total = 0;
+            for (HandleClient c : presence.members()) {
+                total += c.transport.queue().queuedBytes();
+            }
+            return total;
+        });
+        Metrics.gauge("chat_queue_max_depth", () -> {
+            long max = 0;
+            for (HandleClient c : presence.members()) {
+                max = Math.max(max, c.transport.queue().depth());
+            }
+            return max;
+        });
+        Metrics.gauge("chat_sessions", sessions::size);
+        Metrics.gauge("chat_journal_pending", journal::pending);
+        Metrics.gauge("chat_journal_dropped", journal::dropped);
+        Metrics.gauge("chat_cluster_links", () -> cluster == null ? 0 : cluster.links());
+        Metrics.gauge("chat_cluster_remote_users", () -> cluster == null ? 0 : cluster.remoteOnline());
+    }
+
+    // 设置集群参数，集群端口为 0 时不开启集群；需在 start 之前调用
+    void setCluster(String nodeId, int clusterPort, String peers) {
+        cluster = clusterPort > 0
+                ? new Cluster(this, nodeId.isEmpty() ? "node-" + port : nodeId, clusterPort, peers)
+                : null;
+    }
+
+    // 写完并关闭所有持久化数据，进程退出时自动调用
+    void close() {
+        journal.close(); // 退出时写完剩余日志
+        if (users != null) {
+            users.close(); // 写完排队的注册并保存快照
+        }
+        if (history != null) {
+            history.close(); // 写完排队的消息记录
+        }
+    }
+
+    boolean isRunning() {
+        return isStart;
+    }
+
+    int port() {
+        return port;
+    }
+
+    // 执行一条控制台命令，结果写入日志；返回 false 表示不认识该命令
+    boolean command(String command) {
+        switch (command.trim()) {
+            case "list":
+                listOnlineUsers(); // 列出在线用户
+                return true;
+            case "listall":
+                listAllUsers(); // 列出所有用户
+                return true;
+            case "queues":
+                listQueues(); // 列出每个连接的发送队列
+                return true;
+            case "blobs":
+                appendToLog("图片存储: " + (blobs == null ? "未启用" : blobs.stats()));
+                return true;
+            case "deflate":
+                appendToLog("文本压缩: " + Compression.stats());
+                return true;
+            case "rooms":
+                listRooms(); // 列出房间和人数
+                return true;
+            case "stats":
+                events.log(Metrics.report()); // 计数、速率和延迟分布
+                return true;
+            case "nodes":
+                appendToLog(cluster == null ? "未开启集群" : cluster.status().trim()); // 列出集群节点
+                return true;
+            default:
+                return false;
+        }
+    }
+
+        // 从文件加载用户数据的方法
+    private void loadUsers() {
+        try {
+            users = new UserStore("users.txt", "users.log");
+        } catch (IOException e) {
+            events.log("用户文件读取错误: " + e.getMessage() + "\n"); // 服务器不会启动，见 start()
+        }
+    }
+
+    // 打开图片存储的方法
+    private void loadBlobs() {
+        try {
+            blobs = new BlobStore(Paths.get(BLOB_DIR), BLOB_BYTES);
+        } catch (IOException e) {
+            events.log("图片存储打开失败，图片不去重: " + e.getMessage() + "\n");
+        }
+    }
+
+    // 打开消息记录的方法
+    private void loadHistory() {
+        try {
+            history = new MessageLog(Paths.get(HISTORY_DIR));
+        } catch (IOException e) {
+            events.log("消息记录打开失败，登录时不回放历史消息: " + e.getMessage() + "\n");
+        }
+    }
+
+        // 列出在线用户的方法
+    private void listOnlineUsers() {
+        StringBuilder onlineUsers = new StringBuilder("在线用户：");
+        int count = 0;
+        for (HandleClient cc : presence.members()) {
+            onlineUsers.append(cc.name).append(" ");
+            count++;
+        }
+        appendToLog(onlineUsers.toString());
+        appendToLog("当前在线人数: " + count + "人");
+        if (cluster != null) {
+            for (Map.Entry<String, Set<String>> e : cluster.remoteUsers().entrySet()) {
+                appendToLog("  " + e.getKey() + ": " + String.join(" ", e.getValue()) + "（" + e.getValue().size() + "人）");
+            }
+        }
+    }
+
+    // 列出所有用户的方法
+    private void listAllUsers() {
+        StringBuilder allUsers = new StringBuilder("全部用户：");
+        int count = 0;
+        for (String user : users.names()) {
+            allUsers.append(user).append(" ");
+            count++;
+        }
+        appendToLog(allUsers.toString());
+        appendToLog("系统总人数: " + count + "人");
+    }
+
+
+    // 列出所有房间和人数的方法
+    private void listRooms() {
+        Map<String, Integer> sizes = rooms.sizes();
+        appendToLog("房间（共 " + sizes.size() + " 个）：");
+        for (Map.Entry<String, Integer> e : sizes.entrySet()) {
+            appendToLog("  " + e.getKey() + ": " + e.getValue() + " 人");
+        }
+    }
+
+    // 列出每个在线连接的发送队列深度的方法
+    private void listQueues() {
+        appendToLog("发送队列（用户: 消息数 / 字节数 / 已丢弃）：");
+        for (HandleClient cc : presence.members()) {
+            OutboundQueue q = cc.transport.queue();
+            appendToLog("  " + cc.name + ": " + q.depth() + " / " + q.queuedBytes() + " / " + q.dropped());
+        }
+    }
+
+    // 将消息追加到日志的方法，可在任意线程调用
+    private void appendToLog(String message) {
+        events.log(message + "\n");
+    }
+
+
+    // 通知在线人数变化，接收方看到的是通知时的最新人数
+    private void updateOnlineLabel() {
+        events.onlineChanged(presence.online());
+    }
+
+    // 从在线列表中移除客户端并更新在线人数，返回是否确实移除
+    private boolean removeClient(HandleClient c) {
+        if (c.session != null) {
+            sessions.remove(c.session.token, c); // 会话随之结束
+        }
+        boolean removed = presence.remove(c.name, c);
+        for (String room : c.joined) {
+            unsubscribe(room, c); // 重复离开没有影响，并发加入房间时也不会留在房间里
+        }
+        if (!removed) {
+            return false;
+        }
+        if (cluster != null) {
+            cluster.userChanged(c.name);
+        }
+        Metrics.DISCONNECTS.increment();
+        updateOnlineLabel(); // 更新在线人数
+        return true;
+    }
+
+    // 加入房间的订阅索引，房间从无到有时通知其他节点
+    private void subscribe(String room, HandleClient c) {
+        rooms.join(room, c);
+        if (cluster != null) {
+            cluster.roomChanged(room);
+        }
+    }
+
+    // 离开房间的订阅索引，房间从有到无时通知其他节点
+    private void unsubscribe(String room, HandleClient c) {
+        rooms.leave(room, c);
+        if (cluster != null) {
+            cluster.roomChanged(room);
+        }
+    }
+
+    // 发布一条房间消息：发给本节点的房间成员，并转发给有该房间成员的其他节点；record 表示是聊天消息而非通知
+    private void publish(String room, String text, boolean record) {
+        broadcastPacket(room, Packet.text(text));
+        if (cluster != null) {
+            cluster.relayRoomText(room, text, record);
+        }
+    }
+
+    // 把同一个 Packet 写给本节点上房间的所有成员，每种协议只编码一次
+    private void broadcastPacket(String target, Packet packet) {
+        // 遍历并发集合不需要加锁也不复制列表，遍历期间的加入和离开不影响本次广播
+        ArrayList<HandleClient> toRemove = new ArrayList<>();
+        for (HandleClient c : rooms.members(target)) {
+            if (!c.transport.isOpen()) {
+                toRemove.add(c);
+                continue;
+            }
+
+            try {
+                c.sendPacket(packet);
+            } catch (UTFDataFormatException e) {
+                Metrics.SEND_FAILURES.increment(); // 旧协议放不下这条消息，只是该接收者收不到，连接仍然正常
+                System.err.println("发送消息失败: " + e.getMessage());
+            } catch (IOException e) {
+                Metrics.SEND_FAILURES.increment();
+                System.err.println("发送消息失败: " + e.getMessage());
+                toRemove.add(c);
+            }
+        }
+        removeDeadClients(toRemove);
+    }
+
+    // 移除发送失败或已断开的客户端
+    private void removeDeadClients(ArrayList<HandleClient> toRemove) {
+        for (HandleClient c : toRemove) {
+            if (c.session != null) {
+                continue; // 由读取该连接的线程在发现断开时保留会话
+            }
+            removeClient(c);
+        }
+    }
+
+    // 生成图片消息：新收到的图片按摘要保存一份，之后同一张图片的转发和取回都不再需要上传
+    private Packet storeImage(String prefix, String sender, ByteBuffer imageData, String hash) {
+        if (blobs == null) {
+            return Packet.image(prefix, sender, imageData);
+        }
+        if (hash == null) {
+            hash = BlobStore.hash(imageData);
+            blobs.put(hash, imageData);
+        }
+        return Packet.image(prefix, sender, imageData, hash);
+    }
+
+    // 以下由 Cluster 调用：查询本节点的状态，投递其他节点转发来的消息
+
+    boolean isOnline(String name) {
+        return presence.find(name) != null;
+    }
+
+    int roomSize(String room) {
+        return rooms.size(room);
+    }
+
+    void log(String text) {
+        appendToLog(text);
+    }
+
+    // 其他节点上的房间消息，大厅的聊天消息同样保存到本节点的消息记录
+    void deliverRoomText(String room, String text, boolean record) {
+        if (record) {
+            events.log(text);
+            if (history != null && room.equals(Rooms.LOBBY)) {
+                history.append(text);
+            }
+        }
+        broadcastPacket(room, Packet.text(text));
+    }
+
+    void deliverRoomImage(String room, String prefix, String sender, ByteBuffer imageData, boolean record) {
+        if (record && history != null && room.equals(Rooms.LOBBY)) {
+            history.append(prefix + "发送了一张图片\n");
+        }
+        broadcastPacket(room, storeImage(prefix, sender, imageData, null));
+    }
+
+    // 其他节点转发来的私聊，接收者已下线时丢弃
+    void deliverPrivateText(String receiver, String text) {
+        HandleClient c = presence.find(receiver);
+        if (c != null) {
+            c.send(text);
+        }
+    }
+
+    void deliverPrivateImage(String receiver, String sender, ByteBuffer imageData) {
+        HandleClient c = presence.find(receiver);
+        if (c != null) {
+            try {
+                c.sendPacket(storeImage("", sender, imageData, null));
+            } catch (IOException e) {
+                Metrics.SEND_FAILURES.increment();
+            }
+        }
+    }
+
+    // 其他节点上新注册的用户，本节点已有同名用户时保留本节点的账号
+    void registerRemote(String username, String password) {
+        if (!UserStore.valid(username, password)) {
+            appendToLog("拒绝其他节点同步的非法用户名: " + username.replaceAll("[\\r\\n]", "?"));
+            return;
+        }
+        if (users != null && users.register(username, password)) {
+            appendToLog("同步其他节点注册的用户: " + username);
+        }
+    }
+
+    // 启动服务器：打开监听端口后立即返回，接收连接在后台线程上进行
+    void start() throws IOException {
+        if (users == null) { // 没有用户存储时无法登录和注册，不接受连接
+            throw new IOException("用户文件读取错误，服务器未启动");
+        }
+        Metrics.expose(events); // 开启 JMX 和 HTTP 指标接口
+        if (cluster != null) {
+            cluster.start(); // 打开集群端口并连接其他节点
+        }
+        if ("nio".equals(ioMode)) {
+            nioServer = new NioServer(this, port, ioThreads); // 创建 NIO 事件循环
+            nioServer.start();
+            isStart = true; // 设置服务器启动标识为 true
+            events.log("服务器已启动(NIO, " + ioThreads + " 个 I/O 线程),端口 " + port + ",等待客户端连接...\n");
+            return;
+        }
+        boolean virtual = "virtual".equals(ioMode);
+        serverSocket = new ServerSocket(port); // 创建服务器套接字，端口被占用时直接抛出
+        connectionExecutor = virtual
+                ? Executors.newVirtualThreadPerTaskExecutor() // 每个任务一个虚拟线程
+                : Executors.newCachedThreadPool(); // 平台线程，空闲线程可复用
+        ExecutorService executor = connectionExecutor;
+        ServerSocket listener = serverSocket;
+        isStart = true; // 设置服务器启动标识为 true
+        events.log("服务器已启动(" + (virtual ? "虚拟线程" : "平台线程") + "),端口 " + port + ",等待客户端连接...\n");
+        executor.execute(() -> {
+            try {
+                while (isStart) {
+                    Socket socket = listener.accept(); // 接受客户端连接
+                    executor.execute(new HandleClient(socket, executor)); // 在线程池中处理客户端连接
+                }
+            } catch (IOException e) {
+                if (isStart) {
+                    e.printStackTrace(); // 打印异常信息
+                }
+            }
+        });
+    }
+
+    // 关闭服务器监听的方法。平台线程和虚拟线程模式下已连接的客户端继续运行；
+    // NIO 模式下连接由 I/O 线程处理，I/O 线程退出时关闭其上的所有连接
+    void stop() throws IOException {
+        isStart = false; // 设置服务器停止标识为 false
+        if (serverSocket != null) {
+            serverSocket.close(); // 关闭服务器套接字
+            serverSocket = null;
+        }
+        if (connectionExecutor != null) {
+            connectionExecutor.shutdown(); // 不再接受新任务，已有连接继续运行
+            connectionExecutor = null;
+        }
+        if (nioServer != null) {
+            nioServer.stop(); // 关闭 NIO 事件循环及其上的所有连接
+            nioServer = null;
+        }
+        if (cluster != null) {
+            cluster.stop(); // 断开与其他节点的连接
+        }
+        events.log("服务器已关闭\n"); // 更新日志
+    }
+
+    // 客户端连接的传输层，阻塞流和 NIO 通道各有一种实现
+    // 写入只是放进连接自己的有界发送队列，真正的套接字写由该连接的写线程或 I/O 线程完成
+    interface Transport {
+        // 发送一段已编码的数据，数组可能被多个连接共享，不能修改；bulk 表示图片等大块数据
+        void write(byte[] data, boolean bulk) throws IOException;
+
+        default void write(byte[] data) throws IOException {
+            write(data, false);
+        }
+
+        // 以 writeUTF 格式发送一条消息
+        default void writeUTF(String str) throws IOException {
+            write(Frame.encodeUTF(str));
+        }
+
+        boolean isOpen(); // 连接是否仍然可用
+
+        void close() throws IOException; // 写完已排队的数据后关闭连接
+
+        String remoteAddress(); // 对端 IP 地址
+
+        OutboundQueue queue(); // 发送队列
+
+        // 客户端归还了一个流的窗口，等待窗口的分片可以继续发送
+        default void grant(int stream, int bytes) {
+            queue().grant(stream, bytes);
+        }
+
+        // 边收边转的图片有了新的分片或被取消，发送队列中可能有了可以写出的数据
+        default void wake() {
+            queue().wake();
+        }
+
+        // 执行一个可能读磁盘的 task，完成前不处理该连接后续的输入，然后在处理输入的线程上用结果执行 then，
+        // 结果与该连接之后的消息保持顺序。每个连接独占读取线程时直接在读取线程上执行；
+        // 多个连接共用 I/O 线程时在 background 上执行 task，不阻塞其他连接
+        default <T> void await(Executor background, Supplier<T> task, Consumer<T> then) {
+            then.accept(task.get());
+        }
+    }
+
+    // 基于 Socket 阻塞流的传输层，每个连接有一个写线程负责清空发送队列
+    static class StreamTransport implements Transport {
+        final Socket socket; // 客户端套接字
+        private final OutputStream out; // 带缓冲的输出流
+        private final OutboundQueue queue = new OutboundQueue(); // 发送队列
+
+        StreamTransport(Socket socket, Executor writerExecutor) throws IOException {
+            this.socket = socket;
+            this.out = new BufferedOutputStream(socket.getOutputStream(), 64 * 1024);
+            writerExecutor.execute(this::drain); // 启动该连接的写线程
+        }
+
+        @Override
+        public void write(byte[] data, boolean bulk) throws IOException {
+            if (socket.isClosed()) {
+                throw new IOException("连接已关闭");
+            }
+            if (!queue.offer(data, bulk)) {
+                closeNow(); // 按溢出策略断开
+                throw new IOException("发送队列已满，已断开连接");
+            }
+        }
+
+        // 写线程：取出排队的数据写入套接字，队列暂时取空时再 flush，连续的小消息合并成一次系统调用
+        private void drain() {
+            try {
+                byte[] data;
+                while ((data = queue.take()) != null) {
+                    out.write(data);
+                    Metrics.BYTES_OUT.add(data.length);
+                    if (queue.isEmpty()) {
+                        out.flush();
+                    }
+                }
+                out.flush();
+            } catch (IOException e) {
+                // 对端已断开，由读线程负责清理
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                closeNow();
+            }
+        }
+
+        // 丢弃排队的数据并立即关闭套接字
+        private void closeNow() {
+            queue.clear();
+            try {
+                socket.close();
+            } catch (IOException e) {
+                e.printStackTrace(); // 打印异常信息
+            }
+        }
+
+        @Override
+        public boolean isOpen() {
+            return !socket.isClosed() && socket.isConnected();
+        }
+
+        @Override
+        public void close() throws IOException {
+            queue.close(); // 写线程写完剩余数据后关闭套接字
+        }
+
+        @Override
+        public String remoteAddress() {
+            return socket.getInetAddress().getHostAddress();
+        }
+
+        @Override
+        public OutboundQueue queue() {
+            return queue;
+        }
+    }
+
+    // 断线后保留会话期间的传输层：发给该用户的数据只放进队列，恢复会话时交给新连接
+    static final class ParkedTransport implements Transport {
+        private final OutboundQueue queue = new OutboundQueue(); // 保留期间的消息，按溢出策略丢弃
+        private final String address; // 原连接的对端地址
+
+        ParkedTransport(String address) {
+            this.address = address;
+        }
+
+        @Override
+        public void write(byte[] data, boolean bulk) {
+            queue.offer(data, bulk); // 放不下时丢弃，恢复后客户端缺少这些消息
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+            queue.close();
+        }
+
+        @Override
+        public String remoteAddress() {
+            return address;
+        }
+
+        @Override
+        public OutboundQueue queue() {
+            return queue;
+        }
+    }
+
+    // 把一个队列中尚未写出的数据按顺序转交给另一个传输层
+    private static void moveQueued(OutboundQueue from, Transport to) throws IOException {
+        ArrayList<byte[]> urgent = new ArrayList<>();
+        ArrayList<byte[]> bulk = new ArrayList<>();
+        from.detach(urgent, bulk);
+        for (byte[] data : urgent) {
+            to.write(data, false);
+        }
+        for (byte[] data : bulk) {
+            to.write(data, true);
+        }
+    }
+
+    // 处理客户端连接的内部类
+    class HandleClient implements Runnable {
+        volatile Transport transport; // 客户端连接的传输层，断线保留会话期间为 ParkedTransport
+        private String name; // 用户名
+        private String anonymousName; // 匿名用户名
+        private boolean isAnonymous = false; // 是否匿名标识
+        private boolean loggedIn = false; // 是否已登录
+        private volatile boolean framed = false; // 是否已协商为二进制帧协议
+        private volatile boolean blobRefs = false; // 客户端是否支持 IMAGE_REF，转发图片时只发摘要
+        private volatile boolean deflate = false; // 客户端是否支持压缩帧
+        private boolean historyFrames = false; // 客户端是否支持 HISTORY 帧
+        private final Set<String> joined = ConcurrentHashMap.newKeySet(); // 已加入的房间
+        private volatile String room = null; // 公共消息发往的房间，不在任何房间时为 null
+        private Inflater inflater; // 解压客户端发来的压缩帧，只在读取该连接的线程上使用
+        private Streams.Assembler assembler; // 拼接客户端分片发来的帧，只在读取该连接的线程上使用
+        private final Map<Integer, ImageUpload> uploads = new HashMap<>(); // 正在边收边转的图片，只在读取该连接的线程上使用
+        private volatile boolean streams = false; // 客户端是否支持分片，图片可以边收边转给它
+        private boolean resumable = false; // 客户端请求了会话恢复
+        private volatile Session session; // 可恢复的会话，客户端未请求时为 null
+        private String ipAddress; // 客户端 IP 地址
+        private static final int MAX_MESSAGE_SIZE = 1024 * 1024 * 1024; // 10MB最大消息限制
+        private StringBuilder imageBuffer = null; // 正在接收的分块图片
+        private int expectedChunks = 0; // 图片总块数
+        private int receivedChunks = 0; // 已接收的图片块数
+        DataInputStream dis; // 数据输入流（仅阻塞模式）
+
+        public HandleClient(Socket socket, Executor writerExecutor) {
+            try {
+                transport = new StreamTransport(socket, writerExecutor); // 初始化阻塞传输层
+                dis = new DataInputStream(Metrics.counting(socket.getInputStream())); // 初始化数据输入流，统计读取的字节数
+            } catch (IOException e) {
+                e.printStackTrace(); // 打印异常信息
+            }
+        }
+
+        // NIO 模式下由事件循环创建，消息通过 onMessage / onFrame 推送进来
+        HandleClient(Transport transport) {
+            this.transport = transport;
+        }
+
+        // 是否已协商为二进制帧协议，NIO 事件循环据此选择解码方式
+        boolean isFramed() {
+            return framed;
+        }
+
+        // 下一帧允许的负载上限，登录前只接受短帧
+        int maxPayload() {
+            return loggedIn ? Frame.MAX_PAYLOAD : Frame.MAX_LOGIN_PAYLOAD;
+        }
+
+        // 处理分块图片消息，收齐所有块和结束标记后返回完整消息，否则返回 null
+        private String handleImageChunks(String chunk) throws IOException {
+            // 接收图片块
+            if (receivedChunks < expectedChunks) {
+                imageBuffer.append(chunk);
+                receivedChunks++;
+                return null;
+            }
+
+            // 等待结束标记
+            if (!chunk.equals("[IMG_END]")) {
+                throw new IOException("图片传输异常：未收到结束标记");
+            }
+            String imageMessage = imageBuffer.toString();
+            imageBuffer = null;
+            return imageMessage;
+        }
+
+        @Override
+        public void run() {
+            Transport connection = transport; // 断线保留会话时 transport 会被换掉
+            try {
+                while (!loggedIn) {
+                    if (framed) {
+                        onFrame(Frame.read(dis, Frame.MAX_LOGIN_PAYLOAD)); // 读取登录或注册帧
+                    } else {
+                        String credentials = dis.readUTF(); // 读取客户端发送的用户名和密码
+                        handleLogin(credentials);
+                    }
+                }
+                handleClientCommunication(); // 处理客户端通信
+            } catch (IOException | RuntimeException e) {
+                e.printStackTrace(); // 打印异常信息；格式错误的消息同样断开连接，并照常清理
+            } finally {
+                onDisconnect();
+                try {
+                    connection.close(); // 通知写线程结束
+                } catch (IOException e) {
+                    e.printStackTrace(); // 打印异常信息
+                }
+            }
+        }
+
+        // 处理客户端发来的一条字符串消息（阻塞与 NIO 模式共用），返回 false 表示连接应当结束
+        boolean onMessage(String str) throws IOException {
+            if (!loggedIn) {
+                handleLogin(str);
+                return true;
+            }
+
+            // 处理分块图片消息
+            if (imageBuffer != null) {
+                str = handleImageChunks(str);
+                if (str == null) {
+                    return true;
+                }
+            } else if (str.startsWith("[IMG_START]")) {
+                expectedChunks = Integer.parseInt(str.substring(11));
+                receivedChunks = 0;
+                imageBuffer = new StringBuilder();
+                return true;
+            }
+            long start = System.nanoTime();
+            Metrics.MESSAGES_IN.increment();
+            try {
+                return handleCommand(str);
+            } finally {
+                Metrics.ROUTE.record(Metrics.micros(start)); // 路由延迟：收齐一条消息到放进所有接收者的队列
+            }
+        }
+
+        // 处理客户端发来的一帧（阻塞与 NIO 模式共用），返回 false 表示连接应当结束
+        boolean onFrame(Frame frame) throws IOException {
+            // 登录前只接受流 0 上的登录、注册、恢复会话和能力帧；未协商分片传输时不接受流上的帧。
+            // 否则未登录的连接可以用许多小分片让服务器拼接大帧，视为协议错误并断开
+            if (!loggedIn && (frame.streamId != 0 || frame.type != Frame.LOGIN && frame.type != Frame.REGISTER
+                    && frame.type != Frame.RESUME && frame.type != Frame.COMMAND)) {
+                throw new IOException("登录前不能发送该帧: " + frame.type);
+            }
+            if (frame.streamId != 0 && !streams) {
+                throw new IOException("未协商分片传输: 流 " + frame.streamId);
+            }
+            if (frame.type == Frame.WINDOW) {
+                transport.grant(frame.streamId, (int) Math.min(frame.reader().number(), Integer.MAX_VALUE));
+                return true;
+            }
+            if (frame.type == Frame.ACK) {
+                long received = frame.reader().number(); // 格式错误时断开连接
+                if (session != null) {
+                    session.ack(received); // 已确认的消息不再保留
+                }
+                return true;
+            }
+            if (frame.streamId != 0) {
+                if (assembler == null) {
+                    assembler = new Streams.Assembler();
+                }
+                ImageUpload upload = uploads.get(frame.streamId);
+                if (frame.type == Frame.RESET) {
+                    if (upload != null) {
+                        uploads.remove(frame.streamId).abort(); // 客户端取消了上传
+                    } else {
+                        assembler.reset(frame.streamId);
+                    }
+                    return true;
+                }
+                if (upload != null) {
+                    upload.accept(frame);
+                } else if (frame.type == Frame.IMAGE && frame.hasFlag(Frame.FLAG_MORE)
+                        && !frame.hasFlag(Frame.FLAG_DEFLATE) && loggedIn) {
+                    upload = startUpload(frame); // 图片的第一片，边收边转
+                }
+                // 分片已经收下，归还窗口；拼接或转发在收到时完成，窗口只限制每个流在途的数据量。
+                // 边收边保存时等写线程写完该分片再归还，磁盘跟不上时上传者随之放慢，未写出的分片不会在内存中堆积
+                byte[] grant = Frame.of(Frame.WINDOW, String.valueOf(frame.payload.length)).withStream(frame.streamId);
+                if (upload != null && upload.blob != null) {
+                    Transport connection = transport;
+                    upload.blob.afterWrites(() -> {
+                        try {
+                            connection.write(grant);
+                        } catch (IOException e) {
+                            // 连接已断开，上传随之取消
+                        }
+                    });
+                } else {
+                    transport.write(grant);
+                }
+                if (upload != null) {
+                    if (!frame.hasFlag(Frame.FLAG_MORE)) {
+                        uploads.remove(frame.streamId).finish();
+                    }
+                    return true;
+                }
+                Frame whole = assembler.accept(frame);
+                if (whole == null) {
+                    return true;
+                }
+                frame = whole;
+            }
+            if (frame.hasFlag(Frame.FLAG_DEFLATE)) {
+                if (!deflate || !loggedIn) { // 只有协商了压缩并登录后才解压，避免未认证的连接消耗解压资源
+                    throw new IOException("未协商压缩的连接发送了压缩帧");
+                }
+                if (inflater == null) {
+                    inflater = Compression.newInflater();
+                }
+                frame = frame.inflated(inflater);
+            }
+            Frame.Reader r = frame.reader();
+            if (!loggedIn) {
+                if (frame.type == Frame.REGISTER) {
+                    register(r.string(), r.string());
+                } else if (frame.type == Frame.LOGIN) {
+                    login(r.string(), r.string());
+                } else if (frame.type == Frame.COMMAND) {
+                    enableCapability(r.string());
+                } else if (frame.type == Frame.RESUME) {
+                    resume(r.string(), r.number());
+                }
+                return true;
+            }
+            long start = System.nanoTime();
+            Metrics.MESSAGES_IN.increment();
+            try {
+                return route(frame.type, r);
+            } finally {
+                Metrics.ROUTE.record(Metrics.micros(start));
+            }
+        }
+
+        // 按类型处理已登录连接发来的帧
+        private boolean route(byte type, Frame.Reader r) throws IOException {
+            switch (type) {
+                case Frame.COMMAND:
+                    return handleCommand(commandString(r.string()));
+                case Frame.TEXT:
+                    sendPublic(r.string());
+                    return true;
+                case Frame.PRIVATE:
+                    sendPrivate(r.string(), r.string());
+                    return true;
+                case Frame.IMAGE: {
+                    String receiver = r.string();
+                    String sender = r.string();
+                    ByteBuffer imageData = r.rest(); // 原始图片字节，直接引用帧负载
+                    if (receiver.isEmpty()) {
+                        sendPublicImage(sender, imageData, null);
+                    } else {
+                        sendPrivateImage(receiver, sender, imageData, null);
+                    }
+                    return true;
+                }
+                case Frame.IMAGE_OFFER: {
+                    String receiver = r.string();
+                    String sender = r.string();
+                    String hash = r.string();
+                    if (blobs == null) {
+                        transport.write(Frame.of(Frame.IMAGE_NEED, hash).encode()); // 请客户端上传
+                        return true;
+                    }
+                    // 转发必须排在该客户端之后发送的消息之前，在它处理输入的路径上进行
+                    transport.await(blobReader, () -> blobs.get(hash), stored -> offered(receiver, sender, hash, stored));
+                    return true;
+                }
+                case Frame.HISTORY: {
+                    long before;
+                    int count;
+                    try {
+                        before = Long.parseLong(r.string());
+                        count = Math.min(Integer.parseInt(r.string()), HISTORY_PAGE);
+                    } catch (NumberFormatException e) {
+                        appendToLog("无效的历史消息请求: " + e.getMessage());
+                        return true;
+                    }
+                    if (history != null) {
+                        // 在单独的线程上读文件，结果放进发送队列
+                        historyReader.execute(() -> sendHistory(history.before(before, count), true));
+                    }
+                    return true;
+                }
+                case Frame.IMAGE_FETCH: {
+                    String hash = r.string();
+                    if (blobs == null) {
+                        transport.write(Frame.of(Frame.IMAGE_BLOB, hash).encode());
+                        return true;
+                    }
+                    blobReader.execute(() -> fetched(hash, blobs.get(hash)));
+                    return true;
+                }
+                default:
+                    appendToLog("未知的帧类型: " + type);
+                    return true;
+            }
+        }
+
+        // 查到了客户端提供的摘要：已有该图片时直接转发，否则请客户端上传
+        private void offered(String receiver, String sender, String hash, byte[] stored) {
+            try {
+                transport.write(Frame.of(Frame.IMAGE_NEED, stored != null ? Frame.FLAG_OK : 0, hash).encode());
+                if (stored != null) {
+                    if (receiver.isEmpty()) {
+                        sendPublicImage(sender, ByteBuffer.wrap(stored), hash);
+                    } else {
+                        sendPrivateImage(receiver, sender, ByteBuffer.wrap(stored), hash);
+                    }
+                }
+            } catch (IOException e) {
+                Metrics.SEND_FAILURES.increment(); // 连接已断开，由读取线程清理
+            }
+        }
+
+        // 在读图片的线程上读出了客户端取回的图片，放进发送队列
+        private void fetched(String hash, byte[] stored) {
+            try {
+                if (stored != null) {
+                    transport.write(Frame.encode(Frame.IMAGE_BLOB, Frame.FLAG_OK, ByteBuffer.wrap(stored), hash), true);
+                } else {
+                    transport.write(Frame.of(Frame.IMAGE_BLOB, hash).encode()); // 图片已被清理
+                }
+            } catch (IOException e) {
+                Metrics.SEND_FAILURES.increment(); // 连接已断开，由读取线程清理
+            }
+        }
+
+        // 启用客户端在登录前请求的能力
+        private void enableCapability(String capability) {
+            if (capability.equals(Frame.CAP_BLOB)) {
+                blobRefs = blobs != null; // 客户端有本地图片缓存
+            } else if (capability.equals(Frame.CAP_DEFLATE)) {
+                deflate = true;
+            } else if (capability.equals(Frame.CAP_HISTORY)) {
+                historyFrames = history != null;
+            } else if (capability.equals(Frame.CAP_STREAMS)) {
+                transport.queue().enableStreams(); // 发给该客户端的图片拆成分片，文字可以插在分片之间
+                streams = true;
+            } else if (capability.equals(Frame.CAP_RESUME)) {
+                resumable = true;
+            }
+        }
+
+        // 处理登录和注册请求
+        private void handleLogin(String credentials) throws IOException {
+            if (ipAddress == null) {
+                ipAddress = transport.remoteAddress(); // 获取客户端 IP 地址
+            }
+
+            // 检查消息大小
+            if (credentials.length() > MAX_MESSAGE_SIZE) {
+                System.out.println("警告：收到超大消息，已拒绝处理");
+                return;
+            }
+
+            if (credentials.startsWith(Frame.HELLO)) { // 新客户端请求使用二进制帧协议
+                int version = Math.min(Integer.parseInt(credentials.substring(Frame.HELLO.length())), Frame.VERSION);
+                transport.writeUTF(Frame.HELLO_OK + version + ";" + Frame.CAP_DEFLATE
+                        + (blobs != null ? ";" + Frame.CAP_BLOB : "")
+                        + (history != null ? ";" + Frame.CAP_HISTORY : "") + ";" + Frame.CAP_STREAMS
+                        + ";" + Frame.CAP_RESUME);
+                framed = true;
+                return;
+            }
+
+            if (credentials.startsWith("REGISTER:")) { // 处理注册请求
+                String[] parts = credentials.substring(9).split(",");
+                if (parts.length == 2) {
+                    register(parts[0], parts[1]);
+                    return;
+                }
+            }
+            String[] parts = credentials.split(","); // 分割用户名和密码
+            if (parts.length == 2) {
+                login(parts[0], parts[1]);
+            }
+        }
+
+        // 注册新用户
+        private void register(String username, String password) throws IOException {
+            if (ipAddress == null) {
+                ipAddress = transport.remoteAddress(); // 获取客户端 IP 地址
+            }
+            if (!UserStore.valid(username, password)) {
+                sendResult(false, "register_failed:用户名或密码为空，或含有逗号、换行", "用户名或密码为空，或含有逗号、换行");
+                return;
+            }
+            // 添加新用户，用户名检查和插入是一次原子操作，并发注册同名用户只有一个成功
+            if (!users.register(username, password)) {
+                sendResult(false, "register_failed:用户名已存在", "用户名已存在");
+            } else {
+                Metrics.REGISTRATIONS.increment();
+                sendResult(true, "register_success", "");
+                if (cluster != null) {
+                    cluster.relayRegistered(username, password); // 同步到其他节点，可以登录任意节点
+                }
+                logToFile("新用户注册: 用户[" + username + "], IP地址: " + ipAddress + ", 时间: "
+                        + getCurrentTime() + "\n");
+            }
+        }
+
+        // 校验用户名和密码并登录
+        private void login(String username, String password) throws IOException {
+            if (ipAddress == null) {
+                ipAddress = transport.remoteAddress(); // 获取客户端 IP 地址
+            }
+            if (users.check(username, password)) {
+                Metrics.LOGINS.increment();
+                sendResult(true, "success", ""); // 发送成功消息给客户端
+                name = username; // 设置用户名
+                if (resumable && framed) {
+                    startSession();
+                }
+                anonymousName = "匿名用户" + (int) (Math.random() * 10000); // 生成随机匿名用户名
+                String loginMessage = "客户端[" + name + "]加入了聊天室\n";
+                events.log(loginMessage); // 更新日志
+                broadcastTo(Rooms.LOBBY, name + " 加入了聊天室\n"); // 向大厅广播用户加入消息
+                replayHistory(); // 先发最近的消息，再登记为在线用户接收新消息
+                presence.add(name, this); // 登记到在线用户表
+                if (cluster != null) {
+                    cluster.userChanged(name); // 通知其他节点
+                }
+                joined.add(Rooms.LOBBY);
+                subscribe(Rooms.LOBBY, this); // 进入大厅
+                room = Rooms.LOBBY;
+                updateOnlineLabel(); // 更新在线人数标签
+                logToFile("登录成功: 用户[" + name + "], IP地址: " + ipAddress + ", 时间: " + getCurrentTime()
+                        + "\n"); // 记录登录日志
+                loggedIn = true;
+            } else {
+                Metrics.LOGIN_FAILURES.increment();
+                sendResult(false, "fail", "用户名或密码错误"); // 发送失败消息给客户端
+                logToFile("登录失败: 用户[" + username + "], IP地址: " + ipAddress + ", 时间: " + getCurrentTime()
+                        + "\n"); // 记录登录失败日志
+            }
+        }
+
+        // 登录成功后开始可恢复的会话，之后写出的聊天消息计数并保留到客户端确认
+        private void startSession() throws IOException {
+            session = new Session();
+            sessions.put(session.token, this);
+            transport.queue().track(session);
+            transport.write(Frame.of(Frame.SESSION, session.token, String.valueOf(Session.GRACE)).encode());
+        }
+
+        // 用令牌恢复断线前的会话：接替原连接的用户名、房间和在线状态，只补发客户端缺少的消息，
+        // 不校验密码、不广播上线通知、不回放历史消息；无法恢复时原会话结束，客户端改为重新登录
+        private void resume(String token, long received) throws IOException {
+            if (ipAddress == null) {
+                ipAddress = transport.remoteAddress(); // 获取客户端 IP 地址
+            }
+            HandleClient old;
+            List<Object> missed = null;
+            ArrayList<byte[]> urgent = new ArrayList<>();
+            ArrayList<byte[]> bulk = new ArrayList<>();
+            sessionLock.lock();
+            try {
+                old = resumable && framed ? sessions.get(token) : null;
+                if (old != null) {
+                    old.transport.queue().detach(urgent, bulk); // 原连接可能还没发现对方已断开，先停止它的写出
+                    missed = old.session.resume(received);
+                }
+                if (missed != null) {
+                    if (old.session.expiry != null) {
+                        old.session.expiry.cancel(false);
+                    }
+                    session = old.session;
+                    name = old.name;
+                    anonymousName = old.anonymousName;
+                    isAnonymous = old.isAnonymous;
+                    transport.queue().track(session);
+                    transport.write(Frame.of(Frame.RESUME, Frame.FLAG_OK).encode());
+                    for (Object message : missed) {
+                        replay(message); // 已写出但客户端没有收到的消息
+                    }
+                    for (byte[] data : urgent) {
+                        transport.write(data, false); // 尚未写出的消息
+                    }
+                    for (byte[] data : bulk) {
+                        transport.write(data, true);
+                    }
+                    // 接替在线状态和房间，之后发给该用户的消息直接进入新连接的队列
+                    presence.replace(name, old, this);
+                    for (String r : old.joined) {
+                        joined.add(r);
+                        subscribe(r, this);
+                        unsubscribe(r, old);
+                    }
+                    room = old.room;
+                    sessions.put(token, this);
+                    moveQueued(old.transport.queue(), transport); // 交接期间发给原连接的消息
+                    loggedIn = true;
+                }
+            } finally {
+                sessionLock.unlock();
+            }
+            if (missed == null) {
+                if (old != null) {
+                    old.expire();
+                }
+                transport.write(Frame.of(Frame.RESUME, (byte) 0, "会话已过期").encode());
+                return;
+            }
+            old.transport.close(); // 原连接仍未断开时关闭它
+            Metrics.RESUMES.increment();
+            events.log("客户端[" + name + "]恢复了会话，补发 " + missed.size() + " 条消息\n"); // 更新日志
+            logToFile("恢复会话: 用户[" + name + "], IP地址: " + ipAddress + ", 时间: " + getCurrentTime() + "\n");
+        }
+
+        // 补发一条消息；边收边转的图片没有保留数据，改发摘要或从图片存储读出整张图片。
+        // 读文件在读图片的线程上进行，读出的图片可能排在之后补发的文字后面，两边的条数不受影响
+        private void replay(Object message) throws IOException {
+            if (message instanceof byte[]) {
+                byte[] data = (byte[]) message;
+                transport.write(data, data[1] == Frame.IMAGE);
+                return;
+            }
+            Relay relay = (Relay) message;
+            String sender = relay.sender == null ? "" : relay.sender;
+            if (relay.hash != null && blobRefs) {
+                transport.write(Frame.of(Frame.IMAGE_REF, sender, relay.hash).encode());
+            } else if (relay.hash != null && blobs != null) {
+                blobReader.execute(() -> replayed(sender, blobs.get(relay.hash)));
+            } else {
+                replayed(sender, null);
+            }
+        }
+
+        private void replayed(String sender, byte[] stored) {
+            try {
+                if (stored != null) {
+                    transport.write(Frame.encode(Frame.IMAGE, (byte) 0, ByteBuffer.wrap(stored), sender), true);
+                } else {
+                    sendText("[" + sender + "] 的一张图片未能补发\n"); // 仍然计数，两边的条数保持一致
+                }
+            } catch (IOException e) {
+                Metrics.SEND_FAILURES.increment(); // 连接已断开
+            }
+        }
+
+        // 连接意外断开：保留会话 GRACE 毫秒，期间发给该用户的消息在 ParkedTransport 中排队；返回是否已保留
+        private boolean park() {
+            if (session == null || !isStart) {
+                return false;
+            }
+            sessionLock.lock();
+            try {
+                if (sessions.get(session.token) != this || presence.find(name) != this) {
+                    return false; // 已退出、已被新连接接替或同名用户已在别处登录
+                }
+                Transport parked = new ParkedTransport(ipAddress);
+                Transport dead = transport;
+                moveQueued(dead.queue(), parked);
+                transport = parked;
+                moveQueued(dead.queue(), parked); // 交接期间发给原连接的消息
+                session.expiry = sessionTimer.schedule(this::expire, Session.GRACE, TimeUnit.MILLISECONDS);
+            } catch (IOException e) {
+                return false; // ParkedTransport 不会抛出
+            } finally {
+                sessionLock.unlock();
+            }
+            events.log("客户端[" + name + "]连接中断，保留会话 " + Session.GRACE / 1000 + " 秒\n"); // 更新日志
+            return true;
+        }
+
+        // 会话结束：断线后保留时间已到，或缺少的消息已无法补发
+        private void expire() {
+            sessionLock.lock();
+            try {
+                if (!sessions.remove(session.token, this)) {
+                    return; // 已恢复
+                }
+            } finally {
+                sessionLock.unlock();
+            }
+            Metrics.SESSIONS_EXPIRED.increment();
+            try {
+                transport.close();
+            } catch (IOException e) {
+                e.printStackTrace(); // 打印异常信息
+            }
+            disconnected();
+        }
+
+        // 处理客户端通信的方法
+        private void handleClientCommunication() throws IOException {
+            while (isStart) {
+                boolean keepGoing = framed
+                        ? onFrame(Frame.read(dis)) // 读取客户端发送的帧
+                        : onMessage(dis.readUTF()); // 读取客户端发送的信息
+                if (!keepGoing) {
+                    break;
+                }
+            }
+        }
+
+        // 处理登录后的一条完整字符串消息，返回 false 表示客户端已退出
+        private boolean handleCommand(String str) throws IOException {
+            String clientName = name; // 获取客户端用户名
+            if (str.equals("##exit")) {
+                String exitMessage = "客户端[" + clientName + "]下线了\n";
+                events.log(exitMessage); // 更新日志
+                announce(clientName + " 退出了聊天室\n"); // 向所在的房间广播用户退出消息
+                removeClient(this); // 从客户端连接列表中移除
+                logToFile("用户退出: 用户[" + clientName + "], 时间: " + getCurrentTime() + "\n"); // 记录用户退出日志
+                return false;
+            } else if (str.equals("@@list")) {
+                listOnlineUsersForClient(); // 列出在线用户给客户端
+            } else if (str.equals("@@quit")) {
+                String quitMessage = "客户端[" + clientName + "]请求退出聊天室\n";
+                events.log(quitMessage); // 更新日志
+                announce(clientName + " 请求退出聊天室\n"); // 向所在的房间广播用户请求退出消息
+                removeClient(this); // 从客户端连接列表中移除
+                logToFile("用户退出: 用户[" + clientName + "], 时间: " + getCurrentTime() + "\n"); // 记录用户退出日志
+                if (framed) {
+                    transport.write(Frame.of(Frame.COMMAND, "exit").encode()); // 发送退出帧给客户端
+                } else {
+                    transport.writeUTF("##exit"); // 发送退出消息给客户端
+                }
+                transport.close(); // 关闭客户端连接
+                return false;
+            } else if (str.startsWith("@@join ")) {
+                joinRoom(str.substring(7).trim());
+            } else if (str.equals("@@leave") || str.startsWith("@@leave ")) {
+                String target = str.substring(7).trim();
+                leaveRoom(target.isEmpty() ? room : target); // 不带房间名时离开当前房间
+            } else if (str.equals("@@rooms")) {
+                listRoomsForClient();
+            } else if (str.equals("@@anonymous")) {
+                isAnonymous = !isAnonymous; // 切换匿名状态
+                sendText("已切换到 " + (isAnonymous ? "匿名" : "实名") + " 聊天模式"); // 发送切换模式消息给客户端
+                String modeMessage = "客户端[" + clientName + "]已切换到 " + (isAnonymous ? "匿名" : "实名") + " 聊天模式\n";
+                events.log(modeMessage); // 更新日志
+                logToFile(modeMessage);
+            } else if (str.startsWith("@")) {
+                String[] parts = str.substring(1).split("：", 2); // 分割私聊消息
+                if (parts.length == 2) {
+                    String receiver = parts[0];
+                    String message = parts[1];
+                    int colonIndex = message.indexOf("：");
+                    String actualContent = colonIndex != -1 ? message.substring(colonIndex + 1) : message;
+                    if (actualContent.trim().startsWith("[IMG]")) {
+                        String[] image = actualContent.trim().substring(5).split("\\|", 2); // 发送者|base64数据
+                        sendPrivateImage(receiver, image[0], decodeBase64(image[1]), null);
+                    } else {
+                        sendPrivate(receiver, message);
+                    }
+                } else {
+                    events.log("无效的私聊格式: " + str + "\n");
+                }
+            } else if (str.startsWith("[IMG]")) {
+                String[] image = str.substring(5).split("\\|", 2); // 发送者|base64数据
+                sendPublicImage(image[0], decodeBase64(image[1]), null);
+            } else {
+                sendPublic(str);
+            }
+            return true;
+        }
+
+        // 旧协议的图片为 Base64 字符串，收到后立即解码为原始字节，之后只处理字节
+        private ByteBuffer decodeBase64(String base64) {
+            return ByteBuffer.wrap(Base64.getMimeDecoder().decode(base64.trim()));
+        }
+
+        // 帧协议的命令名转换为字符串协议的命令
+        private String commandString(String command) {
+            return command.equals("exit") ? "##exit" : "@@" + command;
+        }
+
+        // 登录时回放最近的消息，只读内存中的记录
+        private void replayHistory() {
+            if (history == null || HISTORY_REPLAY <= 0) {
+                return;
+            }
+            List<MessageLog.Entry> recent = history.recent(HISTORY_REPLAY);
+            if (recent.isEmpty()) {
+                return;
+            }
+            if (historyFrames) {
+                sendHistory(recent, false);
+                return;
+            }
+            // 不支持 HISTORY 帧的客户端逐条收到带时间的文本
+            send("—— 最近的 " + recent.size() + " 条消息 ——\n");
+            for (MessageLog.Entry e : recent) {
+                send("[" + formatHistoryTime(e.time) + "] " + e.text);
+            }
+            send("—— 以上为历史消息 ——\n");
+        }
+
+        // 以一个 HISTORY 帧发送若干条消息，older 表示是客户端请求的更早消息
+        private void sendHistory(List<MessageLog.Entry> entries, boolean older) {
+            // 一帧最多带 HISTORY_BYTES 字节的文本，超出时只保留较新的部分
+            long bytes = 0;
+            int first = entries.size();
+            while (first > 0 && bytes + entries.get(first - 1).text.length() * 3L <= HISTORY_BYTES) {
+                bytes += entries.get(--first).text.length() * 3L;
+            }
+            entries = entries.subList(first, entries.size());
+            boolean more = !entries.isEmpty() && entries.get(0).seq > history.firstSeq();
+            String[] fields = new String[1 + entries.size() * 3];
+            fields[0] = more ? "1" : "0";
+            for (int i = 0; i < entries.size(); i++) {
+                MessageLog.Entry e = entries.get(i);
+                fields[1 + i * 3] = String.valueOf(e.seq);
+                fields[2 + i * 3] = String.valueOf(e.time);
+                fields[3 + i * 3] = e.text;
+            }
+            Frame frame = Frame.of(Frame.HISTORY, older ? Frame.FLAG_OLDER : 0, fields);
+            try {
+                // 请求的更早消息按大块数据排队，不挤占实时消息；登录时的回放要排在之后的实时消息前面
+                transport.write((deflate ? frame.deflated() : frame).encode(), older);
+            } catch (IOException e) {
+                e.printStackTrace(); // 打印异常信息
+            }
+        }
+
+        private String formatHistoryTime(long time) {
+            return HISTORY_TIME.format(Instant.ofEpochMilli(time).atZone(ZoneId.systemDefault()));
+        }
+
+        // 加入房间并切换为当前房间，已在房间中时只切换
+        private void joinRoom(String target) {
+            if (!Rooms.validName(target)) {
+                send("无效的房间名：不能为空、不超过 " + Rooms.MAX_NAME_LENGTH + " 个字符，不能含空格和 ：:,|#@[]");
+                return;
+            }
+            if (!joined.contains(target)) {
+                if (joined.size() >= ROOMS_PER_USER) {
+                    send("最多同时加入 " + ROOMS_PER_USER + " 个房间，请先用 @@leave 离开一些房间");
+                    return;
+                }
+                broadcastTo(target, roomPrefix(target) + name + " 加入了房间\n"); // 先通知房间里的其他人
+                joined.add(target);
+                subscribe(target, this);
+                events.log("客户端[" + name + "]加入房间 " + target + "\n");
+            }
+            room = target;
+            send("当前房间：" + target + "（" + rooms.size(target) + " 人），公共消息将发送到该房间");
+        }
+
+        // 离开房间，离开的是当前房间时改为大厅或其他已加入的房间
+        private void leaveRoom(String target) {
+            if (target == null || !joined.remove(target)) {
+                send("你不在房间 " + (target == null ? "" : target) + " 中");
+                return;
+            }
+            unsubscribe(target, this);
+            broadcastTo(target, roomPrefix(target) + name + " 离开了房间\n");
+            events.log("客户端[" + name + "]离开房间 " + target + "\n");
+            if (target.equals(room)) {
+                Iterator<String> rest = joined.iterator();
+                room = joined.contains(Rooms.LOBBY) ? Rooms.LOBBY : rest.hasNext() ? rest.next() : null;
+            }
+            send("已离开房间 " + target + "，" + (room == null ? "你不在任何房间中，用 @@join 房间名 加入" : "当前房间：" + room));
+        }
+
+        // 列出所有房间给客户端，标出已加入的房间和当前房间
+        private void listRoomsForClient() {
+            StringBuilder list = new StringBuilder("房间：");
+            for (Map.Entry<String, Integer> e : rooms.sizes().entrySet()) {
+                String mark = e.getKey().equals(room) ? "→" : joined.contains(e.getKey()) ? "*" : "";
+                list.append(mark).append(e.getKey()).append("(").append(e.getValue()).append(") ");
+            }
+            send(list.toString());
+        }
+
+        // 发送公共文本消息，只发给当前房间的成员
+        private void sendPublic(String str) {
+            String target = room;
+            if (target == null) {
+                send("你不在任何房间中，用 @@join 房间名 加入");
+                return;
+            }
+            String displayName = isAnonymous ? anonymousName : name; // 获取显示名称
+            String message = roomPrefix(target) + "[" + displayName + "]：" + str + "\n";
+            if (Frame.utfLength(message) > Frame.MAX_UTF) { // 旧协议的客户端收不了，也不能进入大厅的消息记录
+                send("消息过长，未发送");
+                return;
+            }
+            events.log(message); // 更新日志
+            logToFile(message);
+            if (history != null && target.equals(Rooms.LOBBY)) {
+                history.append(message); // 保存大厅的消息，供之后登录的用户回放
+            }
+            publish(target, message, true); // 广播消息
+        }
+
+        // 发送公共图片，hash 为 null 表示新收到的图片，先保存到图片存储
+        private void sendPublicImage(String sender, ByteBuffer imageData, String hash) {
+            String target = room;
+            if (target == null) {
+                send("你不在任何房间中，用 @@join 房间名 加入");
+                return;
+            }
+            String displayName = isAnonymous ? anonymousName : name; // 获取显示名称
+            String prefix = roomPrefix(target) + "[" + displayName + "]：";
+            String imagemessage = prefix + "发送了一张图片\n";
+            events.log(imagemessage); // 更新日志
+            logToFile(imagemessage);
+            if (history != null && target.equals(Rooms.LOBBY)) {
+                history.append(imagemessage); // 消息记录中只保存提示文本
+            }
+            broadcastPacket(target, imagePacket(prefix, sender, imageData, hash)); // 广播图片
+            if (cluster != null) {
+                cluster.relayRoomImage(target, prefix, sender, imageData, true);
+            }
+        }
+
+        // 发送私聊文本消息
+        private void sendPrivate(String receiver, String message) {
+            handlePrivateMessage(message, name, receiver); // 处理私聊消息
+        }
+
+        // 发送私聊图片，hash 的含义同 sendPublicImage
+        private void sendPrivateImage(String receiver, String sender, ByteBuffer imageData, String hash)
+                throws IOException {
+            String imagemessage = "[" + name + "]向[" + receiver + "]发送了一张图片\n";
+            events.log(imagemessage); // 更新日志
+            HandleClient handler = presence.find(receiver); // 按用户名直接查找
+            if (handler != null) {
+                handler.sendPacket(imagePacket("", sender, imageData, hash));
+            } else if (cluster != null) {
+                cluster.relayPrivateImage(receiver, sender, imageData); // 接收者在其他节点上
+            }
+        }
+
+        // 客户端分片上传的图片的第一片：选定接收者后开始边收边转，不在任何房间时返回 null，收齐后按原路径提示
+        private ImageUpload startUpload(Frame first) throws IOException {
+            if (uploads.size() >= Streams.MAX_OPEN) {
+                throw new IOException("同时传输的流过多");
+            }
+            Frame.Reader r = first.reader();
+            String receiver = r.string();
+            String sender = r.string();
+            ByteBuffer data = r.rest();
+            String target = null;
+            String prefix = "";
+            if (receiver.isEmpty()) {
+                target = room;
+                if (target == null) {
+                    return null;
+                }
+                prefix = roomPrefix(target) + "[" + (isAnonymous ? anonymousName : name) + "]：";
+            }
+            ImageUpload upload = new ImageUpload(receiver, sender, target, prefix);
+            uploads.put(first.streamId, upload);
+            upload.append(data, Frame.encode(Frame.IMAGE, Frame.FLAG_MORE, upload.relay.stream, data, sender), true);
+            return upload;
+        }
+
+        // 一张边收边转的图片：支持分片的接收者每收到一片就转发一片，不必等整张图片上传完；
+        // 不支持分片的接收者和其他节点在收完后整张发送，只有这时（或没有图片存储时）才在内存中拼出整张图片，
+        // 否则图片直接边收边写入图片存储，服务器内存中只有 Relay 缓存的分片。
+        // 落后太多被 Relay 放弃的接收者在收完后同样整张发送，图片从内存或图片存储中取得
+        private final class ImageUpload {
+            private final String receiver; // 私聊的接收者，公共图片为空
+            private final String sender; // 客户端填写的发送者
+            private final String target; // 公共图片发往的房间，私聊为 null
+            private final String prefix; // 旧协议客户端显示的前缀
+            private final Relay relay = new Relay(); // 转发给支持分片的接收者
+            private final List<HandleClient> whole = new ArrayList<>(); // 收完后整张发送的本地接收者
+            private final boolean remote; // 收完后还要转发给其他节点
+            private ByteArrayOutputStream image; // 拼接整张图片，不需要时为 null
+            private BlobStore.Upload blob; // 不拼接整张图片时边收边保存
+            private long length = 0; // 已收到的图片字节数
+
+            ImageUpload(String receiver, String sender, String target, String prefix) {
+                this.receiver = receiver;
+                this.sender = sender;
+                this.target = target;
+                this.prefix = prefix;
+                if (target != null) {
+                    for (HandleClient c : rooms.members(target)) {
+                        addTarget(c);
+                    }
+                    remote = cluster != null && cluster.wantsRoom(target);
+                } else {
+                    HandleClient c = presence.find(receiver);
+                    if (c != null) {
+                        addTarget(c);
+                    }
+                    remote = c == null && cluster != null && cluster.hasUser(receiver);
+                }
+                if (!whole.isEmpty() || remote || blobs == null) {
+                    image = new ByteArrayOutputStream();
+                } else {
+                    blob = blobs.upload();
+                }
+            }
+
+            private void addTarget(HandleClient c) {
+                if (!c.transport.isOpen()) {
+                    return;
+                }
+                if (c.streams && !(c.transport instanceof ParkedTransport)) {
+                    relay.add(c); // 发送队列放不下时该接收者收不到这张图片
+                } else {
+                    whole.add(c);
+                }
+            }
+
+            // 上传者发来的后续分片
+            void accept(Frame frame) throws IOException {
+                if (frame.type != Frame.DATA) {
+                    throw new IOException("流 " + frame.streamId + " 重复开始");
+                }
+                byte flags = frame.hasFlag(Frame.FLAG_MORE) ? Frame.FLAG_MORE : 0;
+                append(ByteBuffer.wrap(frame.payload), new Frame(Frame.DATA, flags, relay.stream, frame.payload).encode(),
+                        flags != 0);
+            }
+
+            // 图片数据 data 拼接或保存，fragment 为转发给接收者的分片
+            private void append(ByteBuffer data, byte[] fragment, boolean more) throws IOException {
+                length += data.remaining();
+                if (length > Frame.MAX_PAYLOAD) {
+                    abort();
+                    throw new IOException("图片超过单帧负载上限");
+                }
+                relay.append(fragment, !more);
+                if (image != null) {
+                    image.write(data.array(), data.arrayOffset() + data.position(), data.remaining());
+                } else if (blob != null) {
+                    blob.write(data.array(), data.arrayOffset() + data.position(), data.remaining());
+                    if (blob.queued() > Streams.WINDOW) {
+                        abort();
+                        throw new IOException("上传超出流量窗口"); // 窗口在分片写出后才归还，遵守窗口的客户端不会超出
+                    }
+                }
+            }
+
+            // 收完最后一片：记录日志，把整张图片发给其余接收者
+            void finish() throws IOException {
+                Metrics.MESSAGES_IN.increment();
+                Metrics.IMAGES_IN.increment();
+                if (target != null) {
+                    String imagemessage = prefix + "发送了一张图片\n";
+                    events.log(imagemessage); // 更新日志
+                    logToFile(imagemessage);
+                    if (history != null && target.equals(Rooms.LOBBY)) {
+                        history.append(imagemessage); // 消息记录中只保存提示文本
+                    }
+                } else {
+                    events.log("[" + name + "]向[" + receiver + "]发送了一张图片\n"); // 更新日志
+                }
+                List<HandleClient> cut = relay.cut();
+                if (image == null) {
+                    // 图片存储写完文件后再从中读出，发给被放弃的接收者
+                    relay.stored(sender, blob.finish(cut.isEmpty() ? null : hash -> {
+                        byte[] stored = blobs.get(hash);
+                        if (stored != null) {
+                            sendWhole(Packet.image(prefix, sender, ByteBuffer.wrap(stored), hash), cut);
+                        }
+                    }));
+                    return;
+                }
+                ByteBuffer imageData = ByteBuffer.wrap(image.toByteArray());
+                image = null;
+                Packet packet = storeImage(prefix, sender, imageData, null);
+                relay.stored(sender, packet.hash);
+                sendWhole(packet, whole);
+                sendWhole(packet, cut);
+                if (remote && target != null) {
+                    cluster.relayRoomImage(target, prefix, sender, imageData, true);
+                } else if (remote) {
+                    cluster.relayPrivateImage(receiver, sender, imageData);
+                }
+            }
+
+            private void sendWhole(Packet packet, List<HandleClient> clients) {
+                ArrayList<HandleClient> toRemove = new ArrayList<>();
+                for (HandleClient c : clients) {
+                    try {
+                        c.sendPacket(packet);
+                    } catch (IOException e) {
+                        Metrics.SEND_FAILURES.increment();
+                        toRemove.add(c);
+                    }
+                }
+                removeDeadClients(toRemove);
+            }
+
+            // 上传被取消或上传者断开：已开始接收的接收者收到 RESET，临时文件删除
+            void abort() {
+                relay.abort();
+                image = null;
+                if (blob != null) {
+                    blob.abort();
+                    blob = null;
+                }
+            }
+        }
+
+        // 收到一张图片，按摘要保存后生成图片消息
+        private Packet imagePacket(String prefix, String sender, ByteBuffer imageData, String hash) {
+            Metrics.IMAGES_IN.increment();
+            return storeImage(prefix, sender, imageData, hash);
+        }
+
+        // 连接断开时的清理：未正常退出的用户从在线列表中移除
+        void onDisconnect() {
+            if (inflater != null) {
+                inflater.end(); // 释放本地内存
+            }
+            for (ImageUpload upload : uploads.values()) {
+                upload.abort(); // 上传到一半的图片
+            }
+            uploads.clear();
+            if (!park()) {
+                disconnected();
+            }
+        }
+
+        // 用户下线：从在线列表中移除并通知所在的房间
+        private void disconnected() {
+            if (removeClient(this)) {
+                events.log("客户端[" + name + "]连接断开\n"); // 更新日志
+                announce(name + " 退出了聊天室\n"); // 向所在的房间广播用户退出消息
+                logToFile("连接断开: 用户[" + name + "], 时间: " + getCurrentTime() + "\n"); // 记录断线日志
+            }
+        }
+
+        // 列出在线用户给客户端的方法
+        private void listOnlineUsersForClient() {
+            StringBuilder onlineUsers = new StringBuilder("在线用户：");
+            for (HandleClient cc : presence.members()) {
+                onlineUsers.append(cc.name).append(" ");
+            }
+            if (cluster != null) {
+                for (Set<String> remote : cluster.remoteUsers().values()) {
+                    for (String user : remote) {
+                        onlineUsers.append(user).append(" "); // 其他节点上的用户
+                    }
+                }
+            }
+            send(onlineUsers.toString()); // 发送在线用户列表给客户端
+        }
+
+        // 发送消息给客户端的方法
+        public void send(String str) {
+            try {
+                sendText(str); // 发送消息
+            } catch (IOException e) {
+                e.printStackTrace(); // 打印异常信息
+            }
+        }
+
+        // 按客户端协商的协议发送一条文本
+        void sendText(String str) throws IOException {
+            sendPacket(Packet.text(str));
+        }
+
+        // 按客户端协商的协议发送一条消息，编码结果由 Packet 缓存，同一条消息的多个接收者共用
+        void sendPacket(Packet packet) throws IOException {
+            if (blobRefs && packet.hash != null) {
+                transport.write(packet.encodeRef()); // 只发摘要，客户端本地没有时再取回
+            } else {
+                transport.write(packet.encode(framed, deflate), packet.type == Frame.IMAGE);
+            }
+        }
+
+        // 发送登录/注册结果：旧协议发送原有的应答字符串，帧协议发送 RESULT 帧
+        private void sendResult(boolean ok, String legacyReply, String reason) throws IOException {
+            if (framed) {
+                transport.write(Frame.of(Frame.RESULT, ok ? Frame.FLAG_OK : 0, reason).encode());
+            } else {
+                transport.writeUTF(legacyReply);
+            }
+        }
+
+        // 广播消息给当前房间的方法
+        public void broadcast(String str) {
+            // 检查消息大小
+            /*
+             * if (str.length() > MAX_MESSAGE_SIZE) {
+             * System.out.println("警告：消息大小超过限制，可能是非法的大型消息");
+             * return;
+             * }
+             */
+
+            String target = room;
+            if (target != null) {
+                broadcastTo(target, str);
+            }
+        }
+
+        // 广播通知给指定房间，包括其他节点上的成员
+        private void broadcastTo(String target, String str) {
+            publish(target, str, false);
+        }
+
+        // 用户退出时通知其加入的每个房间，大厅之外的房间带房间名前缀
+        private void announce(String str) {
+            for (String r : joined) {
+                broadcastTo(r, roomPrefix(r) + str);
+            }
+        }
+
+        // 大厅的消息不带前缀，与没有房间时的显示相同
+        private static String roomPrefix(String room) {
+            return room.equals(Rooms.LOBBY) ? "" : "#" + room + " ";
+        }
+
+        // 处理私聊消息的方法
+        private void handlePrivateMessage(String message, String sender, String receiver) {
+            String text = "[" + sender + "] 私聊说: " + message + "\n";
+            if (Frame.utfLength(text) > Frame.MAX_UTF) { // 接收者可能使用旧协议
+                send("消息过长，未发送");
+                return;
+            }
+            boolean userFound = false;
+            HandleClient c = presence.find(receiver); // 按用户名直接查找
+            if (c != null) {
+                try {
+                    events.log("[" + sender + "] 对 [" + receiver + "]私聊: " + message + "\n");
+                    c.sendText(text); // 发送私聊消息给接收者
+                    userFound = true;
+                } catch (IOException e) {
+                    Metrics.SEND_FAILURES.increment();
+                    e.printStackTrace(); // 打印异常信息
+                }
+            } else if (cluster != null && cluster.relayPrivateText(receiver, text)) {
+                events.log("[" + sender + "] 对 [" + receiver + "]私聊（转发到其他节点）: " + message + "\n");
+                userFound = true;
+            }
+            if (!userFound) {
+                try {
+                    sendText("用户 [" + receiver + "] 不在线/不存在/为匿名用户  \n"); // 发送用户不在线消息
+                } catch (IOException e) {
+                    e.printStackTrace(); // 打印异常信息
+                }
+            }
+        }
+
+        // 将日志写入文件的方法
+        // 只放进日志队列，由日志写线程批量写入文件，不等待磁盘
+        private void logToFile(String message) {
+            if (!message.trim().isEmpty()) {
+                journal.append(getCurrentTime() + " " + message + System.lineSeparator());
+            }
+        }
+
+        // 获取当前时间的方法，同一秒内复用已格式化的字符串
+        private String getCurrentTime() {
+            return Journal.now();
+        }
+    }
+
+    // 命令行入口：不需要图形界面，可在没有显示器的服务器或容器中运行
+    public static void main(String[] args) throws IOException, InterruptedException {
+        int port = DEFAULT_PORT;
+        String ioMode = DEFAULT_IO_MODE;
+        int ioThreads = DEFAULT_IO_THREADS;
+        boolean quiet = false;
+        String nodeId = Cluster.DEFAULT_NODE_ID;
+        int clusterPort = Cluster.DEFAULT_PORT;
+        String peers = Cluster.DEFAULT_PEERS;
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--port":
+                    port = Integer.parseInt(args[++i]);
+                    break;
+                case "--io":
+                    ioMode = args[++i];
+                    break;
+                case "--io-threads":
+                    ioThreads = Integer.parseInt(args[++i]);
+                    break;
+                case "--quiet":
+                    quiet = true; // 不输出日志，用于压测
+                    break;
+                case "--node":
+                    nodeId = args[++i];
+                    break;
+                case "--cluster-port":
+                    clusterPort = Integer.parseInt(args[++i]);
+                    break;
+                case "--peers":
+                    peers = args[++i];
+                    break;
+                default:
+                    System.err.println("用法: java ChatServer [--port 8080] [--io blocking|virtual|nio]"
+                            + " [--io-threads N] [--quiet] [--node ID --cluster-port N --peers host:port,...]");
+                    System.err.println("其他配置通过 -Dchat.xxx 系统属性设置，见 README");
+                    System.exit(args[i].equals("--help") ? 0 : 2);
+            }
+        }
+        ChatServer server = new ChatServer(port, ioMode, ioThreads, quiet ? Events.QUIET : new StdoutEvents());
+        server.setCluster(nodeId, clusterPort, peers);
+        server.start();
+        // 标准输入上的控制台命令；没有标准输入（如容器中）时一直运行到进程被终止
+        BufferedReader in = new BufferedReader(new InputStreamReader(System.in));
+        String line;
+        while ((line = in.readLine()) != null) {
+            if (line.trim().equals("quit")) {
+                server.stop();
+                System.exit(0); // 关闭钩子写完日志和数据
+            } else if (quiet && line.trim().equals("stats")) {
+                System.out.print(Metrics.report()); // 压测时不输出日志，但仍可查看指标
+            } else if (!line.isBlank() && !server.command(line)) {
+                System.err.println("无效命令，可用命令: list listall queues blobs deflate rooms stats nodes quit");
+            }
+        }
+        Thread.currentThread().join();
+    }
+
+    // 把事件写到标准输出：带缓冲，由后台线程每 200 毫秒刷新一次，消息很多时也不会每条都系统调用
+    static final class StdoutEvents implements Events {
+        private final PrintStream out = new PrintStream(
+                new BufferedOutputStream(new FileOutputStream(FileDescriptor.out), 64 * 1024), false);
+
+        StdoutEvents() {
+            Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "stdout-flush");
+                t.setDaemon(true);
+                return t;
+            }).scheduleWithFixedDelay(out::flush, 200, 200, TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        public void log(String text) {
+            out.print(text);
+        }
+
+        @Override
+        public void onlineChanged(int online) {
+            // 在线人数可以用 list 命令查看，不单独输出
+        }
+    }
+}
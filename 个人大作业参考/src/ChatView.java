@@ -0,0 +1,407 @@
+import javax.swing.*; // 导入用于图形界面的 Swing 库
+import java.awt.*; // 导入用于布局和图形处理的 AWT 库
+import java.awt.event.ComponentAdapter; // 导入组件事件适配器类
+import java.awt.event.ComponentEvent; // 导入组件事件类
+import java.awt.image.BufferedImage; // 导入缓冲图片类
+import java.io.*; // 导入用于输入输出的类
+import java.nio.ByteBuffer; // 导入字节缓冲区类
+import java.util.ArrayDeque; // 导入双端队列类
+import java.util.ArrayList; // 导入数组列表类
+import java.util.Base64; // 导入 Base64 编解码类
+import java.util.List; // 导入列表接口
+import java.util.concurrent.Callable; // 导入有返回值的任务接口
+import java.util.concurrent.CompletableFuture; // 导入可完成的异步结果类
+import java.util.concurrent.ConcurrentLinkedQueue; // 导入无锁并发队列
+import java.util.concurrent.atomic.AtomicBoolean; // 导入原子布尔类
+import java.util.concurrent.locks.ReentrantLock; // 导入可重入锁类
+
+// 客户端的聊天记录视图
+// 基于 JList，只有滚动到可见区域的行才会被绘制。每行只保存紧凑的数据：文本行保存字符串，
+// 图片行保存原始的编码字节和缩略图尺寸。图片由 ImageDecoder 在后台解码缩放，缩略图放在
+// 有大小上限的缓存里，被淘汰后在该行再次被绘制时重新解码。图片字节在内存中超过上限后，
+// 最早的部分转存到临时文件；总行数超过上限后删除最早的行。因此会话持续多久内存占用都基本不变。
+// 列表只在事件分发线程上修改，网络线程只把行放进队列。
+class ChatView {
+    static final int MAX_ROWS = Integer.getInteger("chat.view.rows", 2000); // 保留的历史行数
+    static final long MAX_IMAGE_BYTES = Long.getLong("chat.view.image.bytes", 32L * 1024 * 1024); // 内存中图片字节上限
+    private static final int THUMB_SIZE = 300; // 缩略图最大宽高
+    private static final int PLACEHOLDER_WIDTH = 200; // 解码完成前占位的宽度
+    private static final int PLACEHOLDER_HEIGHT = 40; // 解码完成前占位的高度
+
+    // 一行聊天记录（除注明外只在事件分发线程上访问）
+    private static final class Row {
+        String text; // 文本内容；图片行为 null，解码失败后改为提示文本
+        boolean ready; // 图片行：第一次解码是否已完成，完成前显示占位
+        boolean decoding; // 图片行：是否有解码任务在进行
+        int width = PLACEHOLDER_WIDTH; // 缩略图宽度
+        int height = PLACEHOLDER_HEIGHT; // 缩略图高度
+        byte[] bytes; // 图片编码字节，已转存到临时文件时为 null（由 spillLock 保护）
+        long spillOffset = -1; // 在临时文件中的位置（由 spillLock 保护）
+        int length; // 图片字节数
+
+        Row(String text) {
+            this.text = text;
+        }
+    }
+
+    // 列表模型：按顺序保存所有行（仅在事件分发线程上访问）
+    private final class RowModel extends AbstractListModel<Row> {
+        private final ArrayList<Row> rows = new ArrayList<>();
+
+        @Override
+        public int getSize() {
+            return rows.size();
+        }
+
+        @Override
+        public Row getElementAt(int index) {
+            return rows.get(index);
+        }
+
+        // 行在列表中的下标，已移出历史时返回 -1；最近的行在末尾，从后往前找
+        int indexOf(Row row) {
+            for (int i = rows.size() - 1; i >= 0; i--) {
+                if (rows.get(i) == row) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        // 通知列表某一行的内容或尺寸已变化
+        void changed(Row row) {
+            int index = indexOf(row);
+            if (index >= 0) {
+                fireContentsChanged(this, index, index);
+            }
+        }
+
+        // 在最前面插入若干行，总行数已达上限时只插入其中较新的部分，返回实际插入的行数
+        int prepend(ArrayList<Row> added) {
+            int n = Math.min(added.size(), Math.max(0, MAX_ROWS - rows.size()));
+            if (n == 0) {
+                return 0;
+            }
+            rows.addAll(0, added.subList(added.size() - n, added.size()));
+            fireIntervalAdded(this, 0, n - 1);
+            return n;
+        }
+
+        void addAll(ArrayList<Row> added) {
+            int first = rows.size();
+            rows.addAll(added);
+            fireIntervalAdded(this, first, rows.size() - 1);
+            // 超过上限时一次删除多出的行和额外 10%，避免每来一条都移动整个列表
+            if (rows.size() > MAX_ROWS) {
+                int remove = rows.size() - MAX_ROWS + MAX_ROWS / 10;
+                for (Row row : rows.subList(0, remove)) {
+                    forget(row);
+                }
+                rows.subList(0, remove).clear();
+                fireIntervalRemoved(this, 0, remove - 1);
+            }
+        }
+    }
+
+    private final RowModel model = new RowModel();
+    private final JList<Row> list;
+    private final JScrollPane scrollPane;
+    private final ConcurrentLinkedQueue<Row> pending = new ConcurrentLinkedQueue<>(); // 其他线程加入、等待显示的行
+    private final AtomicBoolean flushScheduled = new AtomicBoolean(false); // 是否已安排显示
+    private final ArrayDeque<Row> inMemory = new ArrayDeque<>(); // 图片字节仍在内存中的行，按加入顺序
+    private long inMemoryBytes = 0; // 内存中的图片字节数
+    private RandomAccessFile spill; // 转存图片字节的临时文件
+    private final ReentrantLock spillLock = new ReentrantLock(); // 保护临时文件和行的图片字节，解码线程也会读取
+    private final ImageDecoder decoder = new ImageDecoder(); // 后台解码和缩略图缓存
+
+    ChatView(Font font) {
+        list = new JList<Row>(model) {
+            @Override
+            public boolean getScrollableTracksViewportWidth() {
+                return true; // 宽度随窗口变化，文本自动换行
+            }
+        };
+        list.setCellRenderer(new RowRenderer(font));
+        list.setSelectionModel(new DefaultListSelectionModel() {
+            @Override
+            public void setSelectionInterval(int index0, int index1) {
+                // 聊天记录不需要选中
+            }
+        });
+        // 宽度变化后各行的换行高度要重新计算
+        list.addComponentListener(new ComponentAdapter() {
+            private int lastWidth = -1;
+
+            @Override
+            public void componentResized(ComponentEvent e) {
+                if (list.getWidth() != lastWidth) {
+                    lastWidth = list.getWidth();
+                    list.setFixedCellHeight(10);
+                    list.setFixedCellHeight(-1);
+                }
+            }
+        });
+        scrollPane = new JScrollPane(list);
+        scrollPane.setHorizontalScrollBarPolicy(ScrollPaneConstants.HORIZONTAL_SCROLLBAR_NEVER);
+    }
+
+    JComponent component() {
+        return scrollPane;
+    }
+
+    // 追加一行文本，可在任意线程调用
+    void addText(String text) {
+        enqueue(new Row(text));
+    }
+
+    // 在最前面插入若干行更早的文本，可在任意线程调用；当前看到的内容保持不动
+    void prependTexts(List<String> texts) {
+        ArrayList<Row> added = new ArrayList<>(texts.size());
+        for (String text : texts) {
+            added.add(new Row(text));
+        }
+        SwingUtilities.invokeLater(() -> {
+            JViewport viewport = scrollPane.getViewport();
+            Point position = viewport.getViewPosition();
+            int n = model.prepend(added);
+            if (n > 0) {
+                Rectangle inserted = list.getCellBounds(0, n - 1);
+                if (inserted != null) {
+                    position.y += inserted.height;
+                    list.revalidate();
+                    viewport.setViewPosition(position); // 插入行的高度加到滚动位置上
+                }
+            }
+        });
+    }
+
+    // 追加一张图片，可在任意线程调用；先按到达顺序放入占位行，解码在后台进行
+    void addImage(ByteBuffer imageBytes) {
+        ByteBuffer data = imageBytes.duplicate();
+        addImage(() -> {
+            byte[] bytes = new byte[data.remaining()];
+            data.get(bytes); // 复制出图片本身，不再引用整个帧负载
+            return bytes;
+        });
+    }
+
+    // 追加一张旧协议的 Base64 图片，Base64 解码也在后台进行
+    void addImage(String base64) {
+        addImage(() -> Base64.getMimeDecoder().decode(base64)); // MIME 解码器会跳过空白字符
+    }
+
+    // 追加一张图片，source 在解码线程上取得图片字节（例如读取本地缓存文件），可在任意线程调用
+    void addImage(Callable<byte[]> source) {
+        Row row = new Row(null);
+        enqueue(row);
+        decode(row, source);
+    }
+
+    // 追加一张尚未到达的图片（例如正在向服务器请求），先显示占位，数据到达后再解码；
+    // future 的结果为 null 或异常结束时显示失败提示
+    void addImage(CompletableFuture<byte[]> future) {
+        Row row = new Row(null);
+        enqueue(row);
+        future.whenComplete((bytes, error) -> decode(row, () -> error == null ? bytes : null));
+    }
+
+    private void decode(Row row, Callable<byte[]> source) {
+        if (!decoder.submit(row, source, THUMB_SIZE, result -> onDecoded(row, result))) {
+            SwingUtilities.invokeLater(() -> onDecoded(row, new ImageDecoder.Result(null, null)));
+        }
+    }
+
+    // 第一次解码完成（事件分发线程）：记录尺寸和字节，刷新该行
+    private void onDecoded(Row row, ImageDecoder.Result result) {
+        boolean atBottom = isAtBottom();
+        row.ready = true;
+        if (result.thumb == null) {
+            row.text = result.bytes == null ? "图片过多或读取失败，已跳过" : "图片数据无效";
+        } else {
+            row.width = result.thumb.getWidth();
+            row.height = result.thumb.getHeight();
+            row.length = result.bytes.length;
+            spillLock.lock();
+            try {
+                row.bytes = result.bytes;
+            } finally {
+                spillLock.unlock();
+            }
+            if (model.indexOf(row) >= 0) {
+                inMemory.addLast(row);
+                inMemoryBytes += row.length;
+                spillIfNeeded();
+            }
+        }
+        model.changed(row);
+        if (atBottom) {
+            list.ensureIndexIsVisible(model.getSize() - 1);
+        }
+    }
+
+    // 缩略图已被缓存淘汰时，在后台重新解码，完成后重绘该行
+    private void redecode(Row row) {
+        if (row.decoding) {
+            return;
+        }
+        row.decoding = true;
+        boolean submitted = decoder.submit(row, () -> readBytes(row), THUMB_SIZE, result -> {
+            row.decoding = false;
+            model.changed(row);
+        });
+        if (!submitted) {
+            row.decoding = false; // 队列已满，下次绘制时再试
+        }
+    }
+
+    // 读取一行的图片字节（解码线程调用），已移出历史时返回 null
+    private byte[] readBytes(Row row) throws IOException {
+        spillLock.lock();
+        try {
+            if (row.bytes != null) {
+                return row.bytes;
+            }
+            if (row.spillOffset < 0) {
+                return null;
+            }
+            byte[] bytes = new byte[row.length];
+            spill.seek(row.spillOffset);
+            spill.readFully(bytes);
+            return bytes;
+        } finally {
+            spillLock.unlock();
+        }
+    }
+
+    // 滚动条是否在最底部，是的话新内容到达后继续跟随
+    private boolean isAtBottom() {
+        JScrollBar bar = scrollPane.getVerticalScrollBar();
+        return bar.getValue() + bar.getVisibleAmount() >= bar.getMaximum() - 4;
+    }
+
+    // 放入待显示队列，同一批到达的行在事件分发线程上一次加入列表
+    private void enqueue(Row row) {
+        pending.add(row);
+        if (flushScheduled.compareAndSet(false, true)) {
+            SwingUtilities.invokeLater(this::flush);
+        }
+    }
+
+    private void flush() {
+        flushScheduled.set(false);
+        ArrayList<Row> added = new ArrayList<>();
+        Row row;
+        while ((row = pending.poll()) != null) {
+            added.add(row);
+        }
+        if (added.isEmpty()) {
+            return;
+        }
+        model.addAll(added);
+        list.ensureIndexIsVisible(model.getSize() - 1); // 自动滚动到底部
+    }
+
+    // 内存中的图片字节超过上限时，把最早的图片转存到临时文件
+    private void spillIfNeeded() {
+        while (inMemoryBytes > MAX_IMAGE_BYTES && !inMemory.isEmpty()) {
+            Row row = inMemory.removeFirst();
+            try {
+                if (spill == null) {
+                    File file = File.createTempFile("chat-images", ".bin");
+                    file.deleteOnExit();
+                    spill = new RandomAccessFile(file, "rw");
+                }
+                spillLock.lock();
+                try {
+                    long offset = spill.length();
+                    spill.seek(offset);
+                    spill.write(row.bytes);
+                    row.spillOffset = offset;
+                    row.bytes = null;
+                } finally {
+                    spillLock.unlock();
+                }
+            } catch (IOException e) {
+                e.printStackTrace(); // 转存失败则继续留在内存中
+                inMemory.addFirst(row);
+                return;
+            }
+            inMemoryBytes -= row.length;
+        }
+    }
+
+    // 行被移出历史时释放其占用的内存
+    private void forget(Row row) {
+        decoder.evict(row);
+        if (inMemory.remove(row)) {
+            inMemoryBytes -= row.length;
+        }
+        spillLock.lock();
+        try {
+            row.bytes = null;
+            row.spillOffset = -1;
+        } finally {
+            spillLock.unlock();
+        }
+    }
+
+    // 图片行的图标：只绘制已缓存的缩略图，不在事件分发线程上解码
+    private final class LazyIcon implements Icon {
+        Row row;
+
+        @Override
+        public void paintIcon(Component c, Graphics g, int x, int y) {
+            BufferedImage thumb = row.ready ? decoder.cached(row) : null;
+            if (thumb != null) {
+                g.drawImage(thumb, x, y, null);
+                return;
+            }
+            if (row.ready) {
+                redecode(row); // 缩略图已被淘汰
+            }
+            g.setColor(Color.LIGHT_GRAY);
+            g.drawRect(x, y, row.width - 1, row.height - 1);
+            g.drawString("图片加载中…", x + 8, y + row.height / 2 + 5);
+        }
+
+        @Override
+        public int getIconWidth() {
+            return row.width;
+        }
+
+        @Override
+        public int getIconHeight() {
+            return row.height;
+        }
+    }
+
+    // 绘制一行：文本用自动换行的文本区域，图片用延迟解码的图标
+    private final class RowRenderer implements ListCellRenderer<Row> {
+        private final JTextArea textCell = new JTextArea();
+        private final JLabel imageCell = new JLabel();
+        private final LazyIcon icon = new LazyIcon();
+
+        RowRenderer(Font font) {
+            textCell.setFont(font);
+            textCell.setLineWrap(true);
+            textCell.setWrapStyleWord(false);
+            textCell.setEditable(false);
+            imageCell.setIcon(icon);
+            imageCell.setBorder(BorderFactory.createEmptyBorder(2, 0, 2, 0));
+        }
+
+        @Override
+        public Component getListCellRendererComponent(JList<? extends Row> list, Row row, int index,
+                boolean isSelected, boolean cellHasFocus) {
+            if (row.text == null) {
+                icon.row = row;
+                return imageCell;
+            }
+            textCell.setText(row.text);
+            // 按列表当前宽度计算换行后的高度；还没有布局时先不换行，布局后由 componentResized 重新计算
+            int width = list.getWidth() > 0 ? list.getWidth() : Short.MAX_VALUE;
+            textCell.setSize(width, Short.MAX_VALUE);
+            return textCell;
+        }
+    }
+}
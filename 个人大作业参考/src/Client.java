@@ -1,15 +1,26 @@
 import javax.swing.*; // Swing GUI组件
-import javax.swing.text.*;
 import java.awt.*; // AWT组件
-import java.awt.image.BufferedImage;
-import javax.imageio.ImageIO;
 import javax.swing.filechooser.FileNameExtensionFilter;
 import java.io.*;
 import java.util.Base64;
 import java.net.*;
+import java.nio.ByteBuffer;
 import java.awt.event.*;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
+import java.util.List;
+import java.nio.file.Paths;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.Inflater;
 
 // 客户端主类，继承JFrame并实现KeyListener接口
 public class Client extends JFrame implements KeyListener {
@@ -19,80 +30,86 @@ public class Client extends JFrame implements KeyListener {
     private boolean isAnonymous = false; // 是否选择匿名聊天模式
 
     // GUI组件声明
-    private JTextPane jta; // 用于显示聊天信息的文本区域
+    private ChatView chatView; // 聊天记录视图，只绘制可见的行，历史有上限
 
-    // 添加显示消息的方法
+    // 添加显示消息的方法，可在任意线程调用
     private void appendMessage(String message) {
-        StyledDocument doc = jta.getStyledDocument();
-        try {
-            doc.insertString(doc.getLength(), message + "\n", null);
-            jta.setCaretPosition(doc.getLength()); // 自动滚动到底部
-        } catch (BadLocationException e) {
-            e.printStackTrace();
-        }
-    }
-
-    // 添加显示图片的方法
-    private void appendImage(BufferedImage image) {
-        StyledDocument doc = jta.getStyledDocument();
-        Style style = jta.addStyle("Image", null);
-
-        // 如果图片过大，进行缩放
-        int maxWidth = 300; // 最大显示宽度
-        int maxHeight = 300; // 最大显示高度
-
-        int width = image.getWidth();
-        int height = image.getHeight();
-
-        if (width > maxWidth || height > maxHeight) {
-            double scale = Math.min((double) maxWidth / width, (double) maxHeight / height);
-            width = (int) (width * scale);
-            height = (int) (height * scale);
-
-            Image scaledImage = image.getScaledInstance(width, height, Image.SCALE_SMOOTH);
-            ImageIcon icon = new ImageIcon(scaledImage);
-            StyleConstants.setIcon(style, icon);
-        } else {
-            StyleConstants.setIcon(style, new ImageIcon(image));
-        }
-
-        try {
-            doc.insertString(doc.getLength(), "invisible text", style);
-            doc.insertString(doc.getLength(), "\n", null);
-            jta.setCaretPosition(doc.getLength());
-        } catch (BadLocationException e) {
-            e.printStackTrace();
-        }
+        chatView.addText(message);
     }
 
-    private JScrollPane jsp; // 滚动面板，用于显示文本区域
     private JPanel jp; // 面板，用于放置输入文本框和发送按钮
     private JTextField jtf; // 输入消息的文本框
     private JTextField modeSelector;
     private JButton jb1; // 发送消息的按钮
     private JButton jbImage; // 发送图片按钮
+    private JProgressBar progressBar; // 图片发送进度
+    private JButton cancelBtn; // 取消发送图片按钮
+    private JButton olderBtn; // 加载更早的消息按钮
 
     private Socket socket = null; // 套接字对象
     private static final String CONNSTR = "127.0.0.1"; // 连接服务器的IP地址
     private static final int CONNPORT = 8080; // 连接服务器的端口号
     private DataOutputStream dos = null; // 数据输出流
+    private DataInputStream dis = null; // 数据输入流
+    private boolean framed = false; // 是否与服务器协商使用二进制帧协议
+    // 保护输出流的锁：其他消息不能夹在一帧或旧协议的分块中间。分片上传时每写一个分片就释放一次，
+    // 公平锁保证等待中的文字消息排在图片的下一个分片前面
+    private final ReentrantLock writeLock = new ReentrantLock(true);
+    // 发送文字消息的后台线程，图片上传期间界面不会因等待写锁而卡住
+    private final ExecutorService outbound = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "client-sender");
+        t.setDaemon(true);
+        return t;
+    });
+    private static final int UPLOAD_SLICE = 64 * 1024; // 上传图片时每次写入的字节数，用于报告进度
+    private SendImageTask sendingTask; // 正在发送的图片
+    // 本地图片缓存目录和总大小上限，收发过的图片按摘要保存，重复的图片不再下载
+    private static final String CACHE_DIR = System.getProperty("chat.cache.dir",
+            System.getProperty("user.home") + File.separator + ".chatroom-cache");
+    private static final long CACHE_BYTES = Long.getLong("chat.cache.bytes", 128L * 1024 * 1024);
+    private static final int OFFER_TIMEOUT_SECONDS = 10; // 等待服务器答复图片摘要的时间，超时后照常上传
+    private BlobStore imageCache; // 本地图片缓存，打开失败时为 null
+    private boolean blobs = false; // 服务器是否支持图片去重
+    private boolean deflate = false; // 是否与服务器协商压缩文本帧
+    private boolean history = false; // 服务器是否以 HISTORY 帧发送历史消息
+    private boolean streams = false; // 是否与服务器协商分片传输
+    private volatile Streams.Window window = new Streams.Window(); // 上传图片的各流剩余的窗口，重新连接时换新
+    private Streams.Assembler assembler = new Streams.Assembler(); // 拼接服务器分片发来的帧，只在接收线程上使用
+    private boolean resume = false; // 是否与服务器协商会话恢复
+    private String sessionToken; // 服务器发来的会话令牌，只在接收线程上使用
+    private long sessionGrace; // 断线后服务器保留会话的毫秒数
+    private long received = 0; // 本会话已收到的消息数，只在接收线程上使用
+    private String password; // 会话无法恢复时重新登录用
+    private volatile boolean exiting = false; // 用户主动退出，连接断开后不再重连
+    private int nextStream = 1; // 下一个上传流的 ID，客户端发起的流为奇数，同时只有一个上传
+    private volatile long oldestSeq = -1; // 已显示的最早一条历史消息的序号
+    private static final int HISTORY_PAGE = 50; // 每次加载的更早消息数
+    private final Inflater inflater = Compression.newInflater(); // 解压服务器发来的帧，只在接收线程上使用
+    // 已发出摘要、等待服务器答复的图片：摘要 → 服务器是否已有
+    private final ConcurrentHashMap<String, CompletableFuture<Boolean>> offers = new ConcurrentHashMap<>();
+    // 正在向服务器取回的图片，同一张图片同时只请求一次
+    private final ConcurrentHashMap<String, CompletableFuture<byte[]>> fetches = new ConcurrentHashMap<>();
 
     // 客户端构造函数
     public Client() {
-        jta = new JTextPane();
-        jta.setEditable(false);
-        jta.setFont(new Font("微软雅黑", Font.PLAIN, 20));
-        StyledDocument doc = jta.getStyledDocument();
-        SimpleAttributeSet center = new SimpleAttributeSet();
-        StyleConstants.setAlignment(center, StyleConstants.ALIGN_LEFT);
-        doc.setParagraphAttributes(0, doc.getLength(), center, false);
-
-        jsp = new JScrollPane(jta);
+        chatView = new ChatView(new Font("微软雅黑", Font.PLAIN, 20));
         jp = new JPanel();
         jtf = new JTextField();
         modeSelector = new JTextField();
         jb1 = new JButton("发送信息");
         jbImage = new JButton("发送图片");
+        progressBar = new JProgressBar(0, 100);
+        progressBar.setStringPainted(true);
+        progressBar.setVisible(false);
+        cancelBtn = new JButton("取消");
+        cancelBtn.setVisible(false);
+        olderBtn = new JButton("加载更早的消息");
+        olderBtn.setVisible(false); // 收到历史消息后才显示
+        try {
+            imageCache = new BlobStore(Paths.get(CACHE_DIR), CACHE_BYTES);
+        } catch (IOException e) {
+            System.err.println("本地图片缓存不可用: " + e.getMessage());
+        }
     }
 
     // 初始化方法，设置GUI界面和连接服务器
@@ -107,6 +124,8 @@ public class Client extends JFrame implements KeyListener {
         jp.add(jtf);
         jp.add(jb1);
         jp.add(jbImage);
+        jp.add(progressBar);
+        jp.add(cancelBtn);
         jtf.addKeyListener(this);
         jb1.addActionListener(new ActionListener() {
             @Override
@@ -133,7 +152,16 @@ public class Client extends JFrame implements KeyListener {
             }
         });
 
-        this.add(jsp, BorderLayout.CENTER); // 将滚动面板添加到窗口中间位置
+        cancelBtn.addActionListener(e -> {
+            if (sendingTask != null) {
+                sendingTask.cancel(true); // 中断编码；分片上传时同时放弃已开始的上传
+            }
+        });
+
+        olderBtn.addActionListener(e -> loadOlder());
+
+        this.add(olderBtn, BorderLayout.NORTH); // 将加载更早消息的按钮添加到窗口顶部
+        this.add(chatView.component(), BorderLayout.CENTER); // 将聊天记录视图添加到窗口中间位置
         this.add(jp, BorderLayout.SOUTH); // 将面板添加到窗口底部位置
 
         this.setBounds(700, 300, 600, 600); // 设置窗口位置和大小
@@ -141,10 +169,10 @@ public class Client extends JFrame implements KeyListener {
         this.addWindowListener(new WindowAdapter() {
             @Override
             public void windowClosing(WindowEvent e) {
+                exiting = true;
                 try {
                     if (dos != null) {
-                        dos.writeUTF("##exit"); // 发送退出命令给服务器
-                        dos.flush();
+                        sendCommand("exit", "##exit"); // 发送退出命令给服务器
                     }
                     if (socket != null) {
                         socket.close(); // 关闭套接字
@@ -159,6 +187,9 @@ public class Client extends JFrame implements KeyListener {
         try {
             socket = new Socket(CONNSTR, CONNPORT);
             isConn = true;
+            dos = new DataOutputStream(socket.getOutputStream());
+            dis = new DataInputStream(socket.getInputStream());
+            negotiateProtocol(); // 协商使用二进制帧协议
 
             // 创建登录界面组件
             JPanel loginPanel = new JPanel();
@@ -300,12 +331,15 @@ public class Client extends JFrame implements KeyListener {
                     }
 
                     try {
-                        dos = new DataOutputStream(socket.getOutputStream());
-                        dos.writeUTF("REGISTER:" + newUsername + "," + newPassword);
-                        dos.flush();
-
-                        DataInputStream dis = new DataInputStream(socket.getInputStream());
-                        String response = dis.readUTF();
+                        String response;
+                        if (framed) {
+                            writeFrame(Frame.of(Frame.REGISTER, newUsername, newPassword));
+                            Frame result = Frame.read(dis);
+                            response = result.hasFlag(Frame.FLAG_OK) ? "register_success" : result.reader().string();
+                        } else {
+                            writeUTF("REGISTER:" + newUsername + "," + newPassword);
+                            response = dis.readUTF();
+                        }
 
                         if (response.equals("register_success")) {
                             JOptionPane.showMessageDialog(registerDialog, "注册成功！请返回登录。");
@@ -332,15 +366,18 @@ public class Client extends JFrame implements KeyListener {
                 }
 
                 try {
-                    dos = new DataOutputStream(socket.getOutputStream());
-                    dos.writeUTF(username + "," + password);
-                    dos.flush();
-
-                    DataInputStream dis = new DataInputStream(socket.getInputStream());
-                    String response = dis.readUTF();
+                    boolean success;
+                    if (framed) {
+                        writeFrame(Frame.of(Frame.LOGIN, username, password));
+                        success = Frame.read(dis).hasFlag(Frame.FLAG_OK);
+                    } else {
+                        writeUTF(username + "," + password);
+                        success = dis.readUTF().equals("success");
+                    }
 
-                    if (response.equals("success")) {
+                    if (success) {
                         name = username;
+                        Client.this.password = password;
                         loginDialog.dispose();
                     } else {
                         JOptionPane.showMessageDialog(loginDialog, "用户名或密码错误，请重新输入。");
@@ -368,37 +405,127 @@ public class Client extends JFrame implements KeyListener {
         }
     }
 
-    // 发送消息到服务器
-    private void sendMessage(String str) {
+    // 与服务器协商协议：服务器支持时改用二进制帧，旧服务器不会应答，超时后继续使用字符串协议
+    private void negotiateProtocol() throws IOException {
+        writeUTF(Frame.HELLO + Frame.VERSION);
+        socket.setSoTimeout(2000);
         try {
-            if (jtf.getText().length() == 0) {
-                appendMessage("请输入消息内容!");
-                return; // 如果文本输入框为空，直接返回
-            }
-            String mode = modeSelector.getText();
-            if ((!mode.isEmpty() && !mode.startsWith("@")) || mode.equals("@")) {
-                appendMessage("无效的命令格式,请重新输入");
+            String reply = dis.readUTF();
+            framed = reply.startsWith(Frame.HELLO_OK);
+            List<String> caps = Arrays.asList(reply.split(";")); // 版本号之后是服务器支持的能力
+            blobs = framed && imageCache != null && caps.contains(Frame.CAP_BLOB);
+            deflate = framed && caps.contains(Frame.CAP_DEFLATE);
+            history = framed && caps.contains(Frame.CAP_HISTORY);
+            streams = framed && caps.contains(Frame.CAP_STREAMS);
+            resume = framed && caps.contains(Frame.CAP_RESUME);
+        } catch (SocketTimeoutException e) {
+            framed = false;
+        } finally {
+            socket.setSoTimeout(0);
+        }
+        if (blobs) {
+            writeFrame(Frame.of(Frame.COMMAND, Frame.CAP_BLOB)); // 告知服务器本地有图片缓存，转发图片时只发摘要
+        }
+        if (deflate) {
+            writeFrame(Frame.of(Frame.COMMAND, Frame.CAP_DEFLATE)); // 双方都可以发送压缩的文本帧
+        }
+        if (history) {
+            writeFrame(Frame.of(Frame.COMMAND, Frame.CAP_HISTORY)); // 登录后的回放以 HISTORY 帧发送，显示原始时间
+        }
+        if (streams) {
+            writeFrame(Frame.of(Frame.COMMAND, Frame.CAP_STREAMS)); // 图片拆成分片收发，文字消息不必等整张图片
+        }
+        if (resume) {
+            writeFrame(Frame.of(Frame.COMMAND, Frame.CAP_RESUME)); // 登录后服务器发来会话令牌，断线后可以恢复
+        }
+    }
+
+    // 发送一帧到服务器，协商了压缩时文本帧先压缩
+    private void writeFrame(Frame frame) throws IOException {
+        if (deflate && (frame.type == Frame.TEXT || frame.type == Frame.PRIVATE)) {
+            frame = frame.deflated();
+        }
+        writeLock.lock();
+        try {
+            frame.write(dos);
+            dos.flush();
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    // 发送已编码的数据，如分片和流上的控制帧
+    private void writeBytes(byte[] data) throws IOException {
+        writeLock.lock();
+        try {
+            dos.write(data);
+            dos.flush();
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    // 以 writeUTF 格式发送一条字符串消息
+    private void writeUTF(String str) throws IOException {
+        writeLock.lock();
+        try {
+            dos.writeUTF(str);
+            dos.flush();
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    // 发送一条命令：帧协议发送命令名，字符串协议发送原有的命令字符串
+    private void sendCommand(String command, String legacyCommand) throws IOException {
+        if (framed) {
+            writeFrame(Frame.of(Frame.COMMAND, command));
+        } else {
+            writeUTF(legacyCommand);
+        }
+    }
+
+    // 发送消息到服务器：检查格式后交给发送线程写出，不在界面线程上等待网络
+    private void sendMessage(String str) {
+        if (jtf.getText().length() == 0) {
+            appendMessage("请输入消息内容!");
+            return; // 如果文本输入框为空，直接返回
+        }
+        String mode = modeSelector.getText();
+        if ((!mode.isEmpty() && !mode.startsWith("@")) || mode.equals("@")) {
+            appendMessage("无效的命令格式,请重新输入");
+            return;
+        }
+        if (mode.startsWith("@")) {
+            str = mode + "：" + str;
+        }
+
+        String message = str;
+        if (message.startsWith("@")) { // 如果消息以"@"开头，表示私聊消息
+            String[] parts = message.substring(1).split("：", 2); // 拆分消息，格式为@接收者：消息内容
+            if (parts.length != 2) {
+                appendMessage("无效的私聊格式: " + message); // 显示无效私聊格式提示
                 return;
             }
-            if (mode.startsWith("@")) {
-                str = mode + "：" + str;
-            }
-
-            if (str.startsWith("@")) { // 如果消息以"@"开头，表示私聊消息
-                String[] parts = str.substring(1).split("：", 2); // 拆分消息，格式为@接收者：消息内容
-                if (parts.length == 2) {
-                    dos.writeUTF("@" + parts[0] + "：" + parts[1]); // 发送私聊消息给服务器
-                    dos.flush(); // 刷新输出流
+        }
+        outbound.execute(() -> {
+            try {
+                if (message.startsWith("@")) {
+                    String[] parts = message.substring(1).split("：", 2);
+                    if (framed) {
+                        writeFrame(Frame.of(Frame.PRIVATE, parts[0], parts[1])); // 发送私聊帧给服务器
+                    } else {
+                        writeUTF("@" + parts[0] + "：" + parts[1]); // 发送私聊消息给服务器
+                    }
+                } else if (framed) {
+                    writeFrame(Frame.of(Frame.TEXT, message)); // 发送普通消息帧给服务器
                 } else {
-                    appendMessage("无效的私聊格式: " + str); // 显示无效私聊格式提示
+                    writeUTF(message); // 发送普通消息给服务器
                 }
-            } else {
-                dos.writeUTF(str); // 发送普通消息给服务器
-                dos.flush(); // 刷新输出流
+            } catch (IOException e) {
+                e.printStackTrace(); // 打印异常信息
             }
-        } catch (IOException e) {
-            e.printStackTrace(); // 打印异常信息
-        }
+        });
     }
 
     // 处理系统命令
@@ -406,20 +533,21 @@ public class Client extends JFrame implements KeyListener {
         try {
             command = "@@" + command;
             if (command.equals("@@list")) { // 如果命令是@@list，请求获取在线用户列表
-                dos.writeUTF(command); // 发送命令给服务器
-                dos.flush(); // 刷新输出流
+                sendCommand("list", command); // 发送命令给服务器
             } else if (command.equals("@@quit")) { // 如果命令是@@quit，请求退出聊天室
-                dos.writeUTF(command); // 发送命令给服务器
-                dos.flush(); // 刷新输出流
+                exiting = true;
+                sendCommand("quit", command); // 发送命令给服务器
                 socket.close(); // 关闭套接字
                 System.exit(0); // 退出程序
             } else if (command.equals("@@showanonymous")) { // 如果命令是@@showanonymous，显示当前聊天方式
                 appendMessage("当前聊天方式为:" + (isAnonymous ? "匿名" : "实名")); // 显示当前聊天方式
             } else if (command.equals("@@anonymous")) { // 如果命令是@@anonymous，切换聊天方式
                 isAnonymous = !isAnonymous; // 切换匿名聊天模式状态
-                dos.writeUTF(command); // 发送命令给服务器
-                dos.flush(); // 刷新输出流
+                sendCommand("anonymous", command); // 发送命令给服务器
                 appendMessage("聊天方式已切换为:" + (isAnonymous ? "匿名" : "实名")); // 显示切换后的聊天方式
+            } else if (command.startsWith("@@join ") || command.equals("@@leave") || command.startsWith("@@leave ")
+                    || command.equals("@@rooms")) { // 加入、离开房间和列出房间，结果由服务器返回
+                sendCommand(command.substring(2), command);
             } else {
                 appendMessage("无效的系统命令，请重新输入"); // 显示无效系统命令提示
             }
@@ -462,32 +590,183 @@ public class Client extends JFrame implements KeyListener {
         String actualContent = colonIndex != -1 ? message.substring(colonIndex + 1) : message;
         if (actualContent.startsWith("[IMG]")) {
             // 处理图片消息
+            int bar = actualContent.indexOf('|');
+            if (bar < 0) {
+                appendMessage(timePrefix + "处理图片消息失败: 缺少图片数据");
+                return;
+            }
+            String sender = actualContent.substring(5, bar); // 去掉[IMG]前缀
+            appendMessage(timePrefix + sender + " 发送了一张图片:");
+            // Base64 解码、图片解码和缩放都交给后台解码线程，网络线程继续读取后续消息
+            chatView.addImage(actualContent.substring(bar + 1));
+        } else {
+            // 处理普通文本消息
+            appendMessage(timePrefix + message);
+        }
+    }
+
+    // 显示收到的图片，图片数据为原始的编码字节（PNG/JPEG 等）
+    private void handleReceivedImage(String sender, ByteBuffer imageBytes) {
+        SimpleDateFormat sdf = new SimpleDateFormat("HH:mm:ss");
+        String timePrefix = "[" + sdf.format(new Date()) + "] ";
+        appendMessage(timePrefix + sender + " 发送了一张图片:");
+        chatView.addImage(imageBytes); // 在后台解码和缩放，完成后显示
+    }
+
+    // 显示历史消息：登录后的回放追加在末尾，请求的更早消息插入到最前面
+    private void handleHistory(Frame frame, Frame.Reader r) throws IOException {
+        boolean more = r.string().equals("1");
+        SimpleDateFormat sdf = new SimpleDateFormat("MM-dd HH:mm");
+        List<String> lines = new ArrayList<>();
+        long first = -1;
+        while (r.hasRemaining()) {
+            long seq = Long.parseLong(r.string());
+            long time = Long.parseLong(r.string());
+            String text = r.string();
+            if (first < 0) {
+                first = seq;
+            }
+            lines.add("[" + sdf.format(new Date(time)) + "] " + text);
+        }
+        if (frame.hasFlag(Frame.FLAG_OLDER)) {
+            chatView.prependTexts(lines);
+        } else {
+            for (String line : lines) {
+                appendMessage(line);
+            }
+            appendMessage("—— 以上为历史消息 ——\n");
+        }
+        if (first >= 0) {
+            oldestSeq = first;
+        }
+        SwingUtilities.invokeLater(() -> {
+            olderBtn.setVisible(true);
+            olderBtn.setEnabled(more);
+            olderBtn.setText(more ? "加载更早的消息" : "没有更早的消息了");
+        });
+    }
+
+    // 向服务器请求更早的一页消息
+    private void loadOlder() {
+        if (oldestSeq < 0) {
+            return;
+        }
+        olderBtn.setEnabled(false); // 收到回复后再启用
+        long before = oldestSeq;
+        outbound.execute(() -> {
             try {
-                String[] parts = actualContent.split("\\|");
-                String sender = parts[0].substring(5); // 去掉[IMG]前缀
-                appendMessage(timePrefix + sender + " 发送了一张图片:");
+                writeFrame(Frame.of(Frame.HISTORY, String.valueOf(before), String.valueOf(HISTORY_PAGE)));
+            } catch (IOException e) {
+                appendMessage("加载更早的消息失败: " + e.getMessage());
+            }
+        });
+    }
 
-                // 清理Base64字符串
-                String base64Image = parts[1].trim().replaceAll("\\s+", ""); // 移除所有空白字符
+    // 显示只带摘要的图片：本地缓存中有时直接读取，没有时向服务器取回
+    private void handleImageRef(String sender, String hash) {
+        SimpleDateFormat sdf = new SimpleDateFormat("HH:mm:ss");
+        String timePrefix = "[" + sdf.format(new Date()) + "] ";
+        appendMessage(timePrefix + sender + " 发送了一张图片:");
+        if (imageCache.contains(hash)) {
+            chatView.addImage(() -> {
+                byte[] bytes = imageCache.get(hash); // 在解码线程上读取缓存文件
+                return bytes != null ? bytes : fetch(hash).get(30, TimeUnit.SECONDS); // 刚好被淘汰时再取回
+            });
+        } else {
+            chatView.addImage(fetch(hash)); // 先显示占位，取回后解码
+        }
+    }
 
-                // 解码Base64图片数据
+    // 向服务器请求一张图片，返回图片到达时完成的结果
+    private CompletableFuture<byte[]> fetch(String hash) {
+        return fetches.computeIfAbsent(hash, h -> {
+            CompletableFuture<byte[]> future = new CompletableFuture<>();
+            outbound.execute(() -> {
                 try {
-                    byte[] imageBytes = Base64.getDecoder().decode(base64Image);
-                    BufferedImage image = ImageIO.read(new ByteArrayInputStream(imageBytes));
-                    if (image != null) {
-                        appendImage(image);
-                    } else {
-                        appendMessage(timePrefix + "图片数据无效");
-                    }
-                } catch (IllegalArgumentException e) {
-                    appendMessage(timePrefix + "Base64解码失败: " + e.getMessage());
+                    writeFrame(Frame.of(Frame.IMAGE_FETCH, h));
+                } catch (IOException e) {
+                    fetches.remove(h, future);
+                    future.completeExceptionally(e);
                 }
-            } catch (IOException | ArrayIndexOutOfBoundsException e) {
-                appendMessage(timePrefix + "处理图片消息失败: " + e.getMessage());
+            });
+            return future;
+        });
+    }
+
+    // 收到取回的图片：校验摘要后存入本地缓存，再交给等待的占位行
+    private void handleImageBlob(Frame frame, String hash, ByteBuffer data) {
+        CompletableFuture<byte[]> future = fetches.remove(hash);
+        byte[] bytes = null;
+        if (frame.hasFlag(Frame.FLAG_OK) && hash.equals(BlobStore.hash(data))) {
+            bytes = new byte[data.remaining()];
+            data.get(bytes);
+            imageCache.put(hash, bytes);
+        }
+        if (future != null) {
+            future.complete(bytes); // null 时占位行显示失败提示
+        }
+    }
+
+    // 处理服务器发来的一帧
+    private boolean handleReceivedFrame(Frame frame) throws IOException {
+        if (frame.type == Frame.WINDOW) {
+            window.grant(frame.streamId, Integer.parseInt(frame.reader().string()));
+            return true;
+        }
+        if (frame.streamId != 0) {
+            if (frame.type == Frame.RESET) {
+                assembler.reset(frame.streamId);
+                return true;
             }
-        } else {
-            // 处理普通文本消息
-            appendMessage(timePrefix + message);
+            Frame whole = assembler.accept(frame);
+            writeBytes(Frame.of(Frame.WINDOW, String.valueOf(frame.payload.length)).withStream(frame.streamId));
+            if (whole == null) {
+                return true; // 图片还没收完，其间的文字消息照常显示
+            }
+            frame = whole;
+        }
+        frame = frame.inflated(inflater);
+        if (Session.counted(frame.type) && ++received % Session.ACK_EVERY == 0 && sessionToken != null) {
+            writeFrame(Frame.of(Frame.ACK, String.valueOf(received))); // 服务器丢弃已确认的消息
+        }
+        Frame.Reader r = frame.reader();
+        switch (frame.type) {
+            case Frame.SESSION:
+                sessionToken = r.string();
+                sessionGrace = Long.parseLong(r.string());
+                received = 0;
+                return true;
+            case Frame.TEXT:
+                handleReceivedMessage(r.string());
+                return true;
+            case Frame.IMAGE:
+                String sender = r.string();
+                handleReceivedImage(sender, r.rest());
+                return true;
+            case Frame.IMAGE_REF: {
+                String refSender = r.string();
+                handleImageRef(refSender, r.string());
+                return true;
+            }
+            case Frame.IMAGE_BLOB: {
+                String hash = r.string();
+                handleImageBlob(frame, hash, r.rest());
+                return true;
+            }
+            case Frame.HISTORY:
+                handleHistory(frame, r);
+                return true;
+            case Frame.IMAGE_NEED: {
+                CompletableFuture<Boolean> offer = offers.remove(r.string());
+                if (offer != null) {
+                    offer.complete(frame.hasFlag(Frame.FLAG_OK));
+                }
+                return true;
+            }
+            case Frame.COMMAND:
+                return !r.string().equals("exit"); // 服务器要求退出
+            default:
+                return true;
         }
     }
 
@@ -500,7 +779,20 @@ public class Client extends JFrame implements KeyListener {
         @Override
         public void run() {
             try {
-                DataInputStream dis = new DataInputStream(socket.getInputStream());
+                while (isConn && framed) {
+                    Frame frame;
+                    try {
+                        frame = Frame.read(dis);
+                    } catch (IOException e) {
+                        if (exiting || sessionToken == null || !reconnect()) {
+                            throw e;
+                        }
+                        continue;
+                    }
+                    if (!handleReceivedFrame(frame)) {
+                        return;
+                    }
+                }
                 while (isConn) {
                     String message = dis.readUTF();
 
@@ -538,8 +830,69 @@ public class Client extends JFrame implements KeyListener {
                 appendMessage("服务器终止");
             } catch (IOException e) {
                 e.printStackTrace();
+            } finally {
+                window.close(); // 唤醒等待窗口的上传
+            }
+        }
+    }
+
+    // 连接意外断开后，在服务器保留会话的时间内重新连接。每次重试前等待随机的一段时间，上限逐次加倍，
+    // 服务器重启时大量客户端不会同时涌入。会话还在时一次往返即可恢复，服务器补发断线期间的消息；
+    // 会话已过期时改为重新登录。返回 false 表示放弃，接收线程随之结束
+    private boolean reconnect() {
+        appendMessage("与服务器的连接已断开，正在重新连接……");
+        window.close(); // 唤醒等待窗口的上传，该上传失败
+        long deadline = System.currentTimeMillis() + sessionGrace;
+        long backoff = 200;
+        while (!exiting && System.currentTimeMillis() < deadline) {
+            try {
+                Thread.sleep(backoff / 2 + (long) (Math.random() * backoff / 2));
+            } catch (InterruptedException e) {
+                return false;
+            }
+            backoff = Math.min(backoff * 2, 5000);
+            try {
+                connect();
+                if (resume) {
+                    writeFrame(Frame.of(Frame.RESUME, sessionToken, String.valueOf(received)));
+                    if (Frame.read(dis).hasFlag(Frame.FLAG_OK)) {
+                        appendMessage("已重新连接");
+                        return true;
+                    }
+                }
+                sessionToken = null; // 新令牌随登录结果发来
+                if (!framed) {
+                    break;
+                }
+                writeFrame(Frame.of(Frame.LOGIN, name, password));
+                if (Frame.read(dis).hasFlag(Frame.FLAG_OK)) {
+                    appendMessage("会话已过期，已重新登录");
+                    return true;
+                }
+                break; // 密码已被修改等，不再重试
+            } catch (IOException e) {
+                // 服务器暂时不可用，稍后重试
             }
         }
+        appendMessage("重新连接失败");
+        return false;
+    }
+
+    // 打开新的连接替换已断开的连接，并重新协商协议
+    private void connect() throws IOException {
+        Socket s = new Socket(CONNSTR, CONNPORT);
+        writeLock.lock();
+        try {
+            socket.close();
+            socket = s;
+            dos = new DataOutputStream(s.getOutputStream());
+        } finally {
+            writeLock.unlock();
+        }
+        dis = new DataInputStream(s.getInputStream());
+        assembler = new Streams.Assembler(); // 旧连接上未收完的流作废
+        window = new Streams.Window();
+        negotiateProtocol();
     }
 
     private void sendImage() {
@@ -547,105 +900,192 @@ public class Client extends JFrame implements KeyListener {
         fileChooser.setFileFilter(new FileNameExtensionFilter("图片文件", "jpg", "jpeg", "png", "gif"));
 
         if (fileChooser.showOpenDialog(this) == JFileChooser.APPROVE_OPTION) {
-            try {
-                File file = fileChooser.getSelectedFile();
-                BufferedImage originalImage = ImageIO.read(file);
-
-                // 压缩图片
-                BufferedImage compressedImage = compressImage(originalImage);
-
-                // 转换为Base64
-                ByteArrayOutputStream baos = new ByteArrayOutputStream();
-                ImageIO.write(compressedImage, "png", baos);
-                byte[] imageBytes = baos.toByteArray();
-
-                // 检查大小限制（5MB）
-                if (imageBytes.length > 5 * 1024 * 1024) {
-                    JOptionPane.showMessageDialog(this,
-                            "图片太大，请选择更小的图片或降低图片质量",
-                            "警告",
-                            JOptionPane.WARNING_MESSAGE);
-                    return;
+            String sender = isAnonymous ? "匿名用户" : name;
+            String mode = modeSelector.getText();
+            if (!mode.isEmpty() && !mode.startsWith("@")) {
+                appendMessage("无效的命令格式,请重新输入");
+            }
+            // 读取、缩放、编码和发送都在后台进行，界面只显示进度
+            SendImageTask task = new SendImageTask(fileChooser.getSelectedFile(), mode, sender);
+            task.addPropertyChangeListener(evt -> {
+                if ("progress".equals(evt.getPropertyName())) {
+                    progressBar.setValue((Integer) evt.getNewValue());
                 }
+            });
+            sendingTask = task;
+            jbImage.setEnabled(false);
+            progressBar.setValue(0);
+            progressBar.setVisible(true);
+            cancelBtn.setEnabled(true);
+            cancelBtn.setVisible(true);
+            jp.revalidate();
+            task.execute();
+        }
+    }
+
+    // 后台发送一张图片：编码占进度的前 60%，上传占后 40%
+    // 分片上传时随时可以取消，服务器丢弃已收到的分片；整帧或旧协议上传开始后不能再取消，否则流中会留下半帧
+    // 服务器支持去重时先发送图片摘要，服务器已有同一张图片就不再上传
+    class SendImageTask extends SwingWorker<ImageEncoder.Encoded, Void> {
+        private final File file; // 图片文件
+        private final String mode; // 发送模式，"@用户名" 为私聊
+        private final String sender; // 发送者显示名
+        private final String receiver; // 私聊接收者，公共图片为空
+        private volatile boolean deduplicated = false; // 服务器已有该图片，未上传
+
+        SendImageTask(File file, String mode, String sender) {
+            this.file = file;
+            this.mode = mode;
+            this.sender = sender;
+            this.receiver = mode.startsWith("@") ? mode.substring(1) : "";
+        }
 
-                String base64Image = Base64.getEncoder().encodeToString(imageBytes);
-                String imageMessage = "[IMG]" + (isAnonymous ? "匿名用户" : name) + "|" + base64Image;
-                String mode = modeSelector.getText();
-                if (!mode.isEmpty() && !mode.startsWith("@")) {
-                    appendMessage("无效的命令格式,请重新输入");
+        @Override
+        protected ImageEncoder.Encoded doInBackground() throws Exception {
+            ImageEncoder.Encoded encoded = ImageEncoder.encode(file, p -> setProgress(p * 60 / 100));
+            // 检查大小限制（5MB）
+            if (encoded.bytes.length > 5 * 1024 * 1024) {
+                throw new IOException("图片太大，请选择更小的图片或降低图片质量");
+            }
+            if (isCancelled()) {
+                return null;
+            }
+            if (!streams) {
+                SwingUtilities.invokeLater(() -> cancelBtn.setEnabled(false)); // 开始上传，不再允许取消
+            }
+            if (blobs) {
+                String hash = BlobStore.hash(encoded.bytes);
+                imageCache.put(hash, encoded.bytes); // 自己的图片被转发回来时直接从缓存显示
+                if (offer(hash)) {
+                    deduplicated = true;
+                    setProgress(100);
+                    return encoded;
                 }
-                if (mode.startsWith("@")) {
-                    imageMessage = mode + "：" + imageMessage;
+            }
+            upload(encoded.bytes);
+            return encoded;
+        }
+
+        // 发送图片摘要并等待服务器答复，返回服务器是否已有该图片
+        private boolean offer(String hash) throws IOException, InterruptedException {
+            CompletableFuture<Boolean> reply = new CompletableFuture<>();
+            offers.put(hash, reply);
+            try {
+                writeFrame(Frame.of(Frame.IMAGE_OFFER, receiver, sender, hash));
+                return reply.get(OFFER_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            } catch (TimeoutException | ExecutionException e) {
+                return false; // 没有答复时照常上传
+            } finally {
+                offers.remove(hash, reply);
+            }
+        }
+
+        private void upload(byte[] imageBytes) throws IOException, InterruptedException {
+            if (streams) {
+                uploadStream(Frame.withData(Frame.IMAGE, (byte) 0, imageBytes, receiver, sender).encode());
+                return;
+            }
+            if (framed) {
+                // 帧协议直接发送原始图片字节，整张图片一帧发送
+                byte[] data = Frame.withData(Frame.IMAGE, (byte) 0, imageBytes, receiver, sender).encode();
+                writeLock.lock();
+                try {
+                    for (int off = 0; off < data.length; off += UPLOAD_SLICE) {
+                        dos.write(data, off, Math.min(UPLOAD_SLICE, data.length - off));
+                        setProgress(60 + (int) (40L * Math.min(data.length, off + UPLOAD_SLICE) / data.length));
+                    }
+                    dos.flush();
+                } finally {
+                    writeLock.unlock();
                 }
+                return;
+            }
 
-                // 分块发送图片数据
-                int chunkSize = 60000; // 略小于65535以确保安全
-                int length = imageMessage.length();
-                int chunks = (length + chunkSize - 1) / chunkSize;
+            // 旧服务器只支持字符串协议，转换为Base64
+            String base64Image = Base64.getEncoder().encodeToString(imageBytes);
+            String imageMessage = "[IMG]" + sender + "|" + base64Image;
+            if (mode.startsWith("@")) {
+                imageMessage = mode + "：" + imageMessage;
+            }
+
+            // 分块发送图片数据
+            int chunkSize = 60000; // 略小于65535以确保安全
+            int length = imageMessage.length();
+            int chunks = (length + chunkSize - 1) / chunkSize;
 
+            // 所有块连续发送，中间不能夹入其他消息
+            writeLock.lock();
+            try {
                 // 发送图片块数
-                dos.writeUTF("[IMG_START]" + chunks);
-                dos.flush();
+                writeUTF("[IMG_START]" + chunks);
 
                 // 分块发送图片数据
                 for (int i = 0; i < chunks; i++) {
                     int start = i * chunkSize;
                     int end = Math.min(start + chunkSize, length);
-                    String chunk = imageMessage.substring(start, end);
-                    dos.writeUTF(chunk);
-                    dos.flush();
+                    writeUTF(imageMessage.substring(start, end));
+                    setProgress(60 + 40 * (i + 1) / chunks);
                 }
 
-                dos.writeUTF("[IMG_END]");
-                dos.flush();
-                appendMessage("图片发送成功");
-
-            } catch (IOException ex) {
-                JOptionPane.showMessageDialog(this,
-                        "发送图片失败：" + ex.getMessage(),
-                        "错误",
-                        JOptionPane.ERROR_MESSAGE);
+                writeUTF("[IMG_END]");
+            } finally {
+                writeLock.unlock();
             }
         }
-    }
-
-    private BufferedImage compressImage(BufferedImage image) {
-        // 计算压缩后的尺寸
-        int maxWidth = 1024; // 增加最大宽度
-        int maxHeight = 768; // 增加最大高度
-        int originalWidth = image.getWidth();
-        int originalHeight = image.getHeight();
 
-        // 如果图片已经小于最大尺寸，无需压缩
-        if (originalWidth <= maxWidth && originalHeight <= maxHeight) {
-            return image;
+        // 把整帧拆成分片在新的流上发送，每个分片之间释放写锁，窗口用完时等待服务器归还
+        private void uploadStream(byte[] data) throws IOException, InterruptedException {
+            int id = nextStream;
+            nextStream += 2;
+            int payload = data.length - Frame.HEADER_SIZE;
+            Streams.Window window = Client.this.window; // 断线重连后旧连接的窗口关闭，本次上传失败
+            window.open(id);
+            try {
+                for (int off = 0; off < payload; ) {
+                    if (isCancelled()) {
+                        writeBytes(Frame.of(Frame.RESET).withStream(id)); // 通知服务器丢弃已收到的分片
+                        return;
+                    }
+                    int n = window.acquire(id, Math.min(Streams.CHUNK, payload - off));
+                    writeBytes(Frame.fragment(data, id, off, n));
+                    off += n;
+                    setProgress(60 + (int) (40L * off / payload));
+                }
+            } catch (InterruptedException e) {
+                writeBytes(Frame.of(Frame.RESET).withStream(id)); // 等待窗口时被取消
+                throw e;
+            } finally {
+                window.remove(id);
+            }
         }
 
-        // 计算缩放比例
-        double scale = Math.min(
-                (double) maxWidth / originalWidth,
-                (double) maxHeight / originalHeight);
-
-        // 计算新尺寸
-        int newWidth = (int) (originalWidth * scale);
-        int newHeight = (int) (originalHeight * scale);
-
-        // 创建压缩后的图片，保持原始颜色模式
-        BufferedImage compressedImage = new BufferedImage(
-                newWidth,
-                newHeight,
-                image.getType() == 0 ? BufferedImage.TYPE_INT_ARGB : image.getType());
-
-        // 使用更高质量的缩放算法
-        Graphics2D g = compressedImage.createGraphics();
-        g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BICUBIC);
-        g.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
-        g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
-
-        g.drawImage(image, 0, 0, newWidth, newHeight, null);
-        g.dispose();
-
-        return compressedImage;
+        @Override
+        protected void done() {
+            progressBar.setVisible(false);
+            cancelBtn.setVisible(false);
+            jbImage.setEnabled(true);
+            sendingTask = null;
+            if (isCancelled()) {
+                appendMessage("已取消发送图片");
+                return;
+            }
+            try {
+                ImageEncoder.Encoded encoded = get();
+                if (deduplicated) {
+                    appendMessage("图片发送成功（服务器已有相同图片，未重复上传）");
+                    return;
+                }
+                appendMessage("图片发送成功（" + encoded.format.toUpperCase() + "，" + encoded.bytes.length / 1024 + "KB"
+                        + (encoded.passThrough ? "，原图" : "") + "）");
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (ExecutionException e) {
+                JOptionPane.showMessageDialog(Client.this,
+                        "发送图片失败：" + e.getCause().getMessage(),
+                        "错误",
+                        JOptionPane.ERROR_MESSAGE);
+            }
+        }
     }
 
     // 主方法，程序入口
@@ -0,0 +1,548 @@
+import java.io.*; // 导入用于输入输出的类
+import java.net.InetAddress; // 导入 IP 地址类
+import java.net.InetSocketAddress; // 导入套接字地址类
+import java.net.ServerSocket; // 导入服务器套接字类
+import java.net.Socket; // 导入客户端套接字类
+import java.nio.ByteBuffer; // 导入字节缓冲区类
+import java.nio.charset.StandardCharsets; // 导入标准字符集
+import java.security.MessageDigest; // 导入消息摘要类
+import java.util.ArrayList; // 导入数组列表类
+import java.util.HashSet; // 导入哈希集合类
+import java.util.List; // 导入列表接口
+import java.util.Map; // 导入地图接口
+import java.util.Set; // 导入集合接口
+import java.util.TreeMap; // 导入有序哈希表
+import java.util.TreeSet; // 导入有序集合类
+import java.util.concurrent.ConcurrentHashMap; // 导入并发哈希表
+import java.util.concurrent.CopyOnWriteArrayList; // 导入写时复制列表
+import java.util.concurrent.locks.ReentrantLock; // 导入可重入锁类
+
+// 多节点集群：节点之间的连接、在线用户和房间的同步，以及消息的转发
+// 每个节点监听一个集群端口，并主动连接配置中的每个对端节点。每对节点之间有两条连接，各自只单向发送；
+// 对端的在线用户和有成员的房间只来自对端连过来的那条连接，连接断开即作废。主动连接断开后按退避间隔重连，
+// 重连成功后先发送本节点当前的完整状态，因此任何一个节点重启后，集群都会恢复一致。
+// 转发的消息放进每条连接自己的 OutboundQueue，由写线程取空队列后才 flush，同时到达的多条广播合并为一次写出；
+// 一条房间消息对每个有该房间成员的节点只发一次，由对端节点再分发给自己的本地成员。
+class Cluster {
+    // 节点 ID、集群端口和对端列表（host:port，逗号分隔），集群端口为 0 时不开启集群
+    static final String DEFAULT_NODE_ID = System.getProperty("chat.node.id", "");
+    static final int DEFAULT_PORT = Integer.getInteger("chat.cluster.port", 0);
+    static final String DEFAULT_PEERS = System.getProperty("chat.cluster.peers", "");
+    // 节点间的共享密钥；未设置时集群端口只监听本机，只能在一台机器上组成集群
+    private static final String SECRET = System.getProperty("chat.cluster.secret", "");
+    // 每条连接最多排队的字节数，超出时断开重连，重连后重新同步状态
+    private static final long QUEUE_BYTES = Long.getLong("chat.cluster.queue.bytes", 64L * 1024 * 1024);
+    private static final long MAX_BACKOFF_MS = 5000; // 重连的最长间隔
+    private static final int HANDSHAKE_TIMEOUT_MS = 5000; // 连入的连接在此时间内没有发来 HELLO 就断开
+
+    // 节点间的帧类型，与客户端协议的帧类型不重叠
+    static final byte HELLO = 64; // 连接方→被连接方：节点 ID, 共享密钥；被连接方回复 HELLO：自己的节点 ID
+    static final byte USER = 65; // 用户名，带 FLAG_UP 表示在发送方节点上线，否则为已下线
+    static final byte ROOM = 66; // 房间名，带 FLAG_UP 表示发送方节点上有该房间的成员，否则为没有
+    static final byte ROOM_TEXT = 67; // 房间名, 文本
+    static final byte ROOM_IMAGE = 68; // 房间名, 显示前缀, 发送者, 图片数据
+    static final byte PRIVATE_TEXT = 69; // 接收者, 文本
+    static final byte PRIVATE_IMAGE = 70; // 接收者, 发送者, 图片数据
+    static final byte REGISTERED = 71; // 用户名, 密码：新注册的用户
+
+    static final byte FLAG_UP = 1; // USER、ROOM 帧：在线或有成员
+    static final byte FLAG_RECORD = 2; // ROOM_TEXT、ROOM_IMAGE 帧：聊天消息，大厅的消息要保存到消息记录
+
+    // 一个对端节点的状态，只由该节点连过来的连接更新
+    private static final class Node {
+        final String id; // 节点 ID
+        final Set<String> users = ConcurrentHashMap.newKeySet(); // 在该节点上在线的用户
+        final Set<String> rooms = ConcurrentHashMap.newKeySet(); // 该节点上有成员的房间
+
+        Node(String id) {
+            this.id = id;
+        }
+    }
+
+    // 一条已握手的发送连接
+    private final class Link {
+        final String peerId; // 对端节点 ID
+        final Socket socket; // 连接
+        final OutboundQueue queue = new OutboundQueue(Integer.MAX_VALUE, QUEUE_BYTES, OutboundQueue.Overflow.DISCONNECT);
+
+        Link(String peerId, Socket socket) {
+            this.peerId = peerId;
+            this.socket = socket;
+        }
+
+        void send(byte[] data) {
+            if (!queue.offer(data, false)) {
+                server.log("到集群节点 " + peerId + " 的发送队列已满，断开重连");
+                close();
+            }
+            Metrics.CLUSTER_OUT.increment();
+        }
+
+        // 对端需要该房间的消息：对端有该房间的成员，或者还不知道对端的状态
+        boolean wants(String room) {
+            Node node = nodes.get(peerId);
+            return node == null || node.rooms.contains(room);
+        }
+
+        // 写线程：取出排队的帧写入连接，队列暂时取空时再 flush，连续的转发合并成一次系统调用
+        void drain(OutputStream out) {
+            try {
+                byte[] data;
+                while ((data = queue.take()) != null) {
+                    out.write(data);
+                    if (queue.isEmpty()) {
+                        out.flush();
+                    }
+                }
+            } catch (IOException e) {
+                // 对端已断开，由连接线程负责重连
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                close();
+            }
+        }
+
+        void close() {
+            queue.close();
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // 已经关闭
+            }
+        }
+    }
+
+    private final ChatServer server; // 所属的服务器
+    final String nodeId; // 本节点 ID
+    private final int port; // 集群端口
+    private final List<InetSocketAddress> peers = new ArrayList<>(); // 要主动连接的对端
+    private final ConcurrentHashMap<String, Node> nodes = new ConcurrentHashMap<>(); // 对端节点 ID → 状态
+    private final List<Link> links = new CopyOnWriteArrayList<>(); // 已握手的发送连接，转发时无锁遍历
+    // 保护已通告的状态：通告和新连接的状态快照按同一顺序进行，对端不会漏掉或收到过期的变化
+    private final ReentrantLock stateLock = new ReentrantLock();
+    private final Set<String> advertisedUsers = new HashSet<>(); // 已通告在线的本地用户
+    private final Set<String> advertisedRooms = new HashSet<>(); // 已通告有本地成员的房间
+    private final List<Thread> dialers = new ArrayList<>(); // 连接各对端的线程
+    private final Set<Socket> inbound = ConcurrentHashMap.newKeySet(); // 对端连过来的连接
+    private ServerSocket listener; // 集群端口
+    private volatile boolean running = false; // 是否正在运行
+
+    Cluster(ChatServer server, String nodeId, int port, String peers) {
+        this.server = server;
+        this.nodeId = nodeId;
+        this.port = port;
+        for (String peer : peers.split(",")) {
+            peer = peer.trim();
+            if (!peer.isEmpty()) {
+                int colon = peer.lastIndexOf(':');
+                if (colon < 0) {
+                    throw new IllegalArgumentException("集群节点地址应为 host:port: " + peer);
+                }
+                this.peers.add(InetSocketAddress.createUnresolved(peer.substring(0, colon),
+                        Integer.parseInt(peer.substring(colon + 1))));
+            }
+        }
+    }
+
+    // 打开集群端口，并开始连接各对端节点
+    void start() throws IOException {
+        if (SECRET.isEmpty()) {
+            listener = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+            server.log("未设置 chat.cluster.secret，集群端口只监听 127.0.0.1");
+        } else {
+            listener = new ServerSocket(port);
+        }
+        running = true;
+        daemon(this::acceptLoop, "cluster-accept").start();
+        for (InetSocketAddress peer : peers) {
+            Thread t = daemon(() -> dial(peer), "cluster-dial-" + peer.getHostString() + ":" + peer.getPort());
+            dialers.add(t);
+            t.start();
+        }
+        server.log("集群节点 " + nodeId + " 已启动，集群端口 " + port + "，对端 " + peers.size() + " 个");
+    }
+
+    // 关闭集群端口和所有节点连接
+    void stop() {
+        running = false;
+        try {
+            listener.close();
+        } catch (IOException e) {
+            // 已经关闭
+        }
+        for (Thread t : dialers) {
+            t.interrupt(); // 正在等待重连的线程立即结束
+        }
+        dialers.clear();
+        for (Link link : links) {
+            link.close();
+        }
+        for (Socket socket : inbound) {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // 已经关闭
+            }
+        }
+        nodes.clear();
+    }
+
+    private static Thread daemon(Runnable task, String name) {
+        Thread t = new Thread(task, name);
+        t.setDaemon(true);
+        return t;
+    }
+
+    // 主动连接一个对端节点，断开后按退避间隔重连，直到集群关闭
+    private void dial(InetSocketAddress peer) {
+        long backoff = 200;
+        boolean warned = false; // 连接失败只在第一次记录日志
+        while (running && !Thread.currentThread().isInterrupted()) {
+            Socket socket = new Socket();
+            Link link = null;
+            try {
+                socket.connect(new InetSocketAddress(peer.getHostString(), peer.getPort()), 5000);
+                socket.setTcpNoDelay(true);
+                OutputStream out = new BufferedOutputStream(socket.getOutputStream(), 256 * 1024);
+                DataInputStream in = new DataInputStream(socket.getInputStream());
+                out.write(Frame.of(HELLO, nodeId, SECRET).encode());
+                out.flush();
+                Frame reply = Frame.read(in);
+                if (reply.type != HELLO) {
+                    throw new IOException("握手应答异常");
+                }
+                String peerId = reply.reader().string();
+                if (peerId.equals(nodeId)) {
+                    socket.close(); // 对端列表中包含本节点自己
+                    return;
+                }
+                link = new Link(peerId, socket);
+                if (!activate(link)) {
+                    return; // 集群已关闭
+                }
+                server.log("已连接集群节点 " + peerId + "（" + peer.getHostString() + ":" + peer.getPort() + "）");
+                backoff = 200;
+                warned = false;
+                Link writing = link;
+                daemon(() -> writing.drain(out), "cluster-send-" + peerId).start();
+                while (in.read() >= 0) {
+                    // 对端不会在这条连接上发送数据，读到结束或出错说明对端已断开
+                }
+            } catch (IOException e) {
+                if (link == null && !warned && running) {
+                    server.log("连接集群节点 " + peer.getHostString() + ":" + peer.getPort() + " 失败，稍后重试: "
+                            + e.getMessage());
+                    warned = true;
+                }
+            } finally {
+                try {
+                    socket.close();
+                } catch (IOException e) {
+                    // 已经关闭
+                }
+            }
+            if (link != null) {
+                links.remove(link);
+                link.close();
+                if (running) {
+                    server.log("与集群节点 " + link.peerId + " 的连接已断开，正在重连");
+                }
+            }
+            try {
+                Thread.sleep(backoff);
+            } catch (InterruptedException e) {
+                return;
+            }
+            backoff = Math.min(backoff * 2, MAX_BACKOFF_MS);
+        }
+    }
+
+    // 新连接先发送本节点的完整状态，再加入转发列表；与通告在同一把锁下进行，之后的变化按顺序跟在快照后面
+    private boolean activate(Link link) {
+        stateLock.lock();
+        try {
+            if (!running) {
+                return false;
+            }
+            for (String user : advertisedUsers) {
+                link.send(Frame.of(USER, FLAG_UP, user).encode());
+            }
+            for (String room : advertisedRooms) {
+                link.send(Frame.of(ROOM, FLAG_UP, room).encode());
+            }
+            links.add(link);
+            return true;
+        } finally {
+            stateLock.unlock();
+        }
+    }
+
+    // 接收对端节点连过来的连接，每条连接一个线程
+    private void acceptLoop() {
+        while (running) {
+            try {
+                Socket socket = listener.accept();
+                daemon(() -> serve(socket), "cluster-recv").start();
+            } catch (IOException e) {
+                if (running) {
+                    server.log("集群端口接收连接失败: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    // 读取对端节点发来的状态和转发的消息
+    private void serve(Socket socket) {
+        Node node = null;
+        inbound.add(socket);
+        try (Socket s = socket) {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream(), 256 * 1024));
+            // 校验密钥之前只读取一个小帧并限时，未认证的连接不能让本节点分配大缓冲区或一直占用线程
+            s.setSoTimeout(HANDSHAKE_TIMEOUT_MS);
+            Frame hello = Frame.read(in, Frame.MAX_LOGIN_PAYLOAD);
+            Frame.Reader r = hello.reader();
+            if (hello.type != HELLO) {
+                return;
+            }
+            String id = r.string();
+            if (!MessageDigest.isEqual(r.string().getBytes(StandardCharsets.UTF_8),
+                    SECRET.getBytes(StandardCharsets.UTF_8))) { // 比较时间与密钥内容无关
+                server.log("拒绝来自 " + s.getInetAddress().getHostAddress() + " 的集群连接：密钥不符");
+                return;
+            }
+            s.getOutputStream().write(Frame.of(HELLO, nodeId).encode());
+            s.setSoTimeout(0); // 认证后对端可能长时间没有消息
+            if (id.equals(nodeId)) {
+                return; // 本节点连接了自己
+            }
+            node = new Node(id);
+            nodes.put(id, node); // 对端重启后重新连接时替换旧的状态
+            while (true) {
+                onFrame(node, Frame.read(in));
+            }
+        } catch (IOException e) {
+            // 对端已断开
+        } finally {
+            inbound.remove(socket);
+            if (node != null && nodes.remove(node.id, node)) {
+                server.log("集群节点 " + node.id + " 已断开，移除其 " + node.users.size() + " 个在线用户");
+            }
+        }
+    }
+
+    private void onFrame(Node node, Frame frame) throws IOException {
+        Frame.Reader r = frame.reader();
+        boolean up = frame.hasFlag(FLAG_UP);
+        boolean record = frame.hasFlag(FLAG_RECORD);
+        switch (frame.type) {
+            case USER:
+                if (up) {
+                    node.users.add(r.string());
+                } else {
+                    node.users.remove(r.string());
+                }
+                return;
+            case ROOM:
+                if (up) {
+                    node.rooms.add(r.string());
+                } else {
+                    node.rooms.remove(r.string());
+                }
+                return;
+            case ROOM_TEXT:
+                Metrics.CLUSTER_IN.increment();
+                server.deliverRoomText(r.string(), r.string(), record);
+                return;
+            case ROOM_IMAGE:
+                Metrics.CLUSTER_IN.increment();
+                server.deliverRoomImage(r.string(), r.string(), r.string(), r.rest(), record);
+                return;
+            case PRIVATE_TEXT:
+                Metrics.CLUSTER_IN.increment();
+                server.deliverPrivateText(r.string(), r.string());
+                return;
+            case PRIVATE_IMAGE:
+                Metrics.CLUSTER_IN.increment();
+                server.deliverPrivateImage(r.string(), r.string(), r.rest());
+                return;
+            case REGISTERED:
+                server.registerRemote(r.string(), r.string());
+                return;
+            default:
+                server.log("未知的集群帧类型: " + frame.type);
+        }
+    }
+
+    // 本地用户上线或下线后调用：按当前实际状态通告，多次调用和并发调用的最终结果都正确
+    void userChanged(String name) {
+        stateLock.lock();
+        try {
+            boolean online = server.isOnline(name);
+            if (online ? advertisedUsers.add(name) : advertisedUsers.remove(name)) {
+                sendAll(Frame.of(USER, online ? FLAG_UP : 0, name).encode());
+            }
+        } finally {
+            stateLock.unlock();
+        }
+    }
+
+    // 本地房间成员变化后调用：只在房间从无到有或从有到无时通告
+    void roomChanged(String room) {
+        stateLock.lock();
+        try {
+            boolean occupied = server.roomSize(room) > 0;
+            if (occupied ? advertisedRooms.add(room) : advertisedRooms.remove(room)) {
+                sendAll(Frame.of(ROOM, occupied ? FLAG_UP : 0, room).encode());
+            }
+        } finally {
+            stateLock.unlock();
+        }
+    }
+
+    private void sendAll(byte[] data) {
+        for (Link link : links) {
+            link.send(data);
+        }
+    }
+
+    // 把房间消息转发给有该房间成员的节点，只编码一次
+    void relayRoomText(String room, String text, boolean record) {
+        byte[] data = null;
+        for (Link link : links) {
+            if (link.wants(room)) {
+                if (data == null) {
+                    data = Frame.of(ROOM_TEXT, record ? FLAG_RECORD : 0, room, text).encode();
+                }
+                link.send(data);
+            }
+        }
+    }
+
+    // 是否有节点需要该房间的消息，用于边收边转的图片决定是否要拼出整张图片
+    boolean wantsRoom(String room) {
+        for (Link link : links) {
+            if (link.wants(room)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // 用户是否在其他节点上在线
+    boolean hasUser(String user) {
+        return linkFor(user) != null;
+    }
+
+    void relayRoomImage(String room, String prefix, String sender, ByteBuffer image, boolean record) {
+        byte[] data = null;
+        for (Link link : links) {
+            if (link.wants(room)) {
+                if (data == null) {
+                    data = Frame.encode(ROOM_IMAGE, record ? FLAG_RECORD : 0, image, room, prefix, sender);
+                    if (tooLarge(data)) {
+                        return;
+                    }
+                }
+                link.send(data);
+            }
+        }
+    }
+
+    // 把私聊转发给接收者所在的节点，接收者不在任何节点上时返回 false
+    boolean relayPrivateText(String receiver, String text) {
+        Link link = linkFor(receiver);
+        if (link == null) {
+            return false;
+        }
+        link.send(Frame.of(PRIVATE_TEXT, receiver, text).encode());
+        return true;
+    }
+
+    boolean relayPrivateImage(String receiver, String sender, ByteBuffer image) {
+        Link link = linkFor(receiver);
+        if (link == null) {
+            return false;
+        }
+        byte[] data = Frame.encode(PRIVATE_IMAGE, (byte) 0, image, receiver, sender);
+        if (tooLarge(data)) {
+            return false;
+        }
+        link.send(data);
+        return true;
+    }
+
+    // 加上房间名等字段后超出单帧上限的图片不转发，否则对端读到后会断开连接
+    private boolean tooLarge(byte[] data) {
+        if (data.length - Frame.HEADER_SIZE <= Frame.MAX_PAYLOAD) {
+            return false;
+        }
+        server.log("图片过大，未转发到其他集群节点: " + data.length + " 字节");
+        return true;
+    }
+
+    // 新注册的用户同步到当前在线的节点，使其可以登录任意节点
+    void relayRegistered(String username, String password) {
+        sendAll(Frame.of(REGISTERED, username, password).encode());
+    }
+
+    private Link linkFor(String user) {
+        for (Link link : links) {
+            Node node = nodes.get(link.peerId);
+            if (node != null && node.users.contains(user)) {
+                return link;
+            }
+        }
+        return null;
+    }
+
+    // 其他节点上的在线用户，按节点 ID 排序
+    Map<String, Set<String>> remoteUsers() {
+        Map<String, Set<String>> users = new TreeMap<>();
+        for (Node node : nodes.values()) {
+            users.put(node.id, new TreeSet<>(node.users));
+        }
+        return users;
+    }
+
+    // 已连通的节点：本节点能发给它（发送连接）且能收到它的状态（接收连接）
+    String status() {
+        StringBuilder sb = new StringBuilder("节点 " + nodeId + "，集群端口 " + port + "\n");
+        Set<String> ids = new TreeSet<>(nodes.keySet());
+        for (Link link : links) {
+            ids.add(link.peerId);
+        }
+        for (String id : ids) {
+            Node node = nodes.get(id);
+            Link link = null;
+            for (Link l : links) {
+                if (l.peerId.equals(id)) {
+                    link = l;
+                }
+            }
+            sb.append("  ").append(id).append(": 发送").append(link != null ? "正常" : "断开")
+                    .append("，接收").append(node != null ? "正常" : "断开");
+            if (link != null) {
+                sb.append("，排队 ").append(link.queue.depth()).append(" 帧 / ").append(link.queue.queuedBytes())
+                        .append(" 字节");
+            }
+            if (node != null) {
+                sb.append("，在线 ").append(node.users.size()).append(" 人，房间 ").append(node.rooms.size()).append(" 个");
+            }
+            sb.append("\n");
+        }
+        return sb.toString();
+    }
+
+    int links() {
+        return links.size();
+    }
+
+    int remoteOnline() {
+        int total = 0;
+        for (Node node : nodes.values()) {
+            total += node.users.size();
+        }
+        return total;
+    }
+}
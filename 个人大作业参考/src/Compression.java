@@ -0,0 +1,94 @@
+import java.io.*; // 导入用于输入输出的类
+import java.nio.charset.StandardCharsets; // 导入字符集常量
+import java.util.concurrent.atomic.AtomicLong; // 导入原子长整型类
+import java.util.zip.DataFormatException; // 导入压缩数据格式异常
+import java.util.zip.Deflater; // 导入压缩器类
+import java.util.zip.Inflater; // 导入解压器类
+
+// 帧负载的压缩
+// 每帧独立压缩（不依赖之前的帧），因此一条广播只压缩一次，所有接收者共用同一份结果。
+// 聊天消息通常很短，单独压缩几乎没有效果，所以压缩和解压都预置同一份字典，字典中是服务器
+// 提示语和常用字词，短消息也能引用字典中的片段。图片本身已经压缩过，不经过这里。
+class Compression {
+    static final int MIN_BYTES = Integer.getInteger("chat.deflate.min", 64); // 负载小于该值时不压缩
+
+    // 预置字典：越常用的片段放得越靠后，引用距离越短
+    static final byte[] DICTIONARY = (
+            "http://https://www.com.cn/.html.jpg.png"
+            + "谢谢好的没问题明天今天晚上中午早上老师同学作业实验报告考试课程代码服务器客户端"
+            + "什么怎么为什么可以不是没有知道觉得一下一起现在已经还是但是因为所以如果这个那个"
+            + "哈哈哈哈嗯嗯对的好吧是的我们你们他们大家"
+            + "用户 [ 不在线/不存在/为匿名用户  \n已切换到 匿名 聊天模式已切换到 实名 聊天模式"
+            + " 请求退出聊天室\n 退出了聊天室\n 加入了聊天室\n在线用户："
+            + "] 私聊说: 发送了一张图片\n[匿名用户]：我你在了的是吗？！。，"
+    ).getBytes(StandardCharsets.UTF_8);
+
+    private static final AtomicLong rawBytes = new AtomicLong(); // 压缩前的总字节数
+    private static final AtomicLong deflatedBytes = new AtomicLong(); // 压缩后的总字节数
+
+    // 每个线程复用一个压缩器，广播可能在任意连接的线程上编码
+    private static final ThreadLocal<Deflater> DEFLATERS = ThreadLocal.withInitial(
+            () -> new Deflater(Deflater.BEST_SPEED, true));
+
+    // 压缩一段负载，不小于阈值且压缩后确实变小时返回压缩结果，否则返回 null
+    static byte[] deflate(byte[] payload) {
+        if (payload.length < MIN_BYTES) {
+            return null;
+        }
+        Deflater deflater = DEFLATERS.get();
+        deflater.reset();
+        deflater.setDictionary(DICTIONARY);
+        deflater.setInput(payload);
+        deflater.finish();
+        byte[] out = new byte[payload.length]; // 比原文长就没有意义
+        int length = 0;
+        while (!deflater.finished() && length < out.length) {
+            length += deflater.deflate(out, length, out.length - length);
+        }
+        if (!deflater.finished() || length >= payload.length) {
+            return null;
+        }
+        rawBytes.addAndGet(payload.length);
+        deflatedBytes.addAndGet(length);
+        byte[] result = new byte[length];
+        System.arraycopy(out, 0, result, 0, length);
+        return result;
+    }
+
+    // 解压一段负载，inflater 属于调用方的连接；解压后超过 maxLength 时抛出异常，防止压缩炸弹
+    static byte[] inflate(Inflater inflater, byte[] data, int maxLength) throws IOException {
+        inflater.reset();
+        inflater.setDictionary(DICTIONARY); // 原始 deflate 格式不记录字典，需要事先设置
+        inflater.setInput(data);
+        ByteArrayOutputStream out = new ByteArrayOutputStream(data.length * 4);
+        byte[] buf = new byte[8192];
+        try {
+            while (!inflater.finished()) {
+                int n = inflater.inflate(buf);
+                if (n == 0 && inflater.needsInput()) {
+                    throw new IOException("压缩数据不完整");
+                }
+                out.write(buf, 0, n);
+                if (out.size() > maxLength) {
+                    throw new IOException("解压后长度超出限制");
+                }
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("压缩数据格式错误: " + e.getMessage());
+        }
+        return out.toByteArray();
+    }
+
+    // 每个连接使用的解压器，原始 deflate 格式
+    static Inflater newInflater() {
+        return new Inflater(true);
+    }
+
+    // 压缩统计，用于控制台显示
+    static String stats() {
+        long raw = rawBytes.get();
+        long deflated = deflatedBytes.get();
+        return "已压缩 " + raw + " 字节 → " + deflated + " 字节"
+                + (raw > 0 ? String.format("（%.1f%%）", 100.0 * deflated / raw) : "");
+    }
+}
@@ -0,0 +1,90 @@
+import javax.swing.*; // 导入用于图形界面的 Swing 库
+import javax.swing.text.BadLocationException; // 导入文档位置异常类
+import java.util.concurrent.locks.ReentrantLock; // 导入可重入锁类
+
+// 服务器控制台的日志视图
+// 任意线程调用 append 只是把文本放进一个固定容量的环形缓冲区；Swing 定时器在事件分发线程上
+// 以固定帧率取出缓冲区中的所有文本，一次追加到文本区域，再删除超出历史上限的最早几行。
+// 网络线程从不直接操作 Swing 组件，文本区域的内容也不会无限增长。
+class ConsoleLog {
+    static final int DEFAULT_MAX_LINES = Integer.getInteger("chat.console.lines", 5000); // 保留的历史行数
+    static final int DEFAULT_FPS = Integer.getInteger("chat.console.fps", 10); // 每秒刷新次数
+
+    private final JTextArea area; // 显示日志的文本区域
+    private final int maxLines; // 保留的历史行数
+    private final String[] ring; // 等待显示的文本
+    private final ReentrantLock lock = new ReentrantLock(); // 保护环形缓冲区的锁
+    private int head = 0; // 最早一条待显示文本的下标
+    private int size = 0; // 待显示文本的条数
+    private long skipped = 0; // 两次刷新之间被覆盖而未显示的条数
+
+    ConsoleLog(JTextArea area) {
+        this(area, DEFAULT_MAX_LINES, DEFAULT_FPS);
+    }
+
+    ConsoleLog(JTextArea area, int maxLines, int fps) {
+        this.area = area;
+        this.maxLines = Math.max(1, maxLines);
+        this.ring = new String[this.maxLines]; // 一次刷新最多只需要显示最近的 maxLines 条
+        Timer timer = new Timer(1000 / Math.max(1, fps), e -> flush());
+        timer.start();
+    }
+
+    // 追加一段文本（通常以换行结尾），可在任意线程调用
+    void append(String text) {
+        lock.lock();
+        try {
+            if (size == ring.length) {
+                // 缓冲区已满，覆盖最早的一条，反正刷新后也会被历史上限删掉
+                ring[head] = text;
+                head = (head + 1) % ring.length;
+                skipped++;
+            } else {
+                ring[(head + size) % ring.length] = text;
+                size++;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // 在事件分发线程上把缓冲区中的文本一次追加到文本区域，并裁剪历史
+    private void flush() {
+        StringBuilder batch;
+        lock.lock();
+        try {
+            if (size == 0) {
+                return;
+            }
+            batch = new StringBuilder();
+            if (skipped > 0) {
+                batch.append("……省略 ").append(skipped).append(" 条日志……\n");
+                skipped = 0;
+            }
+            for (int i = 0; i < size; i++) {
+                int idx = (head + i) % ring.length;
+                batch.append(ring[idx]);
+                ring[idx] = null;
+            }
+            head = 0;
+            size = 0;
+        } finally {
+            lock.unlock();
+        }
+        area.append(batch.toString());
+        trim();
+    }
+
+    // 删除超出历史上限的最早几行
+    private void trim() {
+        int excess = area.getLineCount() - 1 - maxLines; // 最后一行是换行后的空行
+        if (excess <= 0) {
+            return;
+        }
+        try {
+            area.getDocument().remove(0, area.getLineStartOffset(excess));
+        } catch (BadLocationException e) {
+            e.printStackTrace(); // 打印异常信息
+        }
+    }
+}
@@ -0,0 +1,325 @@
+import java.io.*; // 导入用于输入输出的类
+import java.nio.ByteBuffer; // 导入字节缓冲区类
+import java.nio.charset.StandardCharsets; // 导入字符集常量
+import java.util.zip.Inflater; // 导入解压器类
+
+// 客户端与服务器之间的二进制帧
+// 帧格式：| 版本 1B | 类型 1B | 标志 1B | 流 ID 4B | 负载长度 4B | 负载 |
+// 负载由若干字段组成，每个字符串字段为 4 字节长度 + UTF-8 内容，图片等二进制数据放在所有字段之后。
+// 连接建立后新客户端先用 writeUTF 发送 HELLO，服务器回复 HELLO_OK 后双方改用帧；
+// 不发送 HELLO 的旧客户端继续使用原来的 writeUTF 字符串协议。
+// 协商了 CAP_STREAMS 时，图片等大帧拆成若干分片在非 0 的流上发送：第一片保留原帧的类型和标志，
+// 之后各片为 DATA，除最后一片外都带 FLAG_MORE。不同流的分片和流 0 上的普通帧可以交错，
+// 大图片传输期间文字消息不必等待。客户端发起的流 ID 为奇数，服务器为偶数。
+class Frame {
+    static final byte VERSION = 1; // 当前协议版本
+    static final String HELLO = "[FRAME]"; // 协商请求前缀，后接客户端支持的最高版本
+    static final String HELLO_OK = "[FRAME_OK]"; // 协商应答前缀，后接双方使用的版本
+    static final int HEADER_SIZE = 11; // 帧头长度
+    static final int MAX_PAYLOAD = 16 * 1024 * 1024; // 单帧负载上限
+    // 登录前的单帧负载上限：登录前只有登录、注册、能力和恢复会话等短帧，未登录的连接不能让服务器分配大缓冲区
+    static final int MAX_LOGIN_PAYLOAD = 4 * 1024;
+    static final int MAX_UTF = 65535; // 旧协议一条 writeUTF 消息编码后的字节数上限
+
+    // 帧类型
+    static final byte LOGIN = 1; // 客户端→服务器：用户名, 密码
+    static final byte REGISTER = 2; // 客户端→服务器：用户名, 密码
+    static final byte RESULT = 3; // 服务器→客户端：登录/注册结果，带 FLAG_OK 表示成功，字段为原因
+    static final byte COMMAND = 4; // 双向：命令名（list、quit、anonymous、exit）
+    static final byte TEXT = 5; // 客户端→服务器：公共消息；服务器→客户端：要显示的文本
+    static final byte PRIVATE = 6; // 客户端→服务器：接收者, 消息
+    static final byte IMAGE = 7; // 客户端→服务器：接收者（空为公共）, 发送者, 图片数据；服务器→客户端：发送者, 图片数据
+    // 以下为图片去重用的帧，只在服务器的 HELLO_OK 带有 CAP_BLOB 时使用
+    static final byte IMAGE_OFFER = 8; // 客户端→服务器：接收者, 发送者, 图片摘要；服务器已有该图片时直接转发
+    static final byte IMAGE_NEED = 9; // 服务器→客户端：图片摘要，带 FLAG_OK 表示服务器已有，否则需用 IMAGE 上传
+    static final byte IMAGE_REF = 10; // 服务器→客户端：发送者, 图片摘要，客户端本地没有时用 IMAGE_FETCH 取回
+    static final byte IMAGE_FETCH = 11; // 客户端→服务器：图片摘要
+    static final byte IMAGE_BLOB = 12; // 服务器→客户端：图片摘要, 图片数据，带 FLAG_OK 表示找到，否则图片已被清理
+    // 客户端→服务器：序号上界, 条数，请求更早的消息；服务器→客户端：是否还有更早（1/0），再接若干组 序号, 时间（毫秒）, 文本
+    static final byte HISTORY = 13;
+    // 以下为分片传输用的帧，只在协商了 CAP_STREAMS 时使用，流 ID 在帧头中
+    static final byte DATA = 14; // 双向：分片的后续部分
+    static final byte WINDOW = 15; // 双向：字节数，接收方处理完分片后归还给发送方的流量窗口
+    static final byte RESET = 16; // 双向：放弃该流，接收方丢弃已收到的分片
+    // 以下为会话恢复用的帧，只在协商了 CAP_RESUME 时使用，见 Session
+    static final byte SESSION = 17; // 服务器→客户端：会话令牌, 断线后保留的毫秒数，登录成功后发送
+    static final byte RESUME = 18; // 客户端→服务器：会话令牌, 已收到的消息数；服务器→客户端：带 FLAG_OK 表示已恢复，否则字段为原因
+    static final byte ACK = 19; // 客户端→服务器：已收到的消息数
+
+    // 能力：服务器在 HELLO_OK 的版本号后附加 ";能力名"，客户端在登录前为要启用的每项能力发送一个 COMMAND 帧
+    static final String CAP_BLOB = "blob"; // 图片去重：服务器转发图片时只发 IMAGE_REF
+    static final String CAP_DEFLATE = "deflate"; // 文本帧压缩：双方都可以发送带 FLAG_DEFLATE 的帧
+    static final String CAP_HISTORY = "history"; // 历史消息：登录后的回放和更早的消息以 HISTORY 帧发送
+    static final String CAP_STREAMS = "streams"; // 分片传输：大帧拆成分片在各自的流上发送，带流量窗口
+    static final String CAP_RESUME = "resume"; // 会话恢复：断线后在保留时间内重新连接，只补发缺少的消息
+
+    // 标志位
+    static final byte FLAG_OK = 1; // RESULT、IMAGE_NEED、IMAGE_BLOB、RESUME 帧：操作成功
+    static final byte FLAG_DEFLATE = 2; // 负载经过 deflate 压缩（预置字典，见 Compression）
+    static final byte FLAG_OLDER = 4; // HISTORY 帧：客户端请求的更早消息，显示在最前面；否则为登录后的回放
+    static final byte FLAG_MORE = 8; // 分片：同一流上还有后续分片
+
+    final byte type; // 帧类型
+    final byte flags; // 标志位
+    final int streamId; // 流 ID，0 为默认流
+    final byte[] payload; // 负载
+
+    Frame(byte type, byte flags, int streamId, byte[] payload) {
+        this.type = type;
+        this.flags = flags;
+        this.streamId = streamId;
+        this.payload = payload;
+    }
+
+    // 由若干字符串字段组成的帧
+    static Frame of(byte type, String... fields) {
+        return of(type, (byte) 0, fields);
+    }
+
+    static Frame of(byte type, byte flags, String... fields) {
+        return withData(type, flags, null, fields);
+    }
+
+    // 若干字符串字段后接一段二进制数据的帧
+    static Frame withData(byte type, byte flags, byte[] data, String... fields) {
+        byte[][] encoded = new byte[fields.length][];
+        int length = data == null ? 0 : data.length;
+        for (int i = 0; i < fields.length; i++) {
+            encoded[i] = fields[i].getBytes(StandardCharsets.UTF_8);
+            length += 4 + encoded[i].length;
+        }
+        ByteBuffer buf = ByteBuffer.allocate(length);
+        for (byte[] field : encoded) {
+            buf.putInt(field.length);
+            buf.put(field);
+        }
+        if (data != null) {
+            buf.put(data);
+        }
+        return new Frame(type, flags, 0, buf.array());
+    }
+
+    // 在指定流上发送的编码结果，用于 WINDOW、RESET 等针对某个流的控制帧
+    byte[] withStream(int id) {
+        return new Frame(type, flags, id, payload).encode();
+    }
+
+    boolean hasFlag(byte flag) {
+        return (flags & flag) != 0;
+    }
+
+    // 压缩后的帧，负载太小或压缩后不变小时返回自身
+    Frame deflated() {
+        byte[] compressed = Compression.deflate(payload);
+        return compressed == null ? this
+                : new Frame(type, (byte) (flags | FLAG_DEFLATE), streamId, compressed);
+    }
+
+    // 解压后的帧，没有压缩时返回自身；inflater 属于收到该帧的连接
+    Frame inflated(Inflater inflater) throws IOException {
+        if (!hasFlag(FLAG_DEFLATE)) {
+            return this;
+        }
+        return new Frame(type, (byte) (flags & ~FLAG_DEFLATE), streamId,
+                Compression.inflate(inflater, payload, MAX_PAYLOAD));
+    }
+
+    // 按顺序读取负载中的字段
+    Reader reader() {
+        return new Reader(ByteBuffer.wrap(payload));
+    }
+
+    static class Reader {
+        private final ByteBuffer buf;
+
+        Reader(ByteBuffer buf) {
+            this.buf = buf;
+        }
+
+        String string() throws IOException {
+            if (buf.remaining() < 4) {
+                throw new IOException("帧字段缺失");
+            }
+            int len = buf.getInt();
+            if (len < 0 || len > buf.remaining()) {
+                throw new IOException("帧字段长度错误: " + len);
+            }
+            String value = new String(buf.array(), buf.position(), len, StandardCharsets.UTF_8);
+            buf.position(buf.position() + len);
+            return value;
+        }
+
+        // 以十进制字符串编码的非负整数字段，格式不对时与字段缺失一样视为协议错误
+        long number() throws IOException {
+            String value = string();
+            long n;
+            try {
+                n = Long.parseLong(value);
+            } catch (NumberFormatException e) {
+                throw new IOException("帧字段不是整数: " + value);
+            }
+            if (n < 0) {
+                throw new IOException("帧字段不能为负数: " + n);
+            }
+            return n;
+        }
+
+        boolean hasRemaining() {
+            return buf.hasRemaining();
+        }
+
+        // 所有字段之后剩余的二进制数据，与负载共享内存，不复制
+        ByteBuffer rest() {
+            ByteBuffer data = buf.slice();
+            buf.position(buf.limit());
+            return data;
+        }
+    }
+
+    // 编码为完整的帧（帧头 + 负载）
+    byte[] encode() {
+        ByteBuffer buf = ByteBuffer.allocate(HEADER_SIZE + payload.length);
+        buf.put(VERSION).put(type).put(flags).putInt(streamId).putInt(payload.length).put(payload);
+        return buf.array();
+    }
+
+    // 直接把帧头和负载写入输出流，不再拼接成一个新数组
+    void write(DataOutputStream out) throws IOException {
+        out.writeByte(VERSION);
+        out.writeByte(type);
+        out.writeByte(flags);
+        out.writeInt(streamId);
+        out.writeInt(payload.length);
+        out.write(payload);
+    }
+
+    // 把若干字符串字段和一段二进制数据直接编码成完整的帧，图片数据只复制一次
+    static byte[] encode(byte type, byte flags, ByteBuffer data, String... fields) {
+        return encode(type, flags, 0, data, fields);
+    }
+
+    // 同上，帧在 streamId 指定的流上
+    static byte[] encode(byte type, byte flags, int streamId, ByteBuffer data, String... fields) {
+        byte[][] encoded = new byte[fields.length][];
+        int length = data.remaining();
+        for (int i = 0; i < fields.length; i++) {
+            encoded[i] = fields[i].getBytes(StandardCharsets.UTF_8);
+            length += 4 + encoded[i].length;
+        }
+        ByteBuffer buf = ByteBuffer.allocate(HEADER_SIZE + length);
+        buf.put(VERSION).put(type).put(flags).putInt(streamId).putInt(length);
+        for (byte[] field : encoded) {
+            buf.putInt(field.length);
+            buf.put(field);
+        }
+        buf.put(data.duplicate());
+        return buf.array();
+    }
+
+    // 从已编码的完整帧中取出负载的 [offset, offset + length) 作为流上的一个分片，每次调用复制一份分片数据
+    static byte[] fragment(byte[] frame, int streamId, int offset, int length) {
+        int payloadLength = frame.length - HEADER_SIZE;
+        boolean first = offset == 0;
+        boolean more = offset + length < payloadLength;
+        byte flags = (byte) ((first ? frame[2] : 0) | (more ? FLAG_MORE : 0));
+        ByteBuffer buf = ByteBuffer.allocate(HEADER_SIZE + length);
+        buf.put(VERSION).put(first ? frame[1] : DATA).put(flags).putInt(streamId).putInt(length);
+        buf.put(frame, HEADER_SIZE + offset, length);
+        return buf.array();
+    }
+
+    // 从阻塞流中读取一帧
+    static Frame read(DataInputStream in) throws IOException {
+        return read(in, MAX_PAYLOAD);
+    }
+
+    // 从阻塞流中读取一帧，负载超过 maxPayload 时抛出异常
+    static Frame read(DataInputStream in, int maxPayload) throws IOException {
+        byte version = in.readByte();
+        byte type = in.readByte();
+        byte flags = in.readByte();
+        int streamId = in.readInt();
+        int length = in.readInt();
+        checkHeader(version, length, maxPayload);
+        byte[] payload = new byte[length];
+        in.readFully(payload);
+        return new Frame(type, flags, streamId, payload);
+    }
+
+    // 从缓冲区中解出一帧，数据不完整时返回 null 且不移动读位置
+    static Frame decode(ByteBuffer buf) throws IOException {
+        return decode(buf, MAX_PAYLOAD);
+    }
+
+    // 同上，帧头中的负载长度超过 maxPayload 时抛出异常，不等待负载到齐
+    static Frame decode(ByteBuffer buf, int maxPayload) throws IOException {
+        if (buf.remaining() < HEADER_SIZE) {
+            return null;
+        }
+        int start = buf.position();
+        int length = buf.getInt(start + 7);
+        checkHeader(buf.get(start), length, maxPayload);
+        if (buf.remaining() < HEADER_SIZE + length) {
+            return null;
+        }
+        byte type = buf.get(start + 1);
+        byte flags = buf.get(start + 2);
+        int streamId = buf.getInt(start + 3);
+        byte[] payload = new byte[length];
+        buf.position(start + HEADER_SIZE);
+        buf.get(payload);
+        return new Frame(type, flags, streamId, payload);
+    }
+
+    // 缓冲区中下一帧的总长度，帧头不完整时返回 -1
+    static int frameLength(ByteBuffer buf) {
+        if (buf.remaining() < HEADER_SIZE) {
+            return -1;
+        }
+        return HEADER_SIZE + buf.getInt(buf.position() + 7);
+    }
+
+    private static void checkHeader(byte version, int length, int maxPayload) throws IOException {
+        if (version != VERSION) {
+            throw new IOException("不支持的协议版本: " + version);
+        }
+        if (length < 0 || length > maxPayload) {
+            throw new IOException("帧长度超出限制: " + length);
+        }
+    }
+
+    // 字符串按 writeUTF 编码后的字节数（不含两字节长度）
+    static int utfLength(String str) {
+        int length = 0;
+        for (int i = 0; i < str.length(); i++) {
+            char c = str.charAt(i);
+            length += c >= 0x0001 && c <= 0x007F ? 1 : c <= 0x07FF ? 2 : 3;
+        }
+        return length;
+    }
+
+    // 将字符串编码为 writeUTF 格式（两字节长度 + modified UTF-8），用于旧协议
+    static byte[] encodeUTF(String str) throws IOException {
+        return encodeUTF(str, null, 0, 0);
+    }
+
+    // 编码一条 writeUTF 消息：字符串头部后接一段 ASCII 数据（如 Base64），不经过 String
+    static byte[] encodeUTF(String head, byte[] ascii, int offset, int length) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream(head.length() * 3 + length + 2);
+        DataOutputStream out = new DataOutputStream(bos);
+        out.writeUTF(head);
+        byte[] bytes = bos.toByteArray();
+        int utfLength = bytes.length - 2 + length;
+        if (utfLength > MAX_UTF) {
+            throw new UTFDataFormatException("消息过长: " + utfLength);
+        }
+        bytes[0] = (byte) (utfLength >>> 8);
+        bytes[1] = (byte) utfLength;
+        bos.reset();
+        bos.write(bytes, 0, bytes.length);
+        if (ascii != null) {
+            bos.write(ascii, offset, length);
+        }
+        return bos.toByteArray();
+    }
+}
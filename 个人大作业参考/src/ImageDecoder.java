@@ -0,0 +1,158 @@
+import javax.imageio.ImageIO; // 导入图片读写类
+import javax.swing.SwingUtilities; // 导入 Swing 工具类
+import java.awt.*; // 导入用于布局和图形处理的 AWT 库
+import java.awt.image.BufferedImage; // 导入缓冲图片类
+import java.io.*; // 导入用于输入输出的类
+import java.util.Iterator; // 导入迭代器接口
+import java.util.LinkedHashMap; // 导入按顺序排列的哈希表
+import java.util.Map; // 导入地图接口
+import java.util.concurrent.*; // 导入线程池相关类
+import java.util.concurrent.locks.ReentrantLock; // 导入可重入锁类
+import java.util.function.Consumer; // 导入回调接口
+
+// 客户端的图片解码流水线
+// 图片的解码和缩放在一个有界的后台线程池中进行，网络线程和事件分发线程都不会等待解码；
+// 缩放好的缩略图放进一个按字节数限制大小的 LRU 缓存，结果通过 invokeLater 交回事件分发线程。
+class ImageDecoder {
+    static final int DEFAULT_THREADS = Integer.getInteger("chat.view.decoders",
+            Math.max(1, Runtime.getRuntime().availableProcessors() / 2));
+    static final long DEFAULT_CACHE_BYTES = Long.getLong("chat.view.thumbs.bytes", 32L * 1024 * 1024);
+    private static final int QUEUE_CAPACITY = 256; // 最多排队的解码任务数
+
+    // 一次解码的结果
+    static final class Result {
+        final byte[] bytes; // 图片编码字节
+        final BufferedImage thumb; // 缩略图，解码失败时为 null
+
+        Result(byte[] bytes, BufferedImage thumb) {
+            this.bytes = bytes;
+            this.thumb = thumb;
+        }
+    }
+
+    private final ThreadPoolExecutor pool; // 解码线程池
+    private final long maxCacheBytes; // 缓存的缩略图总字节数上限
+    private final ReentrantLock cacheLock = new ReentrantLock(); // 保护缓存的锁
+    private long cacheBytes = 0; // 缓存中的缩略图字节数
+    // 缩略图缓存，按访问顺序淘汰最久未用的
+    private final LinkedHashMap<Object, BufferedImage> cache = new LinkedHashMap<>(16, 0.75f, true);
+
+    ImageDecoder() {
+        this(DEFAULT_THREADS, DEFAULT_CACHE_BYTES);
+    }
+
+    ImageDecoder(int threads, long maxCacheBytes) {
+        this.maxCacheBytes = maxCacheBytes;
+        this.pool = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(QUEUE_CAPACITY), r -> {
+                    Thread t = new Thread(r, "image-decoder");
+                    t.setDaemon(true);
+                    t.setPriority(Thread.NORM_PRIORITY - 1); // 让出 CPU 给界面和网络线程
+                    return t;
+                });
+        this.pool.allowCoreThreadTimeOut(true);
+    }
+
+    // 取得已缓存的缩略图，没有时返回 null
+    BufferedImage cached(Object key) {
+        cacheLock.lock();
+        try {
+            return cache.get(key);
+        } finally {
+            cacheLock.unlock();
+        }
+    }
+
+    // 从缓存中移除
+    void evict(Object key) {
+        cacheLock.lock();
+        try {
+            BufferedImage old = cache.remove(key);
+            if (old != null) {
+                cacheBytes -= sizeOf(old);
+            }
+        } finally {
+            cacheLock.unlock();
+        }
+    }
+
+    // 在后台取得图片字节、解码并缩放到不超过 maxSize，结果放进缓存后在事件分发线程上回调；
+    // 排队的任务过多时返回 false，不执行
+    boolean submit(Object key, Callable<byte[]> source, int maxSize, Consumer<Result> onDone) {
+        try {
+            pool.execute(() -> {
+                Result result = decode(key, source, maxSize);
+                SwingUtilities.invokeLater(() -> onDone.accept(result));
+            });
+            return true;
+        } catch (RejectedExecutionException e) {
+            return false;
+        }
+    }
+
+    private Result decode(Object key, Callable<byte[]> source, int maxSize) {
+        byte[] bytes = null;
+        try {
+            bytes = source.call();
+            if (bytes == null) {
+                return new Result(null, null);
+            }
+            BufferedImage image = ImageIO.read(new ByteArrayInputStream(bytes));
+            if (image == null) {
+                return new Result(bytes, null);
+            }
+            double scale = Math.min(1.0,
+                    Math.min((double) maxSize / image.getWidth(), (double) maxSize / image.getHeight()));
+            BufferedImage thumb = scale(image, Math.max(1, (int) (image.getWidth() * scale)),
+                    Math.max(1, (int) (image.getHeight() * scale)));
+            put(key, thumb);
+            return new Result(bytes, thumb);
+        } catch (Exception e) {
+            return new Result(bytes, null);
+        }
+    }
+
+    private void put(Object key, BufferedImage thumb) {
+        cacheLock.lock();
+        try {
+            BufferedImage old = cache.put(key, thumb);
+            if (old != null) {
+                cacheBytes -= sizeOf(old);
+            }
+            cacheBytes += sizeOf(thumb);
+            Iterator<Map.Entry<Object, BufferedImage>> it = cache.entrySet().iterator();
+            while (cacheBytes > maxCacheBytes && it.hasNext()) {
+                Map.Entry<Object, BufferedImage> eldest = it.next();
+                if (eldest.getKey() == key) {
+                    continue; // 刚放入的不淘汰
+                }
+                cacheBytes -= sizeOf(eldest.getValue());
+                it.remove();
+            }
+        } finally {
+            cacheLock.unlock();
+        }
+    }
+
+    private static long sizeOf(BufferedImage image) {
+        return (long) image.getWidth() * image.getHeight() * 4;
+    }
+
+    // 缩放图片：每次最多缩小一半，逐步缩到目标尺寸，画质接近 SCALE_SMOOTH 而速度快得多
+    static BufferedImage scale(BufferedImage image, int width, int height) {
+        BufferedImage current = image;
+        int w = image.getWidth();
+        int h = image.getHeight();
+        do {
+            w = Math.max(width, w / 2);
+            h = Math.max(height, h / 2);
+            BufferedImage next = new BufferedImage(w, h, BufferedImage.TYPE_INT_ARGB);
+            Graphics2D g = next.createGraphics();
+            g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            g.drawImage(current, 0, 0, w, h, null);
+            g.dispose();
+            current = next;
+        } while (w != width || h != height);
+        return current;
+    }
+}
@@ -0,0 +1,160 @@
+import javax.imageio.IIOImage; // 导入带元数据的图片类
+import javax.imageio.ImageIO; // 导入图片读写类
+import javax.imageio.ImageReader; // 导入图片解码器类
+import javax.imageio.ImageWriteParam; // 导入图片编码参数类
+import javax.imageio.ImageWriter; // 导入图片编码器类
+import javax.imageio.stream.ImageInputStream; // 导入图片输入流接口
+import javax.imageio.stream.ImageOutputStream; // 导入图片输出流接口
+import java.awt.*; // 导入用于布局和图形处理的 AWT 库
+import java.awt.image.BufferedImage; // 导入缓冲图片类
+import java.io.*; // 导入用于输入输出的类
+import java.nio.file.Files; // 导入文件工具类
+import java.util.HashSet; // 导入哈希集合类
+import java.util.Iterator; // 导入迭代器接口
+import java.util.Set; // 导入集合接口
+import java.util.function.IntConsumer; // 导入进度回调接口
+
+// 客户端发送图片前的编码
+// 按图片内容选择发送格式：本身已经足够小的 JPEG/PNG/GIF 原样发送；照片缩小后编码为可调质量的 JPEG；
+// 截图等颜色很少或带透明的图片编码为 PNG。缩小时每次最多缩小一半，逐步缩到目标尺寸。
+class ImageEncoder {
+    static final int MAX_WIDTH = 1024; // 发送图片的最大宽度
+    static final int MAX_HEIGHT = 768; // 发送图片的最大高度
+    static final long PASS_THROUGH_BYTES = Long.getLong("chat.image.passthrough", 512 * 1024); // 原样发送的大小上限
+    static final float JPEG_QUALITY = Float.parseFloat(System.getProperty("chat.image.quality", "0.85"));
+    private static final int FLAT_COLORS = 1024; // 采样中不同颜色数不超过该值时视为截图
+
+    // 编码结果
+    static final class Encoded {
+        final byte[] bytes; // 编码后的图片字节
+        final String format; // jpeg、png 或 gif
+        final boolean passThrough; // 是否为原文件
+
+        Encoded(byte[] bytes, String format, boolean passThrough) {
+            this.bytes = bytes;
+            this.format = format;
+            this.passThrough = passThrough;
+        }
+    }
+
+    // 读取并编码一张图片，progress 接收 0~100 的进度；线程被中断时抛出 InterruptedIOException
+    static Encoded encode(File file, IntConsumer progress) throws IOException {
+        byte[] original = Files.readAllBytes(file.toPath());
+        progress.accept(10);
+        String format;
+        int width;
+        int height;
+        // 只读图片头，判断能否原样发送
+        try (ImageInputStream in = ImageIO.createImageInputStream(new ByteArrayInputStream(original))) {
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+            if (!readers.hasNext()) {
+                throw new IOException("无法识别的图片格式");
+            }
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(in);
+                format = reader.getFormatName().toLowerCase();
+                width = reader.getWidth(0);
+                height = reader.getHeight(0);
+            } finally {
+                reader.dispose();
+            }
+        }
+        if (format.equals("jpg")) {
+            format = "jpeg";
+        }
+        boolean webFormat = format.equals("jpeg") || format.equals("png") || format.equals("gif");
+        if (webFormat && original.length <= PASS_THROUGH_BYTES && width <= MAX_WIDTH && height <= MAX_HEIGHT) {
+            progress.accept(100);
+            return new Encoded(original, format, true); // 原样发送，GIF 动画也得以保留
+        }
+
+        checkInterrupted();
+        BufferedImage image = ImageIO.read(new ByteArrayInputStream(original));
+        if (image == null) {
+            throw new IOException("图片解码失败");
+        }
+        progress.accept(40);
+
+        checkInterrupted();
+        double scale = Math.min(1.0, Math.min((double) MAX_WIDTH / width, (double) MAX_HEIGHT / height));
+        if (scale < 1.0) {
+            image = ImageDecoder.scale(image, Math.max(1, (int) (width * scale)), Math.max(1, (int) (height * scale)));
+        }
+        progress.accept(60);
+
+        checkInterrupted();
+        boolean png = hasTransparency(image) || isFlat(image);
+        byte[] bytes = png ? writePng(image) : writeJpeg(image, JPEG_QUALITY);
+        progress.accept(100);
+        return new Encoded(bytes, png ? "png" : "jpeg", false);
+    }
+
+    private static void checkInterrupted() throws InterruptedIOException {
+        if (Thread.currentThread().isInterrupted()) {
+            throw new InterruptedIOException("已取消");
+        }
+    }
+
+    // 是否有半透明像素，JPEG 不能保存透明度
+    private static boolean hasTransparency(BufferedImage image) {
+        if (!image.getColorModel().hasAlpha()) {
+            return false;
+        }
+        int stepX = Math.max(1, image.getWidth() / 64);
+        int stepY = Math.max(1, image.getHeight() / 64);
+        for (int y = 0; y < image.getHeight(); y += stepY) {
+            for (int x = 0; x < image.getWidth(); x += stepX) {
+                if ((image.getRGB(x, y) >>> 24) != 0xFF) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    // 在 64×64 的网格上采样，颜色种类很少的（截图、图表、文字）用 PNG 更小也更清晰
+    private static boolean isFlat(BufferedImage image) {
+        Set<Integer> colors = new HashSet<>();
+        int stepX = Math.max(1, image.getWidth() / 64);
+        int stepY = Math.max(1, image.getHeight() / 64);
+        for (int y = 0; y < image.getHeight(); y += stepY) {
+            for (int x = 0; x < image.getWidth(); x += stepX) {
+                colors.add(image.getRGB(x, y) & 0xFFFFFF);
+                if (colors.size() > FLAT_COLORS) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    private static byte[] writePng(BufferedImage image) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ImageIO.write(image, "png", out);
+        return out.toByteArray();
+    }
+
+    private static byte[] writeJpeg(BufferedImage image, float quality) throws IOException {
+        // JPEG 编码器需要不带透明通道的图片
+        if (image.getType() != BufferedImage.TYPE_INT_RGB && image.getType() != BufferedImage.TYPE_3BYTE_BGR) {
+            BufferedImage rgb = new BufferedImage(image.getWidth(), image.getHeight(), BufferedImage.TYPE_INT_RGB);
+            Graphics2D g = rgb.createGraphics();
+            g.drawImage(image, 0, 0, Color.WHITE, null);
+            g.dispose();
+            image = rgb;
+        }
+        ImageWriter writer = ImageIO.getImageWritersByFormatName("jpeg").next();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (ImageOutputStream ios = ImageIO.createImageOutputStream(out)) {
+            writer.setOutput(ios);
+            ImageWriteParam param = writer.getDefaultWriteParam();
+            param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+            param.setCompressionQuality(quality);
+            writer.write(null, new IIOImage(image, null, null), param);
+        } finally {
+            writer.dispose();
+        }
+        return out.toByteArray();
+    }
+}
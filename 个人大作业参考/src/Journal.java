@@ -0,0 +1,273 @@
+import java.io.*; // 导入用于输入输出的类
+import java.nio.ByteBuffer; // 导入字节缓冲区类
+import java.nio.channels.FileChannel; // 导入文件通道类
+import java.nio.charset.StandardCharsets; // 导入字符集常量
+import java.nio.file.*; // 导入文件路径相关类
+import java.time.LocalDate; // 导入日期类
+import java.time.LocalDateTime; // 导入日期时间类
+import java.time.ZoneId; // 导入时区类
+import java.time.format.DateTimeFormatter; // 导入日期时间格式化类
+import java.util.Arrays; // 导入数组工具类
+import java.util.concurrent.ConcurrentLinkedQueue; // 导入无锁并发队列
+import java.util.concurrent.TimeUnit; // 导入时间单位枚举
+import java.util.concurrent.atomic.AtomicInteger; // 导入原子整数类
+import java.util.concurrent.atomic.AtomicLong; // 导入原子长整数类
+import java.util.concurrent.locks.LockSupport; // 导入线程挂起与唤醒工具
+
+// 异步的日志文件写入器
+// 处理消息的线程只把一行日志放进无锁队列就返回，由一个专门的写线程批量取出，
+// 通过一个一直打开的 FileChannel 一次写入（组提交），再按配置的策略 fsync。
+// 文件超过大小上限或跨天时把当前文件改名归档，再新建一个继续写。
+class Journal {
+    // fsync 策略
+    enum Sync {
+        NONE, // 只写入操作系统缓存，由系统决定何时落盘
+        BATCH, // 每批写入后 fsync
+        INTERVAL; // 每隔固定时间 fsync 一次
+
+        static Sync parse(String value) {
+            return Sync.valueOf(value.trim().toUpperCase());
+        }
+    }
+
+    // 默认配置，可通过系统属性修改
+    static final Sync DEFAULT_SYNC = Sync.parse(System.getProperty("chat.journal.sync", "interval"));
+    static final long SYNC_INTERVAL_MS = Long.getLong("chat.journal.sync.ms", 1000);
+    static final long ROTATE_BYTES = Long.getLong("chat.journal.rotate.bytes", 16L * 1024 * 1024);
+    static final boolean ROTATE_DAILY = Boolean.parseBoolean(System.getProperty("chat.journal.rotate.daily", "true"));
+    static final int MAX_PENDING = Integer.getInteger("chat.journal.pending", 65536);
+
+    private static final int BATCH_BYTES = 64 * 1024; // 每批最多写入的字节数
+    private static final DateTimeFormatter TIME_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+    private static final DateTimeFormatter ARCHIVE_FORMAT = DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss");
+    private static volatile CachedTime cachedTime = new CachedTime(-1, ""); // 最近一次格式化的时间
+
+    // 同一秒内的时间戳只格式化一次
+    private static final class CachedTime {
+        final long second; // 从 1970 年起的秒数
+        final String text; // 格式化结果
+
+        CachedTime(long second, String text) {
+            this.second = second;
+            this.text = text;
+        }
+    }
+
+    // 一行待写入的日志及其入队时间，用于统计写入延迟
+    private static final class Line {
+        final String text; // 日志内容
+        final long enqueued = System.nanoTime(); // 入队时间
+
+        Line(String text) {
+            this.text = text;
+        }
+    }
+
+    private final Path path; // 日志文件路径
+    private final Sync sync; // fsync 策略
+    private final ConcurrentLinkedQueue<Line> pending = new ConcurrentLinkedQueue<>(); // 等待写入的日志行
+    private final AtomicInteger pendingCount = new AtomicInteger(); // 等待写入的行数
+    private final AtomicLong dropped = new AtomicLong(); // 队列满时丢弃的行数
+    private final ByteBuffer batch = ByteBuffer.allocate(BATCH_BYTES); // 写线程的批量缓冲区
+    private long[] batchTimes = new long[256]; // 本批各行的入队时间（仅写线程访问）
+    private final Thread writer; // 写线程
+    private volatile boolean running = true; // 是否正在运行
+    private FileChannel channel; // 一直打开的文件通道（仅写线程访问）
+    private long fileSize; // 当前文件大小
+    private LocalDate fileDate; // 当前文件开始写入的日期
+    private long lastSync = System.currentTimeMillis(); // 上次 fsync 的时间
+    private boolean dirty = false; // 是否有未 fsync 的数据
+
+    Journal(String fileName) {
+        this(Paths.get(fileName), DEFAULT_SYNC);
+    }
+
+    Journal(Path path, Sync sync) {
+        this.path = path;
+        this.sync = sync;
+        this.writer = new Thread(this::writeLoop, "journal-writer");
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+    // 当前时间，格式为 yyyy-MM-dd HH:mm:ss，同一秒内重复调用直接返回缓存的字符串
+    static String now() {
+        long second = System.currentTimeMillis() / 1000;
+        CachedTime cached = cachedTime;
+        if (cached.second != second) {
+            cached = new CachedTime(second, LocalDateTime.now().format(TIME_FORMAT));
+            cachedTime = cached;
+        }
+        return cached.text;
+    }
+
+    // 追加一行日志，不等待磁盘；待写入的行过多时丢弃并计数
+    void append(String line) {
+        if (!running) {
+            return;
+        }
+        if (pendingCount.incrementAndGet() > MAX_PENDING) {
+            pendingCount.decrementAndGet();
+            dropped.incrementAndGet();
+            return;
+        }
+        pending.add(new Line(line));
+        LockSupport.unpark(writer);
+    }
+
+    // 等待写入的行数
+    int pending() {
+        return pendingCount.get();
+    }
+
+    // 因写入跟不上而丢弃的行数
+    long dropped() {
+        return dropped.get();
+    }
+
+    // 停止写线程，写完已排队的日志并 fsync 后关闭文件
+    void close() {
+        running = false;
+        LockSupport.unpark(writer);
+        try {
+            writer.join(5000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // 写线程：批量取出日志行写入文件，队列为空时挂起，最多等到下一次定时 fsync
+    private void writeLoop() {
+        while (running || !pending.isEmpty()) {
+            try {
+                if (pending.isEmpty()) {
+                    if (dirty && sync == Sync.INTERVAL) {
+                        long wait = lastSync + SYNC_INTERVAL_MS - System.currentTimeMillis();
+                        if (wait <= 0) {
+                            force();
+                            continue;
+                        }
+                        LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(wait));
+                    } else if (running) {
+                        LockSupport.park(this);
+                    }
+                    continue;
+                }
+                writeBatch();
+            } catch (IOException e) {
+                // 本批日志丢失，关闭文件，下一批时重新打开
+                System.out.println("写入日志失败：" + e.getMessage());
+                closeChannel();
+                dirty = false;
+                LockSupport.parkNanos(this, TimeUnit.SECONDS.toNanos(1));
+            }
+        }
+        try {
+            if (channel != null) {
+                force();
+            }
+        } catch (IOException e) {
+            System.out.println("写入日志失败：" + e.getMessage());
+        }
+        closeChannel();
+    }
+
+    // 取出尽可能多的日志行拼成一批，一次写入
+    private void writeBatch() throws IOException {
+        if (channel == null) {
+            open();
+        }
+        rotateIfNeeded();
+        batch.clear();
+        int lines = 0;
+        Line line;
+        while (batch.hasRemaining() && (line = pending.peek()) != null) {
+            byte[] bytes = line.text.getBytes(StandardCharsets.UTF_8);
+            if (bytes.length > batch.remaining()) {
+                if (batch.position() > 0) {
+                    break; // 放不下，留到下一批
+                }
+                pending.poll();
+                pendingCount.decrementAndGet();
+                writeFully(ByteBuffer.wrap(bytes)); // 超长的单行直接写出
+                Metrics.JOURNAL_LAG.record(Metrics.micros(line.enqueued));
+                break;
+            }
+            pending.poll();
+            pendingCount.decrementAndGet();
+            batch.put(bytes);
+            if (lines == batchTimes.length) {
+                batchTimes = Arrays.copyOf(batchTimes, lines * 2);
+            }
+            batchTimes[lines++] = line.enqueued;
+        }
+        batch.flip();
+        writeFully(batch);
+        for (int i = 0; i < lines; i++) {
+            Metrics.JOURNAL_LAG.record(Metrics.micros(batchTimes[i]));
+        }
+        dirty = true;
+        if (sync == Sync.BATCH || (sync == Sync.INTERVAL
+                && System.currentTimeMillis() - lastSync >= SYNC_INTERVAL_MS)) {
+            force();
+        }
+    }
+
+    private void writeFully(ByteBuffer buf) throws IOException {
+        while (buf.hasRemaining()) {
+            fileSize += channel.write(buf);
+        }
+    }
+
+    private void force() throws IOException {
+        if (dirty && sync != Sync.NONE) {
+            channel.force(false);
+        }
+        dirty = false;
+        lastSync = System.currentTimeMillis();
+    }
+
+    // 超过大小上限或跨天时归档当前文件并新建一个
+    private void rotateIfNeeded() throws IOException {
+        boolean tooBig = ROTATE_BYTES > 0 && fileSize >= ROTATE_BYTES;
+        boolean newDay = ROTATE_DAILY && fileSize > 0 && !LocalDate.now().equals(fileDate);
+        if (!tooBig && !newDay) {
+            return;
+        }
+        force();
+        closeChannel();
+        String name = path.getFileName().toString();
+        int dot = name.lastIndexOf('.');
+        String base = dot > 0 ? name.substring(0, dot) : name;
+        String ext = dot > 0 ? name.substring(dot) : "";
+        String stamp = base + "-" + LocalDateTime.now().format(ARCHIVE_FORMAT);
+        Path archive = path.resolveSibling(stamp + ext);
+        for (int i = 1; Files.exists(archive); i++) {
+            archive = path.resolveSibling(stamp + "-" + i + ext); // 同一秒内多次归档
+        }
+        Files.move(path, archive);
+        open();
+    }
+
+    private void open() throws IOException {
+        channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.APPEND);
+        fileSize = channel.size();
+        // 已有文件按最后修改日期计算是否跨天
+        fileDate = fileSize > 0
+                ? LocalDate.ofInstant(Files.getLastModifiedTime(path).toInstant(), ZoneId.systemDefault())
+                : LocalDate.now();
+    }
+
+    private void closeChannel() {
+        if (channel == null) {
+            return;
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            e.printStackTrace(); // 打印异常信息
+        }
+        channel = null;
+    }
+}
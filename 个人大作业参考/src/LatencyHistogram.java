@@ -0,0 +1,111 @@
+import java.util.concurrent.atomic.AtomicLong; // 导入原子长整型类
+import java.util.concurrent.atomic.AtomicLongArray; // 导入原子长整型数组类
+import java.util.concurrent.atomic.LongAdder; // 导入分段累加器类
+
+// 延迟直方图，单位为微秒
+// 对数线性分桶：128 微秒以下每微秒一个桶，之上每个 2 的幂区间再均分为 64 个桶，相对误差不超过 1.6%。
+// 桶数固定，记录时不分配内存，可以被任意多个线程同时记录。计数按线程分散到几组桶中，
+// 大量线程记录同一个桶时也不会争用同一个缓存行，读取时再把各组相加。
+class LatencyHistogram {
+    private static final int LINEAR = 128; // 精确记录的范围
+    private static final int SUB_BITS = 6; // 每个 2 的幂区间分为 2^6 个桶
+    private static final int MAX_EXPONENT = 36; // 最大约 19 小时，更大的值计入最后一个桶
+    private static final int BUCKETS = LINEAR + (MAX_EXPONENT - 7 + 1) * (1 << SUB_BITS);
+    // 桶的组数：不少于 CPU 核数的 2 的幂，最多 16 组
+    private static final int STRIPES = Integer.highestOneBit(
+            Math.min(16, Runtime.getRuntime().availableProcessors()) * 2 - 1);
+
+    private final AtomicLongArray[] counts = new AtomicLongArray[STRIPES]; // 每组桶的计数
+    private final LongAdder total = new LongAdder(); // 总计数
+    private final LongAdder sum = new LongAdder(); // 所有记录值之和
+    private final AtomicLong max = new AtomicLong(); // 最大值
+
+    LatencyHistogram() {
+        for (int i = 0; i < STRIPES; i++) {
+            counts[i] = new AtomicLongArray(BUCKETS);
+        }
+    }
+
+    void record(long micros) {
+        if (micros < 0) {
+            micros = 0; // 时钟误差
+        }
+        counts[(int) Thread.currentThread().threadId() & (STRIPES - 1)].incrementAndGet(index(micros));
+        total.increment();
+        sum.add(micros);
+        long m;
+        while (micros > (m = max.get()) && !max.compareAndSet(m, micros)) {
+            // 被其他线程抢先，重试
+        }
+    }
+
+    private static int index(long v) {
+        if (v < LINEAR) {
+            return (int) v;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(v); // 不小于 7
+        if (exponent > MAX_EXPONENT) {
+            return BUCKETS - 1;
+        }
+        int sub = (int) (v >>> (exponent - SUB_BITS)) & ((1 << SUB_BITS) - 1);
+        return LINEAR + ((exponent - 7) << SUB_BITS) + sub;
+    }
+
+    // 桶的上界（含），报告百分位时取上界，不会低估延迟
+    private static long upperBound(int index) {
+        if (index < LINEAR) {
+            return index;
+        }
+        int exponent = 7 + ((index - LINEAR) >> SUB_BITS);
+        int sub = (index - LINEAR) & ((1 << SUB_BITS) - 1);
+        long width = 1L << (exponent - SUB_BITS);
+        return (1L << exponent) + (sub + 1) * width - 1;
+    }
+
+    long count() {
+        return total.sum();
+    }
+
+    long sum() {
+        return sum.sum();
+    }
+
+    long max() {
+        return max.get();
+    }
+
+    // 百分位数，p 取 0~100；没有数据时返回 0
+    long percentile(double p) {
+        long n = total.sum();
+        if (n == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(n * p / 100.0));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            for (AtomicLongArray stripe : counts) {
+                seen += stripe.get(i);
+            }
+            if (seen >= rank) {
+                return Math.min(upperBound(i), max.get());
+            }
+        }
+        return max.get();
+    }
+
+    // 形如 "p50 1.2ms p99 8.5ms p999 20ms max 31ms (12345)" 的摘要
+    String summary() {
+        return "p50 " + format(percentile(50)) + " p99 " + format(percentile(99)) + " p999 "
+                + format(percentile(99.9)) + " max " + format(max()) + " (" + count() + ")";
+    }
+
+    static String format(long micros) {
+        if (micros < 1000) {
+            return micros + "µs";
+        }
+        if (micros < 10_000_000) {
+            return String.format("%.1fms", micros / 1000.0);
+        }
+        return String.format("%.1fs", micros / 1_000_000.0);
+    }
+}
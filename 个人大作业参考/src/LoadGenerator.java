@@ -0,0 +1,443 @@
+import java.io.*; // 导入用于输入输出的类
+import java.net.InetSocketAddress; // 导入套接字地址类
+import java.net.Socket; // 导入客户端套接字类
+import java.nio.ByteBuffer; // 导入字节缓冲区类
+import java.util.ArrayList; // 导入数组列表类
+import java.util.Base64; // 导入 Base64 编解码类
+import java.util.Collections; // 导入集合工具类
+import java.util.HashMap; // 导入哈希表类
+import java.util.List; // 导入列表接口
+import java.util.Map; // 导入地图接口
+import java.util.concurrent.CountDownLatch; // 导入倒计数门闩类
+import java.util.concurrent.ExecutorService; // 导入线程池接口
+import java.util.concurrent.Executors; // 导入线程池工厂类
+import java.util.concurrent.ThreadLocalRandom; // 导入线程本地随机数类
+import java.util.concurrent.TimeUnit; // 导入时间单位枚举
+import java.util.concurrent.atomic.AtomicLong; // 导入原子长整型类
+
+// 无界面的压力测试工具
+// 模拟大量聊天用户，使用与旧版 Client 相同的字符串协议：REGISTER: 注册、用户名,密码 登录、公共消息、
+// @用户：私聊，以及 [IMG_START] 分块发送的图片。每个用户一个虚拟线程读、一个虚拟线程按泊松间隔发送。
+// 每条消息带有本次运行的标记和计划发送时间，收到时计算端到端延迟，最后报告吞吐量、延迟百分位和错误数。
+// 计划发送时间取按速率排好的时间点而不是实际写出的时间，发送端被阻塞时积压的等待也计入延迟。
+public class LoadGenerator {
+    private final String host; // 服务器地址
+    private final int port; // 服务器端口
+    private final int userCount; // 模拟用户数
+    private final String prefix; // 用户名前缀，用户名为 前缀+编号
+    private final int roomCount; // 房间数，用户按编号轮流分到各房间并离开大厅；0 为都留在大厅
+    private final double rate; // 每个用户每秒发送的消息数
+    private final double imageRatio; // 图片消息的比例
+    private final double privateRatio; // 私聊消息的比例
+    private final int textBytes; // 文本消息的长度
+    private final int imageBytes; // 图片的字节数
+    private final int rampPerSecond; // 每秒建立的连接数
+    private final long warmupNanos; // 预热时间，期间发送的消息不计入延迟
+    private final long durationNanos; // 测量时间
+    private final int reportSeconds; // 中间报告的间隔
+
+    private final long runId = ThreadLocalRandom.current().nextLong(); // 本次运行的标记，区分回放的旧消息
+    private final String marker = "[lg:" + Long.toHexString(runId) + ":"; // 文本消息中的标记
+    private final String filler; // 文本消息的填充内容
+    private volatile long measureFrom = Long.MAX_VALUE; // 计划发送时间不早于该值的消息计入延迟
+    private volatile boolean running = true; // 发送线程是否继续
+
+    private final LatencyHistogram textLatency = new LatencyHistogram(); // 文本消息的延迟
+    private final LatencyHistogram imageLatency = new LatencyHistogram(); // 图片消息的延迟
+    private final AtomicLong sentText = new AtomicLong(); // 已发送的文本消息数
+    private final AtomicLong sentImages = new AtomicLong(); // 已发送的图片数
+    private final AtomicLong expected = new AtomicLong(); // 应当收到的消息数：公共消息按在线人数计，私聊计 1
+    private final AtomicLong received = new AtomicLong(); // 收到的本次运行的消息数
+    private final AtomicLong connectErrors = new AtomicLong(); // 连接失败数
+    private final AtomicLong loginErrors = new AtomicLong(); // 注册或登录失败数
+    private final AtomicLong ioErrors = new AtomicLong(); // 运行中断开的连接数
+    private final AtomicLong undelivered = new AtomicLong(); // 服务器回复私聊对象不在线的次数
+    private final AtomicLong badImages = new AtomicLong(); // 分块数不符或标记损坏的图片数
+
+    LoadGenerator(String host, int port, int userCount, String prefix, int roomCount, double rate, double imageRatio,
+            double privateRatio, int textBytes, int imageBytes, int rampPerSecond, int warmupSeconds,
+            int durationSeconds, int reportSeconds) {
+        this.host = host;
+        this.port = port;
+        this.userCount = userCount;
+        this.prefix = prefix;
+        this.roomCount = roomCount;
+        this.rate = rate;
+        this.imageRatio = imageRatio;
+        this.privateRatio = privateRatio;
+        this.textBytes = textBytes;
+        this.imageBytes = Math.max(32, imageBytes);
+        this.rampPerSecond = Math.max(1, rampPerSecond);
+        this.warmupNanos = TimeUnit.SECONDS.toNanos(warmupSeconds);
+        this.durationNanos = TimeUnit.SECONDS.toNanos(durationSeconds);
+        this.reportSeconds = Math.max(1, reportSeconds);
+        StringBuilder sb = new StringBuilder();
+        while (sb.length() < textBytes) {
+            sb.append("压力测试消息 load test message ");
+        }
+        this.filler = sb.substring(0, Math.max(0, textBytes));
+    }
+
+    // 一个模拟用户：一个连接、一个读线程和一个发送线程
+    private final class User {
+        final String name; // 用户名
+        final String room; // 所在的房间，null 为大厅
+        int roomSize; // 同一房间的用户数，即一条公共消息的接收者数
+        final Socket socket = new Socket(); // 连接
+        DataOutputStream dos; // 只由登录流程和发送线程使用
+        DataInputStream dis; // 只由登录流程和读线程使用
+        private String imageHead = null; // 正在接收的图片的第一块，时间戳在其中
+        private int expectedChunks = -1; // 正在接收的图片的总块数，-1 表示不在接收图片
+        private int receivedChunks = 0; // 已接收的块数
+
+        User(String name, String room) {
+            this.name = name;
+            this.room = room;
+        }
+
+        // 连接并登录，用户不存在时先注册；返回是否成功
+        boolean connect() {
+            try {
+                socket.connect(new InetSocketAddress(host, port), 10_000);
+                socket.setTcpNoDelay(true);
+                dos = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 64 * 1024));
+                dis = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 64 * 1024));
+            } catch (IOException e) {
+                connectErrors.incrementAndGet();
+                close();
+                return false;
+            }
+            try {
+                writeUTF("REGISTER:" + name + ",lg"); // 已注册过时服务器回复失败，不影响登录
+                String reply = dis.readUTF();
+                if (!reply.equals("register_success") && !reply.startsWith("register_failed")) {
+                    throw new IOException("注册应答异常: " + reply);
+                }
+                writeUTF(name + ",lg");
+                if (!dis.readUTF().equals("success")) {
+                    throw new IOException("登录失败");
+                }
+                if (room != null) {
+                    writeUTF("@@join " + room); // 服务器的确认由读线程忽略
+                    writeUTF("@@leave " + Rooms.LOBBY);
+                }
+                return true;
+            } catch (IOException e) {
+                loginErrors.incrementAndGet();
+                close();
+                return false;
+            }
+        }
+
+        private void writeUTF(String str) throws IOException {
+            dos.writeUTF(str);
+            dos.flush();
+        }
+
+        // 读线程：只关心带本次运行标记的消息，其他（加入、退出、回放的旧消息）直接丢弃
+        void read() {
+            try {
+                while (true) {
+                    String message = dis.readUTF();
+                    long now = System.nanoTime();
+                    if (expectedChunks >= 0) {
+                        if (message.equals("[IMG_END]")) {
+                            onImage(now);
+                        } else {
+                            if (receivedChunks == 0) {
+                                imageHead = message;
+                            }
+                            receivedChunks++;
+                        }
+                    } else if (message.startsWith("[IMG_START]")) {
+                        expectedChunks = Integer.parseInt(message.substring(11));
+                        receivedChunks = 0;
+                    } else {
+                        onText(message, now);
+                    }
+                }
+            } catch (IOException | RuntimeException e) {
+                if (running) {
+                    ioErrors.incrementAndGet();
+                }
+            } finally {
+                close();
+            }
+        }
+
+        // 文本消息：[显示名]：标记时间戳]内容 或 [发送者] 私聊说: 标记时间戳]内容
+        private void onText(String message, long now) {
+            int at = message.indexOf(marker);
+            if (at < 0) {
+                if (message.startsWith("用户 [") && message.contains("不在线")) {
+                    undelivered.incrementAndGet();
+                }
+                return;
+            }
+            int start = at + marker.length();
+            int end = message.indexOf(']', start);
+            if (end < 0) {
+                return;
+            }
+            record(textLatency, Long.parseLong(message.substring(start, end)), now);
+        }
+
+        // 图片：第一块为 [显示名]：[IMG]发送者|Base64，图片的前 16 字节为运行标记和时间戳
+        private void onImage(long now) {
+            String head = imageHead;
+            boolean complete = receivedChunks == expectedChunks;
+            imageHead = null;
+            expectedChunks = -1;
+            int bar = head == null ? -1 : head.indexOf('|', head.indexOf("[IMG]"));
+            if (!complete || bar < 0 || head.length() < bar + 1 + 24) {
+                badImages.incrementAndGet();
+                return;
+            }
+            ByteBuffer stamp = ByteBuffer.wrap(Base64.getDecoder().decode(head.substring(bar + 1, bar + 1 + 24)));
+            if (stamp.getLong() != runId) {
+                return; // 回放或其他人发的图片
+            }
+            record(imageLatency, stamp.getLong(), now);
+        }
+
+        private void record(LatencyHistogram histogram, long sentAt, long now) {
+            received.incrementAndGet();
+            if (sentAt >= measureFrom) {
+                histogram.record((now - sentAt) / 1000);
+            }
+        }
+
+        // 发送线程：按泊松过程排定发送时间，落后时立即补发，不跳过
+        void send(List<User> all) {
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            long next = System.nanoTime() + (long) (random.nextDouble() * 1e9 / rate); // 错开各用户的起点
+            try {
+                while (running) {
+                    long wait = next - System.nanoTime();
+                    if (wait > 0) {
+                        TimeUnit.NANOSECONDS.sleep(wait);
+                        if (!running) {
+                            break;
+                        }
+                    }
+                    String to = null;
+                    if (all.size() > 1 && random.nextDouble() < privateRatio) {
+                        User other;
+                        do {
+                            other = all.get(random.nextInt(all.size()));
+                        } while (other == this);
+                        to = other.name;
+                    }
+                    expected.addAndGet(to == null ? roomSize : 1); // 服务器的公共消息也发回发送者
+                    if (random.nextDouble() < imageRatio) {
+                        sendImage(to, next);
+                        sentImages.incrementAndGet();
+                    } else {
+                        String text = marker + next + "]" + filler;
+                        writeUTF(to == null ? text : "@" + to + "：" + text);
+                        sentText.incrementAndGet();
+                    }
+                    next += (long) (-Math.log(1 - random.nextDouble()) * 1e9 / rate);
+                }
+            } catch (IOException e) {
+                if (running) {
+                    ioErrors.incrementAndGet();
+                }
+                close();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        // 与 Client 的旧协议相同：[IMG]发送者|Base64 按 60000 字符分块，私聊时前面加 @接收者：
+        private void sendImage(String to, long sentAt) throws IOException {
+            byte[] data = new byte[imageBytes];
+            ThreadLocalRandom.current().nextBytes(data); // 每张图片内容不同，不会被服务器去重
+            ByteBuffer.wrap(data).putLong(runId).putLong(sentAt);
+            String message = "[IMG]" + name + "|" + Base64.getEncoder().encodeToString(data);
+            if (to != null) {
+                message = "@" + to + "：" + message;
+            }
+            int chunkSize = 60000;
+            int chunks = (message.length() + chunkSize - 1) / chunkSize;
+            dos.writeUTF("[IMG_START]" + chunks);
+            for (int i = 0; i < chunks; i++) {
+                dos.writeUTF(message.substring(i * chunkSize, Math.min((i + 1) * chunkSize, message.length())));
+            }
+            dos.writeUTF("[IMG_END]");
+            dos.flush();
+        }
+
+        void close() {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // 已经关闭
+            }
+        }
+    }
+
+    // 运行一次压测：建立所有连接，预热，测量，然后打印结果
+    void run() throws InterruptedException {
+        ExecutorService threads = Executors.newVirtualThreadPerTaskExecutor();
+        List<User> users = new ArrayList<>();
+        long connectStart = System.nanoTime();
+        CountDownLatch connected = new CountDownLatch(userCount);
+        List<User> online = Collections.synchronizedList(new ArrayList<>());
+        for (int i = 0; i < userCount; i++) {
+            User user = new User(prefix + i, roomCount > 0 ? prefix + "-" + i % roomCount : null);
+            users.add(user);
+            threads.execute(() -> {
+                if (user.connect()) {
+                    online.add(user);
+                    threads.execute(user::read);
+                }
+                connected.countDown();
+            });
+            // 按 rampPerSecond 控制建立连接的速度，避免瞬间的连接风暴
+            long due = connectStart + (i + 1) * 1_000_000_000L / rampPerSecond;
+            long wait = due - System.nanoTime();
+            if (wait > 0) {
+                TimeUnit.NANOSECONDS.sleep(wait);
+            }
+        }
+        connected.await();
+        List<User> all = new ArrayList<>(online);
+        Map<String, Integer> roomSizes = new HashMap<>();
+        for (User user : all) {
+            roomSizes.merge(String.valueOf(user.room), 1, Integer::sum);
+        }
+        for (User user : all) {
+            user.roomSize = roomSizes.get(String.valueOf(user.room));
+        }
+        System.out.printf("已连接 %d/%d 个用户，用时 %.1fs，连接失败 %d，登录失败 %d%n", all.size(), userCount,
+                (System.nanoTime() - connectStart) / 1e9, connectErrors.get(), loginErrors.get());
+        if (all.isEmpty()) {
+            threads.shutdownNow();
+            return;
+        }
+
+        long start = System.nanoTime();
+        measureFrom = start + warmupNanos;
+        for (User user : all) {
+            threads.execute(() -> user.send(all));
+        }
+        long end = measureFrom + durationNanos;
+        long lastSent = 0;
+        long lastReceived = 0;
+        long lastReport = start;
+        while (System.nanoTime() < end) {
+            TimeUnit.NANOSECONDS.sleep(Math.min(TimeUnit.SECONDS.toNanos(reportSeconds), end - System.nanoTime()));
+            long now = System.nanoTime();
+            long sent = sentText.get() + sentImages.get();
+            long got = received.get();
+            double seconds = (now - lastReport) / 1e9;
+            System.out.printf("%5.0fs%s 发送 %.0f/s 收到 %.0f/s 文本 %s 错误 %d%n", (now - start) / 1e9,
+                    now < measureFrom ? "(预热)" : "", (sent - lastSent) / seconds, (got - lastReceived) / seconds,
+                    textLatency.summary(), errors());
+            lastSent = sent;
+            lastReceived = got;
+            lastReport = now;
+        }
+        running = false;
+        long stopped = System.nanoTime();
+        TimeUnit.SECONDS.sleep(2); // 等待在途消息到达
+        for (User user : users) {
+            user.close(); // 读线程随之结束
+        }
+        threads.shutdownNow(); // 唤醒还在等待下一次发送的线程
+        threads.awaitTermination(5, TimeUnit.SECONDS);
+
+        double seconds = (stopped - start) / 1e9;
+        System.out.println("==== 结果 ====");
+        System.out.printf("用户 %d，运行 %.1fs（预热 %ds），每用户 %.2f 条/秒，图片 %.0f%%，私聊 %.0f%%%n", all.size(),
+                seconds, TimeUnit.NANOSECONDS.toSeconds(warmupNanos), rate, imageRatio * 100, privateRatio * 100);
+        System.out.printf("发送 文本 %d，图片 %d，%.0f 条/秒%n", sentText.get(), sentImages.get(),
+                (sentText.get() + sentImages.get()) / seconds);
+        System.out.printf("收到 %d 条，%.0f 条/秒，送达率 %.2f%%（服务器按队列策略丢弃的消息不会到达）%n", received.get(),
+                received.get() / seconds, expected.get() == 0 ? 100.0 : 100.0 * received.get() / expected.get());
+        System.out.println("文本延迟 " + textLatency.summary());
+        System.out.println("图片延迟 " + imageLatency.summary());
+        System.out.printf("错误 连接 %d，登录 %d，断开 %d，私聊未送达 %d，图片损坏 %d%n", connectErrors.get(),
+                loginErrors.get(), ioErrors.get(), undelivered.get(), badImages.get());
+    }
+
+    private long errors() {
+        return connectErrors.get() + loginErrors.get() + ioErrors.get() + undelivered.get() + badImages.get();
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        String host = "localhost";
+        int port = ChatServer.DEFAULT_PORT;
+        int users = 100;
+        String prefix = "lg";
+        int rooms = 0;
+        double rate = 1;
+        double imageRatio = 0.01;
+        double privateRatio = 0.1;
+        int textBytes = 64;
+        int imageBytes = 32 * 1024;
+        int ramp = 200;
+        int warmup = 5;
+        int duration = 30;
+        int report = 5;
+        try {
+            for (int i = 0; i < args.length; i++) {
+                switch (args[i]) {
+                    case "--host":
+                        host = args[++i];
+                        break;
+                    case "--port":
+                        port = Integer.parseInt(args[++i]);
+                        break;
+                    case "--users":
+                        users = Integer.parseInt(args[++i]);
+                        break;
+                    case "--prefix":
+                        prefix = args[++i];
+                        break;
+                    case "--rooms":
+                        rooms = Integer.parseInt(args[++i]);
+                        break;
+                    case "--rate":
+                        rate = Double.parseDouble(args[++i]);
+                        break;
+                    case "--images":
+                        imageRatio = Double.parseDouble(args[++i]);
+                        break;
+                    case "--private":
+                        privateRatio = Double.parseDouble(args[++i]);
+                        break;
+                    case "--text-bytes":
+                        textBytes = Integer.parseInt(args[++i]);
+                        break;
+                    case "--image-bytes":
+                        imageBytes = Integer.parseInt(args[++i]);
+                        break;
+                    case "--ramp":
+                        ramp = Integer.parseInt(args[++i]);
+                        break;
+                    case "--warmup":
+                        warmup = Integer.parseInt(args[++i]);
+                        break;
+                    case "--duration":
+                        duration = Integer.parseInt(args[++i]);
+                        break;
+                    case "--report":
+                        report = Integer.parseInt(args[++i]);
+                        break;
+                    default:
+                        throw new IllegalArgumentException(args[i]);
+                }
+            }
+        } catch (RuntimeException e) {
+            System.err.println("用法: java LoadGenerator [--host localhost] [--port 8080] [--users 100] [--prefix lg]");
+            System.err.println("       [--rooms 房间数] [--rate 每用户每秒消息数] [--images 图片比例] [--private 私聊比例]");
+            System.err.println("       [--text-bytes 64] [--image-bytes 32768] [--ramp 每秒连接数]");
+            System.err.println("       [--warmup 秒] [--duration 秒] [--report 秒]");
+            System.exit(args.length > 0 && args[0].equals("--help") ? 0 : 2);
+        }
+        new LoadGenerator(host, port, users, prefix, rooms, rate, imageRatio, privateRatio, textBytes, imageBytes, ramp,
+                warmup, duration, report).run();
+    }
+}
@@ -0,0 +1,519 @@
+import java.io.*; // 导入用于输入输出的类
+import java.nio.ByteBuffer; // 导入字节缓冲区类
+import java.nio.channels.Channels; // 导入通道与流的转换工具
+import java.nio.channels.FileChannel; // 导入文件通道类
+import java.nio.charset.StandardCharsets; // 导入字符集常量
+import java.nio.file.*; // 导入文件路径相关类
+import java.util.ArrayDeque; // 导入双端队列类
+import java.util.ArrayList; // 导入数组列表类
+import java.util.Arrays; // 导入数组工具类
+import java.util.List; // 导入列表接口
+import java.util.Map; // 导入地图接口
+import java.util.TreeMap; // 导入有序地图类
+import java.util.concurrent.LinkedBlockingQueue; // 导入阻塞队列类
+import java.util.concurrent.TimeUnit; // 导入时间单位枚举
+import java.util.concurrent.atomic.AtomicLong; // 导入原子长整数类
+import java.util.concurrent.locks.ReentrantLock; // 导入可重入锁类
+
+// 公共聊天消息的持久化记录
+// 每条消息分配一个递增的序号，只追加写入段文件（文件名为段内第一条消息的序号）。段文件超过大小上限后
+// 新开一段，总大小或时间超过保留上限的旧段整段删除。每段有一个稀疏索引文件，每隔若干条记录保存一项
+// （序号, 时间, 文件位置），按序号查找时先在索引中二分，再从最近的索引项顺序读几条即可，不需要扫描整段。
+// 最近的若干条消息同时保存在内存中，登录时的回放直接从内存取；写文件在单独的写线程上进行，
+// 读取更早的消息只打开文件按位置读，两者都不会阻塞发送消息的线程。
+// 记录格式：| 长度 4B | 序号 8B | 时间 8B | UTF-8 文本 |，长度不含自身。
+class MessageLog {
+    static final long SEGMENT_BYTES = Long.getLong("chat.history.segment.bytes", 4L * 1024 * 1024); // 单段大小上限
+    static final long RETAIN_BYTES = Long.getLong("chat.history.bytes", 256L * 1024 * 1024); // 保留的总大小
+    static final long RETAIN_DAYS = Long.getLong("chat.history.days", 30); // 保留的天数，0 为不按时间删除
+    static final int TAIL_SIZE = Integer.getInteger("chat.history.tail", 1000); // 内存中保留的最近消息数
+
+    private static final int INDEX_INTERVAL = 64; // 每隔多少条记录保存一个索引项
+    private static final int RECORD_HEADER = 20; // 记录头长度
+    private static final int INDEX_ENTRY = 24; // 索引项长度：序号、时间、位置各 8 字节
+    private static final int BATCH_BYTES = 64 * 1024; // 写线程的批量缓冲区大小
+
+    // 一条消息
+    static final class Entry {
+        final long seq; // 序号
+        final long time; // 发送时间（毫秒）
+        final String text; // 显示的文本
+
+        Entry(long seq, long time, String text) {
+            this.seq = seq;
+            this.time = time;
+            this.text = text;
+        }
+    }
+
+    // 一个段文件及其稀疏索引（size 和 index 由 lock 保护）
+    private static final class Segment {
+        final long base; // 段内第一条消息的序号
+        final Path log; // 记录文件
+        final Path idx; // 索引文件
+        long size; // 已写入且可以读取的字节数
+        long[] index = new long[3 * 16]; // 索引项，每项依次为序号、时间、位置
+        int indexCount = 0; // 索引项数
+
+        Segment(Path dir, long base) {
+            this.base = base;
+            this.log = dir.resolve(String.format("%020d.log", base));
+            this.idx = dir.resolve(String.format("%020d.idx", base));
+        }
+
+        void addIndex(long seq, long time, long pos) {
+            if (indexCount * 3 == index.length) {
+                index = Arrays.copyOf(index, index.length * 2);
+            }
+            index[indexCount * 3] = seq;
+            index[indexCount * 3 + 1] = time;
+            index[indexCount * 3 + 2] = pos;
+            indexCount++;
+        }
+
+        // 序号不大于 seq 的最后一个索引项所指的文件位置
+        long floorPosition(long seq) {
+            int lo = 0;
+            int hi = indexCount - 1;
+            long pos = 0;
+            while (lo <= hi) {
+                int mid = (lo + hi) >>> 1;
+                if (index[mid * 3] <= seq) {
+                    pos = index[mid * 3 + 2];
+                    lo = mid + 1;
+                } else {
+                    hi = mid - 1;
+                }
+            }
+            return pos;
+        }
+
+        // 段内第一条消息的时间，段为空时返回 Long.MAX_VALUE
+        long firstTime() {
+            return indexCount > 0 ? index[1] : Long.MAX_VALUE;
+        }
+    }
+
+    private final Path dir; // 段文件所在目录
+    private final ReentrantLock lock = new ReentrantLock(); // 保护段列表、内存中的消息和序号
+    private final TreeMap<Long, Segment> segments = new TreeMap<>(); // 按起始序号排列的段
+    private final ArrayDeque<Entry> tail = new ArrayDeque<>(); // 最近的消息
+    private long nextSeq = 1; // 下一条消息的序号
+    private final LinkedBlockingQueue<Entry> queue = new LinkedBlockingQueue<>(65536); // 等待写入的消息
+    private final AtomicLong dropped = new AtomicLong(); // 写入跟不上而未保存到文件的消息数
+    private final Thread writer; // 写线程
+    private volatile boolean running = true; // 是否正在运行
+
+    // 以下只在写线程上访问
+    private Segment active; // 正在写入的段
+    private FileChannel channel; // 正在写入的段文件
+    private FileChannel idxChannel; // 正在写入的索引文件
+    private long writePos; // 下一条记录在段文件中的位置
+    private int sinceIndex; // 上一个索引项之后写入的记录数
+    private final ByteBuffer batch = ByteBuffer.allocate(BATCH_BYTES); // 批量缓冲区
+    private final ByteBuffer idxBatch = ByteBuffer.allocate(INDEX_ENTRY * 64); // 待写入的索引项
+
+    MessageLog(Path dir) throws IOException {
+        this.dir = dir;
+        Files.createDirectories(dir);
+        load();
+        this.writer = new Thread(this::writeLoop, "history-writer");
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+    // 读取已有的段：旧段直接加载索引文件，最后一段重新扫描，截掉异常退出时写了一半的记录
+    private void load() throws IOException {
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, "*.log")) {
+            for (Path p : stream) {
+                String name = p.getFileName().toString();
+                try {
+                    long base = Long.parseLong(name.substring(0, name.length() - 4));
+                    segments.put(base, new Segment(dir, base));
+                } catch (NumberFormatException e) {
+                    // 不是段文件，忽略
+                }
+            }
+        }
+        for (Segment s : segments.values()) {
+            s.size = Files.size(s.log);
+            if (s != segments.lastEntry().getValue() && loadIndex(s)) {
+                continue;
+            }
+            long last = scan(s);
+            if (s == segments.lastEntry().getValue()) {
+                nextSeq = last >= 0 ? last + 1 : s.base;
+            }
+        }
+        if (!segments.isEmpty()) {
+            active = segments.lastEntry().getValue();
+            channel = FileChannel.open(active.log, StandardOpenOption.WRITE);
+            idxChannel = FileChannel.open(active.idx, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+            writePos = active.size;
+            sinceIndex = INDEX_INTERVAL; // 重新打开后的第一条记录总是建立索引
+        }
+        tail.addAll(before(nextSeq, TAIL_SIZE));
+    }
+
+    // 加载索引文件，文件不完整或与段文件不符时返回 false
+    private boolean loadIndex(Segment s) {
+        try {
+            byte[] bytes = Files.readAllBytes(s.idx);
+            if (bytes.length == 0 || bytes.length % INDEX_ENTRY != 0) {
+                return false;
+            }
+            ByteBuffer buf = ByteBuffer.wrap(bytes);
+            while (buf.hasRemaining()) {
+                long seq = buf.getLong();
+                long time = buf.getLong();
+                long pos = buf.getLong();
+                if (pos >= s.size) {
+                    s.indexCount = 0;
+                    return false;
+                }
+                s.addIndex(seq, time, pos);
+            }
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    // 顺序扫描一段，重建索引并截掉末尾不完整的记录，返回最后一条消息的序号，段为空时返回 -1
+    private long scan(Segment s) throws IOException {
+        s.indexCount = 0;
+        long pos = 0;
+        long last = -1;
+        int count = 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(s.log), BATCH_BYTES))) {
+            while (pos + RECORD_HEADER <= s.size) {
+                int length = in.readInt();
+                if (length < RECORD_HEADER - 4 || pos + 4 + length > s.size) {
+                    break;
+                }
+                long seq = in.readLong();
+                long time = in.readLong();
+                in.skipNBytes(length - (RECORD_HEADER - 4));
+                if (count++ % INDEX_INTERVAL == 0) {
+                    s.addIndex(seq, time, pos);
+                }
+                last = seq;
+                pos += 4 + length;
+            }
+        }
+        if (pos < s.size) {
+            try (FileChannel ch = FileChannel.open(s.log, StandardOpenOption.WRITE)) {
+                ch.truncate(pos);
+            }
+            s.size = pos;
+        }
+        ByteBuffer buf = ByteBuffer.allocate(s.indexCount * INDEX_ENTRY);
+        for (int i = 0; i < s.indexCount * 3; i++) {
+            buf.putLong(s.index[i]);
+        }
+        Files.write(s.idx, buf.array());
+        return last;
+    }
+
+    // 追加一条消息，返回其序号；只放进内存和写入队列，不等待磁盘
+    long append(String text) {
+        lock.lock();
+        try {
+            Entry entry = new Entry(nextSeq++, System.currentTimeMillis(), text);
+            tail.addLast(entry);
+            if (tail.size() > TAIL_SIZE) {
+                tail.removeFirst();
+            }
+            if (running && !queue.offer(entry)) {
+                dropped.incrementAndGet(); // 仍然可以从内存中回放，只是不会保存
+            }
+            return entry.seq;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // 最近的 n 条消息，按序号从旧到新，只读内存
+    List<Entry> recent(int n) {
+        lock.lock();
+        try {
+            ArrayList<Entry> result = new ArrayList<>(Math.min(n, tail.size()));
+            int skip = Math.max(0, tail.size() - n);
+            for (Entry e : tail) {
+                if (skip-- <= 0) {
+                    result.add(e);
+                }
+            }
+            return result;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // 最早一条仍保留的消息的序号
+    long firstSeq() {
+        lock.lock();
+        try {
+            if (!segments.isEmpty()) {
+                return segments.firstKey();
+            }
+            return tail.isEmpty() ? nextSeq : tail.getFirst().seq;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // 序号小于 beforeSeq 的最近 n 条消息，按序号从旧到新；较新的部分在内存中，
+    // 更早的按索引定位到文件位置后读取，不扫描整段
+    List<Entry> before(long beforeSeq, int n) {
+        long start = Math.max(firstSeq(), beforeSeq - n);
+        ArrayList<Entry> result = new ArrayList<>();
+        if (start >= beforeSeq) {
+            return result;
+        }
+        ArrayList<Segment> toRead = new ArrayList<>();
+        ArrayList<Long> sizes = new ArrayList<>();
+        long startPos = 0;
+        lock.lock();
+        try {
+            if (!tail.isEmpty() && tail.getFirst().seq <= start) {
+                collectTail(result, start, beforeSeq);
+                return result;
+            }
+            Map.Entry<Long, Segment> first = segments.floorEntry(start);
+            if (first != null) {
+                startPos = first.getValue().floorPosition(start);
+                for (Segment s : segments.tailMap(first.getKey()).values()) {
+                    if (s.base >= beforeSeq) {
+                        break;
+                    }
+                    toRead.add(s);
+                    sizes.add(s.size); // 只读到已写完的位置
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+        for (int i = 0; i < toRead.size(); i++) {
+            if (!readSegment(toRead.get(i), i == 0 ? startPos : 0, sizes.get(i), start, beforeSeq, result)) {
+                break;
+            }
+        }
+        // 还没写入文件的部分从内存中补齐
+        long from = result.isEmpty() ? start : result.get(result.size() - 1).seq + 1;
+        if (from < beforeSeq) {
+            lock.lock();
+            try {
+                collectTail(result, from, beforeSeq);
+            } finally {
+                lock.unlock();
+            }
+        }
+        return result;
+    }
+
+    private void collectTail(List<Entry> result, long from, long beforeSeq) {
+        for (Entry e : tail) {
+            if (e.seq >= from && e.seq < beforeSeq) {
+                result.add(e);
+            }
+        }
+    }
+
+    // 从 pos 开始读一段中序号在 [start, beforeSeq) 的记录，读到 beforeSeq 时返回 false
+    private boolean readSegment(Segment s, long pos, long size, long start, long beforeSeq, List<Entry> result) {
+        try (FileChannel ch = FileChannel.open(s.log, StandardOpenOption.READ)) {
+            ch.position(pos);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(ch), 16 * 1024));
+            while (pos + RECORD_HEADER <= size) {
+                int length = in.readInt();
+                long seq = in.readLong();
+                long time = in.readLong();
+                if (seq >= beforeSeq) {
+                    return false;
+                }
+                byte[] text = new byte[length - (RECORD_HEADER - 4)];
+                in.readFully(text);
+                if (seq >= start) {
+                    result.add(new Entry(seq, time, new String(text, StandardCharsets.UTF_8)));
+                }
+                pos += 4 + length;
+            }
+            return true;
+        } catch (IOException e) {
+            return false; // 段已被删除
+        }
+    }
+
+    // 写线程：批量取出消息写入当前段
+    private void writeLoop() {
+        ArrayList<Entry> entries = new ArrayList<>();
+        while (running || !queue.isEmpty()) {
+            try {
+                Entry first = queue.poll(200, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                entries.add(first);
+                queue.drainTo(entries, 1023);
+            } catch (InterruptedException e) {
+                continue;
+            }
+            try {
+                for (Entry e : entries) {
+                    write(e);
+                }
+                flush();
+            } catch (IOException e) {
+                System.err.println("写入消息记录失败: " + e.getMessage());
+                closeActive(); // 下一批写入时新开一段
+            }
+            entries.clear();
+        }
+        try {
+            flush();
+            if (channel != null) {
+                channel.force(false);
+            }
+        } catch (IOException e) {
+            System.err.println("写入消息记录失败: " + e.getMessage());
+        }
+        closeActive();
+    }
+
+    private void write(Entry e) throws IOException {
+        if (channel == null || writePos >= SEGMENT_BYTES) {
+            roll(e.seq);
+        }
+        byte[] text = e.text.getBytes(StandardCharsets.UTF_8);
+        int length = RECORD_HEADER + text.length;
+        if (length > batch.remaining()) {
+            flush();
+        }
+        if (sinceIndex++ >= INDEX_INTERVAL - 1 || writePos == 0) {
+            sinceIndex = 0;
+            idxBatch.putLong(e.seq).putLong(e.time).putLong(writePos);
+            if (!idxBatch.hasRemaining()) {
+                flush();
+            }
+        }
+        if (length > batch.capacity()) {
+            // 超长的消息直接写入
+            ByteBuffer big = ByteBuffer.allocate(length);
+            big.putInt(length - 4).putLong(e.seq).putLong(e.time).put(text).flip();
+            while (big.hasRemaining()) {
+                channel.write(big, writePos + length - big.remaining());
+            }
+        } else {
+            batch.putInt(length - 4).putLong(e.seq).putLong(e.time).put(text);
+        }
+        writePos += length;
+    }
+
+    // 把缓冲区写入文件，写完之后才更新段的可读大小和索引，读取方不会读到写了一半的记录
+    private void flush() throws IOException {
+        if (channel == null) {
+            return;
+        }
+        batch.flip();
+        long pos = writePos - batch.remaining();
+        while (batch.hasRemaining()) {
+            pos += channel.write(batch, pos);
+        }
+        batch.clear();
+        idxBatch.flip();
+        ByteBuffer newIndex = idxBatch.duplicate();
+        while (idxBatch.hasRemaining()) {
+            idxChannel.write(idxBatch);
+        }
+        idxBatch.clear();
+        lock.lock();
+        try {
+            active.size = writePos;
+            while (newIndex.hasRemaining()) {
+                active.addIndex(newIndex.getLong(), newIndex.getLong(), newIndex.getLong());
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // 新开一段并删除超出保留上限的旧段
+    private void roll(long base) throws IOException {
+        flush();
+        closeActive();
+        Segment s = new Segment(dir, base);
+        channel = FileChannel.open(s.log, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+        idxChannel = FileChannel.open(s.idx, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+        active = s;
+        writePos = 0;
+        sinceIndex = 0;
+        lock.lock();
+        try {
+            segments.put(base, s);
+            retain();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // 删除最早的段，直到总大小和最早消息的时间都在保留范围内；正在写入的段不删（调用时持有锁）
+    private void retain() {
+        long total = 0;
+        for (Segment s : segments.values()) {
+            total += s.size;
+        }
+        long cutoff = System.currentTimeMillis() - TimeUnit.DAYS.toMillis(RETAIN_DAYS);
+        while (segments.size() > 1) {
+            Segment oldest = segments.firstEntry().getValue();
+            Segment next = segments.higherEntry(oldest.base).getValue();
+            // 下一段的第一条消息早于截止时间，说明这一段的所有消息都已过期
+            boolean expired = RETAIN_DAYS > 0 && next.firstTime() < cutoff;
+            if (total <= RETAIN_BYTES && !expired) {
+                break;
+            }
+            segments.pollFirstEntry();
+            total -= oldest.size;
+            try {
+                Files.deleteIfExists(oldest.log);
+                Files.deleteIfExists(oldest.idx);
+            } catch (IOException e) {
+                e.printStackTrace(); // 打印异常信息
+            }
+        }
+    }
+
+    private void closeActive() {
+        try {
+            if (channel != null) {
+                channel.close();
+            }
+            if (idxChannel != null) {
+                idxChannel.close();
+            }
+        } catch (IOException e) {
+            e.printStackTrace(); // 打印异常信息
+        }
+        channel = null;
+        idxChannel = null;
+        batch.clear();
+        idxBatch.clear();
+    }
+
+    // 写入跟不上而未保存到文件的消息数
+    long dropped() {
+        return dropped.get();
+    }
+
+    // 停止写线程，写完已排队的消息后关闭文件
+    void close() {
+        running = false; // 写线程最多等待 200 毫秒就会发现；不能中断它，否则正在写的文件通道会被关闭
+        try {
+            writer.join(5000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
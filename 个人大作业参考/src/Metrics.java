@@ -0,0 +1,342 @@
+import com.sun.net.httpserver.HttpServer; // 导入 JDK 自带的 HTTP 服务器
+import javax.management.*; // 导入 JMX 管理接口
+import java.io.*; // 导入用于输入输出的类
+import java.lang.management.ManagementFactory; // 导入管理工厂类
+import java.net.InetAddress; // 导入网络地址类
+import java.net.InetSocketAddress; // 导入套接字地址类
+import java.nio.charset.StandardCharsets; // 导入字符集常量
+import java.util.ArrayList; // 导入数组列表类
+import java.util.LinkedHashMap; // 导入按顺序排列的哈希表
+import java.util.List; // 导入列表接口
+import java.util.Locale; // 导入区域设置类
+import java.util.Map; // 导入地图接口
+import java.util.TreeMap; // 导入有序哈希表
+import java.util.concurrent.ConcurrentHashMap; // 导入并发哈希表
+import java.util.concurrent.Executors; // 导入线程池工厂类
+import java.util.concurrent.ScheduledExecutorService; // 导入定时线程池接口
+import java.util.concurrent.TimeUnit; // 导入时间单位枚举
+import java.util.concurrent.atomic.LongAdder; // 导入分段累加器类
+import java.util.function.LongSupplier; // 导入长整型提供者接口
+
+// 服务器的运行指标
+// 计数器用 LongAdder，各线程累加时互不争用；延迟和队列深度用 LatencyHistogram 记录分布。
+// 后台线程每秒取一次计数器的快照，用于计算最近 10 秒和 60 秒的速率。
+// 同一份数据有三种查看方式：控制台 stats 命令、JMX（chat:type=Server）和本机的 HTTP 文本接口
+// （http://127.0.0.1:9180/metrics，Prometheus 文本格式）。记录一次只是几次无锁累加，可以一直开着。
+class Metrics {
+    static final int HTTP_PORT = Integer.getInteger("chat.metrics.port", 9180); // HTTP 接口端口，0 为不开启
+    private static final int WINDOW = 60; // 保留最近 60 秒的快照
+
+    // 一个只增不减的计数器
+    static final class Counter {
+        final String name; // 指标名，不含 _total 后缀
+        final String help; // 说明
+        private final LongAdder adder = new LongAdder();
+
+        private Counter(String name, String help) {
+            this.name = name;
+            this.help = help;
+        }
+
+        void increment() {
+            adder.increment();
+        }
+
+        void add(long n) {
+            adder.add(n);
+        }
+
+        long get() {
+            return adder.sum();
+        }
+    }
+
+    // 一个延迟或深度分布
+    private static final class Distribution {
+        final String name; // 指标名
+        final String help; // 说明
+        final boolean micros; // 记录值是否为微秒，输出时换算为秒
+        final LatencyHistogram histogram = new LatencyHistogram();
+
+        Distribution(String name, String help, boolean micros) {
+            this.name = name;
+            this.help = help;
+            this.micros = micros;
+        }
+    }
+
+    private static final List<Counter> counters = new ArrayList<>();
+    private static final List<Distribution> distributions = new ArrayList<>();
+    private static final Map<String, LongSupplier> gauges = new ConcurrentHashMap<>(); // 由服务器注册的即时值
+
+    static final Counter MESSAGES_IN = counter("chat_messages_in", "收到的聊天消息和命令数");
+    static final Counter MESSAGES_OUT = counter("chat_messages_out", "从发送队列取出的消息数");
+    static final Counter BYTES_IN = counter("chat_bytes_in", "从客户端读取的字节数");
+    static final Counter BYTES_OUT = counter("chat_bytes_out", "写入套接字的字节数");
+    static final Counter IMAGES_IN = counter("chat_images_in", "收到的图片数");
+    static final Counter LOGINS = counter("chat_logins", "登录成功次数");
+    static final Counter LOGIN_FAILURES = counter("chat_login_failures", "登录失败次数");
+    static final Counter REGISTRATIONS = counter("chat_registrations", "注册成功次数");
+    static final Counter DISCONNECTS = counter("chat_disconnects", "已登录连接的断开次数");
+    static final Counter RESUMES = counter("chat_resumes", "断线后恢复会话的次数");
+    static final Counter SESSIONS_EXPIRED = counter("chat_sessions_expired", "断线后未在保留时间内恢复的会话数");
+    static final Counter DROPPED = counter("chat_dropped", "发送队列溢出丢弃的消息数");
+    static final Counter SEND_FAILURES = counter("chat_send_failures", "放入发送队列失败的次数");
+    static final Counter CLUSTER_OUT = counter("chat_cluster_out", "转发给其他集群节点的帧数");
+    static final Counter CLUSTER_IN = counter("chat_cluster_in", "其他集群节点转发来的消息数");
+
+    // 收到消息到放进所有接收者队列（路由）的时间
+    static final LatencyHistogram ROUTE = distribution("chat_route_latency_seconds", "消息路由延迟", true);
+    // 放进发送队列到被写线程取出（投递）的时间，每个队列每 16 条抽样一次
+    static final LatencyHistogram DELIVERY = distribution("chat_delivery_latency_seconds", "队列投递延迟", true);
+    // 日志行放进队列到写入文件的时间
+    static final LatencyHistogram JOURNAL_LAG = distribution("chat_journal_lag_seconds", "日志写入延迟", true);
+    // 入队后该连接发送队列中的消息数，与投递延迟同时抽样
+    static final LatencyHistogram QUEUE_DEPTH = distribution("chat_queue_depth", "入队后的发送队列深度", false);
+
+    private static final long startMillis = System.currentTimeMillis(); // 启动时间
+    private static final long[][] history = new long[WINDOW + 1][]; // 每秒一次的计数器快照，环形使用
+    private static long ticks = 0; // 已取的快照数
+    private static HttpServer http; // HTTP 接口，未开启时为 null
+    private static boolean exposed = false; // 是否已开启 JMX 和 HTTP
+
+    static {
+        ScheduledExecutorService sampler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "metrics-sampler");
+            t.setDaemon(true);
+            return t;
+        });
+        sampler.scheduleAtFixedRate(Metrics::sample, 0, 1, TimeUnit.SECONDS);
+    }
+
+    private static Counter counter(String name, String help) {
+        Counter c = new Counter(name, help);
+        counters.add(c);
+        return c;
+    }
+
+    private static LatencyHistogram distribution(String name, String help, boolean micros) {
+        Distribution d = new Distribution(name, help, micros);
+        distributions.add(d);
+        return d.histogram;
+    }
+
+    // 注册一个即时值，同名的覆盖旧的
+    static void gauge(String name, LongSupplier value) {
+        gauges.put(name, value);
+    }
+
+    // 从纳秒时间点到现在的微秒数
+    static long micros(long startNanos) {
+        return (System.nanoTime() - startNanos) / 1000;
+    }
+
+    // 统计读取字节数的输入流，用于阻塞模式的连接；NIO 模式在事件循环读取后直接累加
+    static InputStream counting(InputStream in) {
+        return new FilterInputStream(in) {
+            @Override
+            public int read() throws IOException {
+                int b = super.read();
+                if (b >= 0) {
+                    BYTES_IN.increment();
+                }
+                return b;
+            }
+
+            @Override
+            public int read(byte[] buf, int off, int len) throws IOException {
+                int n = super.read(buf, off, len);
+                if (n > 0) {
+                    BYTES_IN.add(n);
+                }
+                return n;
+            }
+        };
+    }
+
+    private static synchronized void sample() {
+        long[] values = new long[counters.size()];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = counters.get(i).get();
+        }
+        history[(int) (ticks % history.length)] = values;
+        ticks++;
+    }
+
+    // 计数器在最近 seconds 秒内的每秒速率，运行时间不足时按已有的快照计算
+    private static synchronized double rate(int index, int seconds) {
+        if (ticks < 2) {
+            return 0;
+        }
+        int span = (int) Math.min(seconds, ticks - 1);
+        long[] newest = history[(int) ((ticks - 1) % history.length)];
+        long[] oldest = history[(int) ((ticks - 1 - span) % history.length)];
+        return (double) (newest[index] - oldest[index]) / span;
+    }
+
+    // 开启 JMX 和 HTTP 接口，只在第一次调用时生效；失败只记录日志，不影响服务器运行
+    static synchronized void expose(ChatServer.Events events) {
+        if (exposed) {
+            return;
+        }
+        exposed = true;
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName("chat:type=Server");
+            if (!server.isRegistered(name)) {
+                server.registerMBean(new MBean(), name);
+            }
+        } catch (JMException e) {
+            events.log("JMX 指标注册失败: " + e.getMessage() + "\n");
+        }
+        if (HTTP_PORT <= 0) {
+            return;
+        }
+        try {
+            http = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), HTTP_PORT), 0);
+            http.createContext("/metrics", exchange -> {
+                byte[] body = prometheus().getBytes(StandardCharsets.UTF_8);
+                exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+                exchange.sendResponseHeaders(200, body.length);
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write(body);
+                }
+            });
+            http.setExecutor(null); // 在 HTTP 服务器自己的线程上处理，不占用聊天的线程
+            http.start();
+            events.log("指标接口: http://127.0.0.1:" + HTTP_PORT + "/metrics\n");
+        } catch (IOException e) {
+            events.log("指标接口启动失败（端口 " + HTTP_PORT + "）: " + e.getMessage() + "\n");
+        }
+    }
+
+    // 控制台 stats 命令的输出
+    static String report() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("运行 ").append((System.currentTimeMillis() - startMillis) / 1000).append(" 秒");
+        for (Map.Entry<String, LongSupplier> g : new TreeMap<>(gauges).entrySet()) {
+            sb.append("，").append(g.getKey()).append(" ").append(g.getValue().getAsLong());
+        }
+        sb.append("\n计数（最近 10 秒 / 60 秒的每秒速率）：\n");
+        for (int i = 0; i < counters.size(); i++) {
+            Counter c = counters.get(i);
+            sb.append(String.format(Locale.ROOT, "  %-22s %14d  %10.1f/s %10.1f/s  %s%n", c.name, c.get(),
+                    rate(i, 10), rate(i, 60), c.help));
+        }
+        sb.append("分布（启动以来）：\n");
+        for (Distribution d : distributions) {
+            LatencyHistogram h = d.histogram;
+            sb.append("  ").append(d.help).append(" ");
+            if (d.micros) {
+                sb.append(h.summary());
+            } else {
+                sb.append("p50 ").append(h.percentile(50)).append(" p99 ").append(h.percentile(99))
+                        .append(" p999 ").append(h.percentile(99.9)).append(" max ").append(h.max())
+                        .append(" (").append(h.count()).append(")");
+            }
+            sb.append("\n");
+        }
+        return sb.toString();
+    }
+
+    // Prometheus 文本格式：计数器为 counter，分布为带分位数的 summary，即时值为 gauge
+    static String prometheus() {
+        StringBuilder sb = new StringBuilder(4096);
+        for (Counter c : counters) {
+            sb.append("# HELP ").append(c.name).append("_total ").append(c.help).append('\n');
+            sb.append("# TYPE ").append(c.name).append("_total counter\n");
+            sb.append(c.name).append("_total ").append(c.get()).append('\n');
+        }
+        for (Distribution d : distributions) {
+            LatencyHistogram h = d.histogram;
+            sb.append("# HELP ").append(d.name).append(' ').append(d.help).append('\n');
+            sb.append("# TYPE ").append(d.name).append(" summary\n");
+            for (String q : new String[] {"0.5", "0.9", "0.99", "0.999"}) {
+                sb.append(d.name).append("{quantile=\"").append(q).append("\"} ")
+                        .append(value(d, h.percentile(Double.parseDouble(q) * 100))).append('\n');
+            }
+            sb.append(d.name).append("_sum ").append(value(d, h.sum())).append('\n');
+            sb.append(d.name).append("_count ").append(h.count()).append('\n');
+        }
+        for (Map.Entry<String, LongSupplier> g : gauges.entrySet()) {
+            sb.append("# TYPE ").append(g.getKey()).append(" gauge\n");
+            sb.append(g.getKey()).append(' ').append(g.getValue().getAsLong()).append('\n');
+        }
+        return sb.toString();
+    }
+
+    private static String value(Distribution d, long v) {
+        return d.micros ? String.format(Locale.ROOT, "%.6f", v / 1e6) : Long.toString(v);
+    }
+
+    // 所有指标的当前值，JMX 属性名与 Prometheus 指标名相同，分布展开为 _p50 / _p99 / _p999 / _max / _count
+    private static Map<String, Long> snapshot() {
+        Map<String, Long> values = new LinkedHashMap<>();
+        for (Counter c : counters) {
+            values.put(c.name + "_total", c.get());
+        }
+        for (Distribution d : distributions) {
+            LatencyHistogram h = d.histogram;
+            String unit = d.micros ? "_micros" : "";
+            String base = d.micros ? d.name.replace("_seconds", "") : d.name;
+            values.put(base + "_p50" + unit, h.percentile(50));
+            values.put(base + "_p99" + unit, h.percentile(99));
+            values.put(base + "_p999" + unit, h.percentile(99.9));
+            values.put(base + "_max" + unit, h.max());
+            values.put(base + "_count", h.count());
+        }
+        for (Map.Entry<String, LongSupplier> g : gauges.entrySet()) {
+            values.put(g.getKey(), g.getValue().getAsLong());
+        }
+        return values;
+    }
+
+    // 只读的动态 MBean，属性集合与 snapshot 相同
+    private static final class MBean implements DynamicMBean {
+        @Override
+        public Object getAttribute(String attribute) throws AttributeNotFoundException {
+            Long value = snapshot().get(attribute);
+            if (value == null) {
+                throw new AttributeNotFoundException(attribute);
+            }
+            return value;
+        }
+
+        @Override
+        public AttributeList getAttributes(String[] attributes) {
+            Map<String, Long> values = snapshot();
+            AttributeList list = new AttributeList();
+            for (String a : attributes) {
+                if (values.containsKey(a)) {
+                    list.add(new Attribute(a, values.get(a)));
+                }
+            }
+            return list;
+        }
+
+        @Override
+        public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+            throw new AttributeNotFoundException("指标为只读: " + attribute.getName());
+        }
+
+        @Override
+        public AttributeList setAttributes(AttributeList attributes) {
+            return new AttributeList();
+        }
+
+        @Override
+        public Object invoke(String actionName, Object[] params, String[] signature) throws MBeanException {
+            throw new MBeanException(new UnsupportedOperationException(actionName));
+        }
+
+        @Override
+        public MBeanInfo getMBeanInfo() {
+            List<MBeanAttributeInfo> attributes = new ArrayList<>();
+            for (String name : snapshot().keySet()) {
+                attributes.add(new MBeanAttributeInfo(name, "long", name, true, false, false));
+            }
+            return new MBeanInfo(Metrics.class.getName(), "聊天服务器运行指标",
+                    attributes.toArray(new MBeanAttributeInfo[0]), null, null, null);
+        }
+    }
+}
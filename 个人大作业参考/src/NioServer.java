@@ -0,0 +1,393 @@
+import java.io.*; // 导入用于输入输出的类
+import java.net.InetSocketAddress; // 导入套接字地址类
+import java.nio.ByteBuffer; // 导入字节缓冲区类
+import java.nio.channels.*; // 导入 NIO 通道和选择器相关类
+import java.util.Iterator; // 导入迭代器接口
+import java.util.Queue; // 导入队列接口
+import java.util.concurrent.ConcurrentLinkedQueue; // 导入无锁并发队列
+import java.util.concurrent.Executor; // 导入任务执行器接口
+import java.util.concurrent.atomic.AtomicBoolean; // 导入原子布尔类
+import java.util.function.Consumer; // 导入消费者函数接口
+import java.util.function.Supplier; // 导入提供者函数接口
+
+// 基于 ServerSocketChannel 和 Selector 的非阻塞服务器
+// 一个接收线程负责 accept，固定数量的 I/O 线程各自持有一个 Selector 处理读写，
+// 每个连接只占用一对读写缓冲区，而不是一个阻塞在 readUTF 上的线程
+class NioServer {
+    private static final int READ_BUFFER_SIZE = 4096; // 读缓冲区初始大小
+
+    private final ChatServer server; // 所属的服务器
+    private final int port; // 监听端口
+    private final Worker[] workers; // I/O 线程
+    private ServerSocketChannel serverChannel; // 服务器通道
+    private volatile boolean running = false; // 是否正在运行
+    private int nextWorker = 0; // 轮询分配连接的下标
+
+    NioServer(ChatServer server, int port, int ioThreads) {
+        this.server = server;
+        this.port = port;
+        this.workers = new Worker[Math.max(1, ioThreads)];
+    }
+
+    // 打开监听端口并启动接收线程和 I/O 线程
+    void start() throws IOException {
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(port), 1024);
+        running = true;
+        for (int i = 0; i < workers.length; i++) {
+            workers[i] = new Worker(Selector.open());
+            workers[i].thread = new Thread(workers[i], "nio-io-" + i);
+            workers[i].thread.setDaemon(true);
+            workers[i].thread.start();
+        }
+        Thread acceptor = new Thread(this::acceptLoop, "nio-accept");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    // 关闭监听端口和所有 I/O 线程
+    void stop() throws IOException {
+        running = false;
+        serverChannel.close();
+        for (Worker w : workers) {
+            if (w != null) {
+                w.selector.wakeup();
+            }
+        }
+    }
+
+    // 接收新连接，并轮询分配给 I/O 线程
+    private void acceptLoop() {
+        while (running) {
+            try {
+                SocketChannel ch = serverChannel.accept(); // 接受客户端连接
+                ch.configureBlocking(false);
+                ch.socket().setTcpNoDelay(true);
+                Worker w = workers[nextWorker];
+                nextWorker = (nextWorker + 1) % workers.length;
+                w.register(ch);
+            } catch (ClosedChannelException e) {
+                break; // 服务器已关闭
+            } catch (IOException e) {
+                e.printStackTrace(); // 打印异常信息
+            }
+        }
+    }
+
+    // I/O 线程：独占一个 Selector，处理分配给它的所有连接
+    class Worker implements Runnable {
+        final Selector selector; // 选择器
+        Thread thread; // 运行本 Worker 的线程
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>(); // 需要在本线程执行的任务
+
+        Worker(Selector selector) {
+            this.selector = selector;
+        }
+
+        // 由接收线程调用，把新连接交给本线程注册
+        void register(SocketChannel ch) {
+            execute(() -> {
+                try {
+                    Connection conn = new Connection(ch, this);
+                    conn.key = ch.register(selector, SelectionKey.OP_READ, conn);
+                } catch (IOException e) {
+                    e.printStackTrace(); // 打印异常信息
+                }
+            });
+        }
+
+        // 提交一个任务到本线程执行并唤醒选择器
+        void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            while (running) {
+                try {
+                    selector.select();
+                    Runnable task;
+                    while ((task = tasks.poll()) != null) {
+                        task.run();
+                    }
+                    Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                    while (it.hasNext()) {
+                        SelectionKey key = it.next();
+                        it.remove();
+                        Connection conn = (Connection) key.attachment();
+                        if (!key.isValid()) {
+                            continue;
+                        }
+                        if (key.isReadable()) {
+                            conn.onReadable();
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            conn.flush();
+                        }
+                    }
+                } catch (IOException e) {
+                    e.printStackTrace(); // 打印异常信息
+                }
+            }
+            // 关闭本线程上的所有连接
+            for (SelectionKey key : selector.keys()) {
+                ((Connection) key.attachment()).closeQuietly();
+            }
+            try {
+                selector.close();
+            } catch (IOException e) {
+                e.printStackTrace(); // 打印异常信息
+            }
+        }
+    }
+
+    // 一个非阻塞连接：持有自己的读缓冲区和有界发送队列
+    class Connection implements ChatServer.Transport {
+        private final SocketChannel channel; // 客户端通道
+        private final Worker worker; // 所属的 I/O 线程
+        private final ChatServer.HandleClient handler; // 消息处理逻辑，与阻塞模式共用
+        private final String address; // 对端 IP 地址
+        private final OutboundQueue queue = new OutboundQueue(); // 发送队列
+        private ByteBuffer current = null; // 正在写出的数据（仅 I/O 线程访问）
+        private final AtomicBoolean flushScheduled = new AtomicBoolean(false); // 是否已安排写出
+        private ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE); // 读缓冲区
+        SelectionKey key; // 在选择器上的注册键
+        private volatile boolean open = true; // 连接是否打开
+        private volatile boolean closing = false; // 是否在写完待写数据后关闭
+        private boolean paused = false; // 是否在等待 await 的结果，期间不读取也不处理输入（仅 I/O 线程访问）
+
+        Connection(SocketChannel channel, Worker worker) throws IOException {
+            this.channel = channel;
+            this.worker = worker;
+            this.address = ((InetSocketAddress) channel.getRemoteAddress()).getAddress().getHostAddress();
+            this.handler = server.new HandleClient(this);
+        }
+
+        // 通道可读：读入数据并切分出完整的消息，协商前为 writeUTF 字符串，协商后为二进制帧
+        void onReadable() {
+            if (paused) {
+                return; // 同一轮选择中已经暂停
+            }
+            try {
+                int n = channel.read(readBuffer);
+                if (closing) {
+                    readBuffer.clear(); // 正在关闭，丢弃后续输入
+                    return;
+                }
+                if (n < 0) {
+                    closeQuietly(); // 对端关闭
+                    return;
+                }
+                Metrics.BYTES_IN.add(n);
+                process();
+            } catch (IOException | RuntimeException e) {
+                closeQuietly();
+            }
+        }
+
+        // 处理读缓冲区中完整的消息（调用时缓冲区处于写模式），暂停时其余输入留在缓冲区中
+        private void process() throws IOException {
+            readBuffer.flip();
+            int needed; // 下一条消息的总长度，未知时为 -1
+            while (true) {
+                if (paused) {
+                    needed = -1;
+                    break;
+                }
+                if (handler.isFramed()) {
+                    Frame frame = Frame.decode(readBuffer, handler.maxPayload()); // 登录前不为大帧扩容
+                    if (frame == null) {
+                        needed = Frame.frameLength(readBuffer);
+                        break; // 帧还不完整
+                    }
+                    if (!handler.onFrame(frame)) {
+                        closing = true; // 客户端已退出，写完回复后关闭
+                        flush();
+                        return;
+                    }
+                } else {
+                    if (readBuffer.remaining() < 2) {
+                        needed = -1;
+                        break;
+                    }
+                    int len = ((readBuffer.get(readBuffer.position()) & 0xFF) << 8)
+                            | (readBuffer.get(readBuffer.position() + 1) & 0xFF);
+                    if (readBuffer.remaining() < 2 + len) {
+                        needed = 2 + len;
+                        break; // 消息还不完整
+                    }
+                    byte[] utf = new byte[2 + len];
+                    readBuffer.get(utf);
+                    String str = new DataInputStream(new ByteArrayInputStream(utf)).readUTF();
+                    if (!handler.onMessage(str)) {
+                        closing = true; // 客户端已退出，写完回复后关闭
+                        flush();
+                        return;
+                    }
+                }
+            }
+            readBuffer.compact();
+            // 缓冲区放不下下一条消息时扩容到恰好能放下；大消息处理完后缩回初始大小
+            if (needed > readBuffer.capacity()) {
+                resizeReadBuffer(needed);
+            } else if (needed <= READ_BUFFER_SIZE && readBuffer.capacity() > READ_BUFFER_SIZE
+                    && readBuffer.position() <= READ_BUFFER_SIZE) {
+                resizeReadBuffer(READ_BUFFER_SIZE);
+            }
+        }
+
+        // 替换读缓冲区，保留其中尚未处理的数据（调用时缓冲区处于写模式）
+        private void resizeReadBuffer(int capacity) {
+            ByteBuffer resized = ByteBuffer.allocate(capacity);
+            readBuffer.flip();
+            resized.put(readBuffer);
+            readBuffer = resized;
+        }
+
+        @Override
+        public void write(byte[] data, boolean bulk) throws IOException {
+            if (!open) {
+                throw new IOException("连接已关闭");
+            }
+            if (!queue.offer(data, bulk)) {
+                worker.execute(this::closeQuietly); // 按溢出策略断开
+                throw new IOException("发送队列已满，已断开连接");
+            }
+            scheduleFlush();
+        }
+
+        @Override
+        public void grant(int stream, int bytes) {
+            if (queue.grant(stream, bytes)) {
+                scheduleFlush(); // 等待窗口的分片可以继续写出
+            }
+        }
+
+        @Override
+        public void wake() {
+            scheduleFlush(); // 有新的转发分片或转发被取消
+        }
+
+        // 安排一次写出，已经安排过的话由那次写出一并处理
+        private void scheduleFlush() {
+            if (flushScheduled.compareAndSet(false, true)) {
+                if (Thread.currentThread() == worker.thread) {
+                    flush();
+                } else {
+                    worker.execute(this::flush);
+                }
+            }
+        }
+
+        // 在 I/O 线程上把待写队列尽量写入通道，写不完则关注 OP_WRITE
+        void flush() {
+            if (!open || !key.isValid()) {
+                return;
+            }
+            try {
+                while (true) {
+                    if (current == null) {
+                        byte[] data = queue.poll();
+                        if (data == null) {
+                            if (closing) {
+                                closeQuietly();
+                                return;
+                            }
+                            key.interestOps(readOps());
+                            flushScheduled.set(false);
+                            // 清除标记后再检查一次，避免漏掉并发加入的数据
+                            if (queue.isEmpty() || !flushScheduled.compareAndSet(false, true)) {
+                                return;
+                            }
+                            continue;
+                        }
+                        current = ByteBuffer.wrap(data).asReadOnlyBuffer(); // 只读视图，共享的编码结果不会被复制
+                    }
+                    Metrics.BYTES_OUT.add(channel.write(current));
+                    if (current.hasRemaining()) {
+                        key.interestOps(readOps() | SelectionKey.OP_WRITE); // 等待通道可写
+                        return;
+                    }
+                    current = null;
+                }
+            } catch (IOException e) {
+                closeQuietly();
+            }
+        }
+
+        private int readOps() {
+            return paused ? 0 : SelectionKey.OP_READ;
+        }
+
+        // 由 I/O 线程在处理输入时调用：暂停读取，task 在 background 上完成后回到本线程执行 then，再继续处理输入
+        @Override
+        public <T> void await(Executor background, Supplier<T> task, Consumer<T> then) {
+            paused = true;
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+            background.execute(() -> {
+                T result;
+                try {
+                    result = task.get();
+                } catch (RuntimeException e) {
+                    worker.execute(this::closeQuietly); // 不能恢复读取，断开连接
+                    return;
+                }
+                worker.execute(() -> {
+                    paused = false;
+                    if (!open) {
+                        return;
+                    }
+                    try {
+                        then.accept(result);
+                        key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+                        process(); // 暂停期间留在缓冲区中的输入
+                    } catch (IOException | RuntimeException e) {
+                        closeQuietly();
+                    }
+                });
+            });
+        }
+
+        @Override
+        public boolean isOpen() {
+            return open;
+        }
+
+        @Override
+        public void close() throws IOException {
+            // 先把已排队的数据写完再关闭，例如 @@quit 的 ##exit 回复
+            closing = true;
+            worker.execute(this::flush);
+        }
+
+        // 关闭通道并通知处理逻辑
+        void closeQuietly() {
+            if (!open) {
+                return;
+            }
+            open = false;
+            if (key != null) {
+                key.cancel();
+            }
+            try {
+                channel.close();
+            } catch (IOException e) {
+                e.printStackTrace(); // 打印异常信息
+            }
+            queue.clear();
+            current = null;
+            handler.onDisconnect();
+        }
+
+        @Override
+        public String remoteAddress() {
+            return address;
+        }
+
+        @Override
+        public OutboundQueue queue() {
+            return queue;
+        }
+    }
+}
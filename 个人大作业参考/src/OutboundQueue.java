@@ -0,0 +1,490 @@
+import java.util.ArrayDeque; // 导入双端队列类
+import java.util.Iterator; // 导入迭代器接口
+import java.util.List; // 导入列表接口
+import java.util.concurrent.atomic.AtomicInteger; // 导入原子整数类
+import java.util.concurrent.locks.Condition; // 导入条件变量接口
+import java.util.concurrent.locks.ReentrantLock; // 导入可重入锁类
+
+// 每个连接自己的有界发送队列
+// 广播和私聊只把已编码的数据放进接收者的队列就返回，由该连接自己的写线程（阻塞模式）
+// 或所属的 I/O 线程（NIO 模式）取出写入套接字。一个接收很慢的客户端只会让自己的队列变满，
+// 按溢出策略丢弃或断开，不会拖住发送者和其他连接。
+// 文字和控制消息排在图片等大块数据前面。接收方支持分片传输时，大块数据在取出时才拆成分片，
+// 每次只取一个分片，分片之间可以插入新的文字消息，几张图片轮流发送，每个流受接收方归还的窗口限制。
+class OutboundQueue {
+    // 队列满时的处理策略
+    enum Overflow {
+        DROP_OLDEST, // 丢弃最早的消息
+        DROP_IMAGES, // 先丢弃排队中的图片，仍放不下时丢弃最早的消息
+        DISCONNECT; // 断开该连接
+
+        static Overflow parse(String value) {
+            return Overflow.valueOf(value.trim().toUpperCase().replace('-', '_'));
+        }
+    }
+
+    // 默认容量和策略，可通过系统属性配置
+    static final int DEFAULT_MAX_MESSAGES = Integer.getInteger("chat.queue.messages", 1024);
+    static final long DEFAULT_MAX_BYTES = Long.getLong("chat.queue.bytes", 16L * 1024 * 1024);
+    static final Overflow DEFAULT_POLICY = Overflow.parse(System.getProperty("chat.queue.policy", "drop-images"));
+
+    // 每个队列每隔 SAMPLE 条消息记录一次队列深度和投递延迟，其余消息不读时钟，必须是 2 的幂
+    private static final int SAMPLE = 16;
+
+    // 队列中的一项
+    private static class Item {
+        final byte[] data; // 已编码的数据，可能被多个队列共享
+        final boolean bulk; // 是否为图片等大块数据
+        int sent = 0; // 分片发送时已发出的负载字节数
+        int stream = 0; // 分片发送时所用的流 ID，尚未开始时为 0
+        int credit = Streams.WINDOW; // 分片发送时该流剩余的窗口
+
+        Item(byte[] data, boolean bulk) {
+            this.data = data;
+            this.bulk = bulk;
+        }
+    }
+
+    // 被抽样的一项，带入队时间
+    private static final class Timed extends Item {
+        final long enqueued = System.nanoTime();
+
+        Timed(byte[] data, boolean bulk) {
+            super(data, bulk);
+        }
+    }
+
+    // 边收边转的一张图片在该队列中的进度，分片保存在 Relay 中，所有接收者共用
+    static final class RelayItem extends Item {
+        final Relay relay; // 所属的转发
+        volatile int next = 0; // 下一个要发送的分片序号
+        volatile boolean cut = false; // 落后太多已被放弃，取出时改为发送 RESET
+
+        RelayItem(Relay relay) {
+            super(new byte[0], true); // 不计入队列的字节数，分片占用的内存由 Relay 限制
+            this.relay = relay;
+            this.stream = relay.stream;
+        }
+    }
+
+    private static final int ACTIVE_STREAMS = 4; // 分片发送时轮流发送的大块数据数
+    // 服务器发起的流 ID 全局分配，同一个转发的分片可以原样发给所有接收者
+    private static final AtomicInteger STREAMS = new AtomicInteger();
+
+    private final int maxMessages; // 最多排队的消息数
+    private final long maxBytes; // 最多排队的字节数
+    private final Overflow policy; // 溢出策略
+    private final ArrayDeque<Item> items = new ArrayDeque<>(); // 排队中的文字和控制消息，优先取出
+    private final ArrayDeque<Item> bulkItems = new ArrayDeque<>(); // 排队中的图片等大块数据
+    private final ReentrantLock lock = new ReentrantLock(); // 保护队列的锁
+    private final Condition notEmpty = lock.newCondition(); // 有可以取出的数据或已关闭
+    private long bytes = 0; // 排队中的字节数
+    private long dropped = 0; // 因溢出丢弃的消息数
+    private boolean closed = false; // 是否已关闭
+    private int offered = 0; // 放入过的消息数，用于抽样
+    private boolean streams = false; // 接收方是否支持分片传输
+    private int turn = 0; // 轮流发送大块数据的位置
+    private Session session; // 可恢复的会话，写出的聊天消息记入其重发缓冲
+    private boolean detached = false; // 连接已断开但会话保留：不再取出数据，放入的数据留给 detach 取走
+
+    OutboundQueue() {
+        this(DEFAULT_MAX_MESSAGES, DEFAULT_MAX_BYTES, DEFAULT_POLICY);
+    }
+
+    OutboundQueue(int maxMessages, long maxBytes, Overflow policy) {
+        this.maxMessages = maxMessages;
+        this.maxBytes = maxBytes;
+        this.policy = policy;
+    }
+
+    // 接收方支持分片传输：之后超过一个分片的大块数据拆成分片发送，受每个流的窗口限制
+    void enableStreams() {
+        lock.lock();
+        try {
+            streams = true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // 之后写出的聊天消息计入会话，断线重连时据此补发
+    void track(Session session) {
+        lock.lock();
+        try {
+            this.session = session;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // 会话将由其他传输层接管：不再取出数据，把尚未写出的数据按原来的顺序分别放入 urgent 和 bulk。
+    // 之后放入的数据仍然保留，可以再调用一次取走；写了一半的大块数据整个重发，边收边转的图片无法接着转发，丢弃。
+    // 已发出过分片的流先在 urgent 中放一个 RESET，让接收方丢弃拼了一半的帧
+    void detach(List<byte[]> urgent, List<byte[]> bulk) {
+        lock.lock();
+        try {
+            detached = true;
+            for (Item item : items) {
+                urgent.add(item.data);
+            }
+            for (Item item : bulkItems) {
+                boolean started = item instanceof RelayItem ? ((RelayItem) item).next > 0 : item.sent > 0;
+                if (started) {
+                    urgent.add(Frame.of(Frame.RESET).withStream(item.stream));
+                }
+                if (item instanceof RelayItem) {
+                    dropped++;
+                    Metrics.DROPPED.increment();
+                } else {
+                    bulk.add(item.data);
+                }
+            }
+            items.clear();
+            bulkItems.clear();
+            bytes = 0;
+            notEmpty.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // 新的服务器流 ID，为正偶数
+    static int newStream() {
+        int id;
+        do {
+            id = STREAMS.addAndGet(2) & 0x7ffffffe;
+        } while (id == 0);
+        return id;
+    }
+
+    // 加入一个边收边转的图片，队列已满或已关闭时返回 null，该接收者收不到这张图片
+    RelayItem offerRelay(Relay relay) {
+        lock.lock();
+        try {
+            if (closed || !streams) {
+                return null;
+            }
+            if (!fits(0)) {
+                dropped++;
+                Metrics.DROPPED.increment();
+                return null;
+            }
+            RelayItem item = new RelayItem(relay);
+            bulkItems.addLast(item);
+            return item;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // 放入一条数据，返回 false 表示按策略应当断开该连接
+    boolean offer(byte[] data, boolean bulk) {
+        lock.lock();
+        try {
+            if (closed) {
+                return true; // 连接正在关闭，直接丢弃
+            }
+            if (!makeRoom(data.length, bulk)) {
+                if (policy == Overflow.DISCONNECT) {
+                    return false;
+                }
+                dropped++; // 新消息本身放不下，丢弃
+                Metrics.DROPPED.increment();
+                return true;
+            }
+            Item item;
+            if ((offered++ & (SAMPLE - 1)) == 0) {
+                item = new Timed(data, bulk);
+                Metrics.QUEUE_DEPTH.record(items.size() + bulkItems.size() + 1);
+            } else {
+                item = new Item(data, bulk);
+            }
+            (bulk ? bulkItems : items).addLast(item);
+            bytes += data.length;
+            notEmpty.signal();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // 按溢出策略腾出空间，返回新消息能否放入；已开始分片发送的数据不丢弃，否则接收方会收到半个流
+    private boolean makeRoom(int length, boolean bulk) {
+        if (fits(length)) {
+            return true;
+        }
+        if (policy == Overflow.DISCONNECT) {
+            return false;
+        }
+        if (policy == Overflow.DROP_IMAGES) {
+            Iterator<Item> it = bulkItems.iterator();
+            while (it.hasNext() && !fits(length)) {
+                Item item = it.next();
+                if (item.stream == 0) {
+                    it.remove();
+                    bytes -= item.data.length;
+                    dropped++;
+                    Metrics.DROPPED.increment();
+                }
+            }
+            if (bulk && !fits(length)) {
+                return false; // 队列里都是文字，不为图片丢弃文字
+            }
+        }
+        while (!fits(length)) {
+            Item oldest = items.peekFirst();
+            if (oldest == null) {
+                oldest = firstUnstarted();
+                if (oldest == null) {
+                    break;
+                }
+                bulkItems.remove(oldest);
+            } else {
+                items.removeFirst();
+            }
+            bytes -= oldest.data.length;
+            dropped++;
+            Metrics.DROPPED.increment();
+        }
+        return fits(length);
+    }
+
+    private Item firstUnstarted() {
+        for (Item item : bulkItems) {
+            if (item.stream == 0) {
+                return item;
+            }
+        }
+        return null;
+    }
+
+    private boolean fits(int length) {
+        int count = items.size() + bulkItems.size();
+        return count < maxMessages && (count == 0 || bytes + length <= maxBytes);
+    }
+
+    // 取出一条数据，暂时没有可以取出的数据时返回 null（NIO 模式）
+    byte[] poll() {
+        lock.lock();
+        try {
+            return next();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // 取出一条数据，暂时没有时等待；队列已关闭且没有可以取出的数据后返回 null（阻塞模式的写线程）
+    byte[] take() throws InterruptedException {
+        lock.lock();
+        try {
+            byte[] data;
+            while ((data = next()) == null && !closed && !detached) {
+                notEmpty.await();
+            }
+            return data;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // 文字和控制消息优先；大块数据在支持分片的连接上每次只取一个分片，几张图片轮流发送
+    private byte[] next() {
+        if (detached) {
+            return null;
+        }
+        Item item = items.pollFirst();
+        if (item != null) {
+            bytes -= item.data.length;
+            return delivered(item);
+        }
+        while ((item = nextBulk()) instanceof RelayItem) {
+            byte[] fragment = nextRelayed((RelayItem) item);
+            if (fragment != null) {
+                return fragment;
+            }
+        }
+        if (item == null) {
+            return null;
+        }
+        int payload = item.data.length - Frame.HEADER_SIZE;
+        if (!streams || item.stream == 0 && payload <= Streams.CHUNK) {
+            bulkItems.remove(item); // 一个分片放得下，整帧发送
+            bytes -= item.data.length;
+            return delivered(item);
+        }
+        if (item.stream == 0) {
+            item.stream = newStream();
+            bytes -= Frame.HEADER_SIZE;
+        }
+        int length = Math.min(Math.min(Streams.CHUNK, payload - item.sent), item.credit);
+        byte[] fragment = Frame.fragment(item.data, item.stream, item.sent, length);
+        item.sent += length;
+        item.credit -= length;
+        bytes -= length;
+        turn = (turn + 1) % ACTIVE_STREAMS; // 下一次从下一条开始找
+        if (item.sent < payload) {
+            return fragment;
+        }
+        bulkItems.remove(item);
+        delivered(item);
+        return fragment;
+    }
+
+    // 边收边转的图片的下一个分片；被放弃或上传被取消时移出队列，已发过分片的改为发送 RESET，
+    // 否则返回 null 由调用方继续查找
+    private byte[] nextRelayed(RelayItem item) {
+        byte[] fragment = item.cut ? null : item.relay.fragment(item.next);
+        if (fragment == null) {
+            bulkItems.remove(item);
+            return item.next > 0 ? Frame.of(Frame.RESET).withStream(item.stream) : null;
+        }
+        item.credit -= fragment.length - Frame.HEADER_SIZE;
+        turn = (turn + 1) % ACTIVE_STREAMS;
+        if (item.relay.isLast(item.next++)) {
+            bulkItems.remove(item);
+            delivered(item);
+        }
+        return fragment;
+    }
+
+    // 下一个可以发送的大块数据：不支持分片时按顺序整条发送，否则在前几条中轮流选择窗口未用完的一条
+    private Item nextBulk() {
+        if (!streams) {
+            return bulkItems.peekFirst();
+        }
+        int n = Math.min(bulkItems.size(), ACTIVE_STREAMS);
+        if (n == 0) {
+            return null;
+        }
+        Item[] active = new Item[n];
+        Iterator<Item> it = bulkItems.iterator();
+        for (int i = 0; i < n; i++) {
+            active[i] = it.next();
+        }
+        for (int i = 0; i < n; i++) {
+            Item item = active[(turn + i) % n];
+            if (item instanceof RelayItem) {
+                RelayItem relayed = (RelayItem) item;
+                if (relayed.cut || relayed.relay.has(relayed.next) && (relayed.credit > 0 || relayed.relay.aborted())) {
+                    return item;
+                }
+            } else if (item.credit > 0) {
+                return item;
+            }
+        }
+        return null; // 都在等待接收方归还窗口
+    }
+
+    // 有新的转发分片或转发被取消，唤醒等待的写线程
+    void wake() {
+        lock.lock();
+        try {
+            notEmpty.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // 接收方归还了一个流的窗口，返回是否有数据因此可以继续发送
+    boolean grant(int stream, int bytes) {
+        lock.lock();
+        try {
+            for (Item item : bulkItems) {
+                if (item.stream == stream) {
+                    item.credit += bytes;
+                    notEmpty.signal();
+                    return true;
+                }
+            }
+            return false; // 流已发送完毕
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // 一条数据已全部取出，记录投递指标
+    private byte[] delivered(Item item) {
+        Metrics.MESSAGES_OUT.increment();
+        if (item instanceof Timed) {
+            Metrics.DELIVERY.record(Metrics.micros(((Timed) item).enqueued));
+        }
+        if (session != null) {
+            if (item instanceof RelayItem) {
+                session.sent(((RelayItem) item).relay);
+            } else if (Session.counted(item.data)) {
+                session.sent(item.data);
+            }
+        }
+        return item.data;
+    }
+
+    // 关闭队列：不再接受新数据，已排队的数据仍会被取出
+    void close() {
+        lock.lock();
+        try {
+            closed = true;
+            notEmpty.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // 关闭队列并丢弃所有排队的数据；有会话时只停止取出，数据留给恢复会话的连接
+    void clear() {
+        lock.lock();
+        try {
+            if (session != null) {
+                detached = true;
+                notEmpty.signalAll();
+                return;
+            }
+            closed = true;
+            items.clear();
+            bulkItems.clear();
+            bytes = 0;
+            notEmpty.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // 是否没有可以立即取出的数据，大块数据都在等待窗口时也为 true
+    boolean isEmpty() {
+        lock.lock();
+        try {
+            return detached || items.isEmpty() && nextBulk() == null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // 排队中的消息数
+    int depth() {
+        lock.lock();
+        try {
+            return items.size() + bulkItems.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // 排队中的字节数
+    long queuedBytes() {
+        lock.lock();
+        try {
+            return bytes;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // 因溢出丢弃的消息数
+    long dropped() {
+        lock.lock();
+        try {
+            return dropped;
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,125 @@
+import java.io.*; // 导入用于输入输出的类
+import java.nio.ByteBuffer; // 导入字节缓冲区类
+import java.util.Base64; // 导入 Base64 编解码类
+
+// 一条发往客户端的消息
+// 每种协议的编码结果只在第一次需要时生成一次并缓存，广播时所有接收者共享同一个只读数组，
+// 因此扇出的代价只随接收者数量线性增长，不会为每个接收者重新分块或复制字符串
+class Packet {
+    private static final int LEGACY_CHUNK_SIZE = 8192; // 旧协议图片分块大小
+
+    final byte type; // Frame.TEXT 或 Frame.IMAGE
+    private final String text; // 文本内容；图片时为旧协议中 [IMG] 之前的显示前缀
+    private final String sender; // 图片发送者
+    private final ByteBuffer image; // 图片原始字节
+    final String hash; // 图片摘要，没有保存到图片存储时为 null
+    private volatile byte[] legacy; // 旧协议编码结果
+    private volatile byte[] framed; // 帧协议编码结果
+    private volatile byte[] ref; // IMAGE_REF 帧编码结果
+    private volatile byte[] deflated; // 压缩后的文本帧编码结果
+
+    private Packet(byte type, String text, String sender, ByteBuffer image, String hash) {
+        this.type = type;
+        this.text = text;
+        this.sender = sender;
+        this.image = image;
+        this.hash = hash;
+    }
+
+    // 文本消息
+    static Packet text(String str) {
+        return new Packet(Frame.TEXT, str, null, null, null);
+    }
+
+    // 图片消息，prefix 为旧协议中 [IMG] 之前的显示前缀，如 "[张三]："
+    static Packet image(String prefix, String sender, ByteBuffer image) {
+        return new Packet(Frame.IMAGE, prefix, sender, image, null);
+    }
+
+    // 已保存到图片存储的图片消息，支持去重的接收者只收到摘要
+    static Packet image(String prefix, String sender, ByteBuffer image, String hash) {
+        return new Packet(Frame.IMAGE, prefix, sender, image, hash);
+    }
+
+    // 只含发送者和摘要的 IMAGE_REF 帧，接收者本地没有缓存时再取回图片
+    byte[] encodeRef() {
+        byte[] bytes = ref;
+        if (bytes == null) {
+            bytes = Frame.of(Frame.IMAGE_REF, sender, hash).encode();
+            ref = bytes; // 重复编码的结果相同，不需要加锁
+        }
+        return bytes;
+    }
+
+    // 取得指定协议的编码结果，deflate 表示接收者支持压缩；图片本身已经压缩过，只有文本会被压缩
+    byte[] encode(boolean framedWire, boolean deflate) throws IOException {
+        if (!framedWire || !deflate || type != Frame.TEXT) {
+            return encode(framedWire);
+        }
+        byte[] bytes = deflated;
+        if (bytes == null) {
+            synchronized (this) {
+                if (deflated == null) {
+                    deflated = Frame.of(Frame.TEXT, text).deflated().encode(); // 整条广播只压缩一次
+                }
+                bytes = deflated;
+            }
+        }
+        return bytes;
+    }
+
+    // 取得指定协议的编码结果，返回的数组为共享数据，调用方不能修改
+    byte[] encode(boolean framedWire) throws IOException {
+        if (framedWire) {
+            byte[] bytes = framed;
+            if (bytes == null) {
+                synchronized (this) {
+                    if (framed == null) {
+                        framed = type == Frame.IMAGE
+                                ? Frame.encode(Frame.IMAGE, (byte) 0, image, sender)
+                                : Frame.of(Frame.TEXT, text).encode();
+                    }
+                    bytes = framed;
+                }
+            }
+            return bytes;
+        }
+        byte[] bytes = legacy;
+        if (bytes == null) {
+            synchronized (this) {
+                if (legacy == null) {
+                    legacy = type == Frame.IMAGE ? encodeLegacyImage() : Frame.encodeUTF(text);
+                }
+                bytes = legacy;
+            }
+        }
+        return bytes;
+    }
+
+    // 旧协议的图片：Base64 编码后按 8KB 分块，[IMG_START]块数 + 各块 + [IMG_END] 连成一段，一次写出
+    private byte[] encodeLegacyImage() throws IOException {
+        String header = text + "[IMG]" + sender + "|"; // [显示名称]：[IMG]username|
+        byte[] imageData = Base64.getEncoder().encode(image.duplicate()).array(); // base64数据（ASCII 字节）
+
+        // 计算分块：第一块带头部，数据少一些，总块数按实际切分结果计算
+        int firstChunkDataSize = Math.min(LEGACY_CHUNK_SIZE - header.length(), imageData.length);
+        int totalChunks = 1 + (imageData.length - firstChunkDataSize + LEGACY_CHUNK_SIZE - 1) / LEGACY_CHUNK_SIZE;
+        ByteArrayOutputStream out = new ByteArrayOutputStream(imageData.length + totalChunks * 2 + 64);
+
+        // 开始标记和总块数
+        out.write(Frame.encodeUTF("[IMG_START]" + totalChunks));
+
+        // 第一块（包含头部）
+        out.write(Frame.encodeUTF(header, imageData, 0, firstChunkDataSize));
+
+        // 剩余的数据块
+        for (int i = firstChunkDataSize; i < imageData.length; i += LEGACY_CHUNK_SIZE) {
+            int end = Math.min(i + LEGACY_CHUNK_SIZE, imageData.length);
+            out.write(Frame.encodeUTF("", imageData, i, end - i));
+        }
+
+        // 结束标记
+        out.write(Frame.encodeUTF("[IMG_END]"));
+        return out.toByteArray();
+    }
+}
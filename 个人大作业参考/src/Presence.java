@@ -0,0 +1,56 @@
+import java.util.Set; // 导入集合接口
+import java.util.concurrent.ConcurrentHashMap; // 导入并发哈希表
+import java.util.concurrent.atomic.AtomicInteger; // 导入原子整数类
+
+// 在线用户登记表
+// 用户名到连接的并发索引使私聊查找为常数时间；成员集合基于 ConcurrentHashMap，
+// 广播时无需加锁即可遍历，登录和下线在任意多线程同时进行时也能保持一致；在线人数用原子计数器维护。
+class Presence<C> {
+    private final ConcurrentHashMap<String, C> byName = new ConcurrentHashMap<>(); // 用户名 → 连接
+    private final Set<C> members = ConcurrentHashMap.newKeySet(); // 所有在线连接
+    private final AtomicInteger online = new AtomicInteger(); // 在线连接数
+
+    // 登记一个在线连接，同名用户重复登录时按用户名查找得到最新的连接；返回登记后的在线人数
+    int add(String name, C conn) {
+        if (!members.add(conn)) {
+            return online.get();
+        }
+        byName.put(name, conn);
+        return online.incrementAndGet();
+    }
+
+    // 移除一个在线连接，返回是否确实移除（并发重复移除时只有一次返回 true）
+    boolean remove(String name, C conn) {
+        if (!members.remove(conn)) {
+            return false;
+        }
+        byName.remove(name, conn); // 只在索引仍指向该连接时移除
+        online.decrementAndGet();
+        return true;
+    }
+
+    // 恢复会话时由新连接接替旧连接，在线人数不变；旧连接已不在线时返回 false
+    boolean replace(String name, C old, C conn) {
+        if (!members.remove(old)) {
+            return false;
+        }
+        members.add(conn);
+        byName.replace(name, old, conn); // 同名用户已在别处登录时索引仍指向最新的连接
+        return true;
+    }
+
+    // 按用户名查找在线连接，不在线时返回 null
+    C find(String name) {
+        return byName.get(name);
+    }
+
+    // 所有在线连接，遍历时不加锁，遍历期间的登录和下线可能可见也可能不可见
+    Iterable<C> members() {
+        return members;
+    }
+
+    // 当前在线人数
+    int online() {
+        return online.get();
+    }
+}
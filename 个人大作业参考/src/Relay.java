@@ -0,0 +1,159 @@
+import java.util.ArrayList; // 导入数组列表类
+import java.util.List; // 导入列表接口
+import java.util.concurrent.locks.ReentrantLock; // 导入可重入锁类
+
+// 边收边转的一张图片（分片上传时使用）
+// 服务器每收到上传者的一个分片，就编码成发往接收者的分片保存在这里，并唤醒各接收者的发送队列；
+// 各接收者的 OutboundQueue.RelayItem 记录自己发到了第几片，所有接收者共用同一份分片。
+// 所有接收者都发过的分片立即释放，内存中最多保留 BUFFER 字节：落后超过 BUFFER 的接收者被放弃，
+// 已收到的部分用 RESET 作废，由上传者在收完后把整张图片发给它们（见 cut）。
+class Relay {
+    static final int BUFFER = Integer.getInteger("chat.relay.buffer", 1024 * 1024); // 每个转发保留的分片字节数上限
+
+    final int stream = OutboundQueue.newStream(); // 发给接收者使用的流 ID
+    private final ReentrantLock lock = new ReentrantLock(); // 保护分片列表的锁
+    private final ArrayList<byte[]> fragments = new ArrayList<>(); // 已编码的分片，已释放的为 null
+    private int released = 0; // 序号小于它的分片已释放
+    private long buffered = 0; // 尚未释放的分片字节数
+    private boolean complete = false; // 最后一片已收到
+    private boolean aborted = false; // 上传被取消
+    private final List<OutboundQueue.RelayItem> items = new ArrayList<>(); // 各接收者的进度
+    private final List<ChatServer.HandleClient> targets = new ArrayList<>(); // 各接收者，与 items 一一对应
+    volatile String sender; // 收完后设置：客户端填写的发送者
+    volatile String hash; // 收完后设置：图片摘要，没有图片存储时为 null
+
+    // 收完了，记下发送者和摘要，恢复会话时用来补发这张图片
+    void stored(String sender, String hash) {
+        this.sender = sender;
+        this.hash = hash;
+    }
+
+    // 加入一个接收者，只在收到第一个分片之前由上传者的读取线程调用；返回 false 表示其发送队列放不下
+    boolean add(ChatServer.HandleClient target) {
+        OutboundQueue.RelayItem item = target.transport.queue().offerRelay(this);
+        if (item == null) {
+            return false;
+        }
+        items.add(item);
+        targets.add(target);
+        return true;
+    }
+
+    // 因落后太多被放弃的接收者，收完最后一片后调用
+    List<ChatServer.HandleClient> cut() {
+        List<ChatServer.HandleClient> cut = new ArrayList<>();
+        lock.lock();
+        try {
+            for (int i = 0; i < items.size(); i++) {
+                if (items.get(i).cut) {
+                    cut.add(targets.get(i));
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+        return cut;
+    }
+
+    // 收到一个分片，last 表示这是最后一片
+    void append(byte[] fragment, boolean last) {
+        lock.lock();
+        try {
+            fragments.add(fragment);
+            buffered += fragment.length;
+            complete = last;
+            release();
+        } finally {
+            lock.unlock();
+        }
+        wake();
+    }
+
+    // 上传者取消了上传或断开了连接，已开始接收的接收者改收 RESET
+    void abort() {
+        lock.lock();
+        try {
+            aborted = true;
+            fragments.clear();
+            buffered = 0;
+        } finally {
+            lock.unlock();
+        }
+        wake();
+    }
+
+    // 释放所有接收者都已发出的分片，并放弃落后太多的接收者（调用时持有锁）
+    private void release() {
+        int end = fragments.size();
+        int min = end;
+        for (OutboundQueue.RelayItem item : items) {
+            if (item.cut) {
+                continue;
+            }
+            int next = item.next;
+            if (behind(next) > BUFFER) {
+                item.cut = true; // 由其发送队列移除并发送 RESET
+            } else {
+                min = Math.min(min, next);
+            }
+        }
+        for (; released < min; released++) {
+            buffered -= fragments.get(released).length;
+            fragments.set(released, null);
+        }
+    }
+
+    // 从序号 next 开始尚未发出的字节数（调用时持有锁）
+    private long behind(int next) {
+        long bytes = 0;
+        for (int i = Math.max(next, released); i < fragments.size(); i++) {
+            bytes += fragments.get(i).length;
+        }
+        return bytes;
+    }
+
+    private void wake() {
+        for (ChatServer.HandleClient target : targets) {
+            target.transport.wake();
+        }
+    }
+
+    // 序号为 i 的分片，已释放或上传已取消时返回 null
+    byte[] fragment(int i) {
+        lock.lock();
+        try {
+            return aborted || i < released || i >= fragments.size() ? null : fragments.get(i);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // 序号为 i 的分片是否已收到；上传已取消时返回 true，让发送队列尽快移除该接收者
+    boolean has(int i) {
+        lock.lock();
+        try {
+            return aborted || i < fragments.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    boolean aborted() {
+        lock.lock();
+        try {
+            return aborted;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // 序号为 i 的分片是否是最后一片
+    boolean isLast(int i) {
+        lock.lock();
+        try {
+            return complete && i == fragments.size() - 1;
+        } finally {
+            lock.unlock();
+        }
+    }
+}
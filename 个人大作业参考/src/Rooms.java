@@ -0,0 +1,83 @@
+import java.util.Collections; // 导入集合工具类
+import java.util.Map; // 导入地图接口
+import java.util.Set; // 导入集合接口
+import java.util.TreeMap; // 导入有序哈希表
+import java.util.concurrent.ConcurrentHashMap; // 导入并发哈希表
+
+// 房间的订阅索引
+// 每个房间有自己的成员集合，房间内的消息只发给该房间的成员，开销与房间人数成正比，与在线总人数无关。
+// 成员集合基于 ConcurrentHashMap，发送时无锁遍历；加入和离开用 compute 在单个房间上原子完成，
+// 最后一个成员离开时删除房间，不会丢掉同时加入的成员。不同房间之间互不影响，没有全局锁。
+class Rooms<C> {
+    static final String LOBBY = "大厅"; // 登录后自动加入的房间，没有成员时也不删除
+    static final int MAX_NAME_LENGTH = 20; // 房间名的最大长度
+
+    private final ConcurrentHashMap<String, Set<C>> rooms = new ConcurrentHashMap<>(); // 房间名 → 成员
+
+    Rooms() {
+        rooms.put(LOBBY, ConcurrentHashMap.newKeySet());
+    }
+
+    // 房间名不能为空，不能含空白和协议中用作分隔的字符
+    static boolean validName(String name) {
+        if (name.isEmpty() || name.length() > MAX_NAME_LENGTH) {
+            return false;
+        }
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if (Character.isWhitespace(c) || "：:,|#@[]".indexOf(c) >= 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // 加入房间，房间不存在时创建；返回是否为新加入
+    boolean join(String room, C conn) {
+        boolean[] added = new boolean[1];
+        rooms.compute(room, (name, members) -> {
+            if (members == null) {
+                members = ConcurrentHashMap.newKeySet();
+            }
+            added[0] = members.add(conn);
+            return members;
+        });
+        return added[0];
+    }
+
+    // 离开房间，最后一个成员离开时删除房间；返回是否确实离开
+    boolean leave(String room, C conn) {
+        boolean[] removed = new boolean[1];
+        rooms.computeIfPresent(room, (name, members) -> {
+            removed[0] = members.remove(conn);
+            return members.isEmpty() && !name.equals(LOBBY) ? null : members;
+        });
+        return removed[0];
+    }
+
+    // 房间的所有成员，遍历时不加锁；房间不存在时为空
+    Iterable<C> members(String room) {
+        Set<C> members = rooms.get(room);
+        return members == null ? Collections.emptySet() : members;
+    }
+
+    // 房间人数，房间不存在时为 0
+    int size(String room) {
+        Set<C> members = rooms.get(room);
+        return members == null ? 0 : members.size();
+    }
+
+    // 当前的房间数
+    int count() {
+        return rooms.size();
+    }
+
+    // 各房间的人数，按房间名排序
+    Map<String, Integer> sizes() {
+        Map<String, Integer> sizes = new TreeMap<>();
+        for (Map.Entry<String, Set<C>> e : rooms.entrySet()) {
+            sizes.put(e.getKey(), e.getValue().size());
+        }
+        return sizes;
+    }
+}
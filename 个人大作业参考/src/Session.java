@@ -0,0 +1,105 @@
+import java.security.SecureRandom; // 导入安全随机数类
+import java.util.ArrayDeque; // 导入双端队列类
+import java.util.ArrayList; // 导入数组列表类
+import java.util.Iterator; // 导入迭代器接口
+import java.util.List; // 导入列表接口
+import java.util.concurrent.ScheduledFuture; // 导入定时任务接口
+import java.util.concurrent.locks.ReentrantLock; // 导入可重入锁类
+
+// 可恢复的会话（CAP_RESUME）
+// 登录成功后服务器用 SESSION 帧发给客户端一个随机令牌。服务器发给客户端的聊天消息（TEXT、IMAGE、IMAGE_REF 帧）
+// 双方各自计数：服务器在消息写入套接字时计数并留在重发缓冲中，客户端每收到一条计数一次，
+// 每收到 ACK_EVERY 条用 ACK 帧告知服务器，服务器丢弃已确认的消息。因此被发送队列按溢出策略丢弃的消息两边都不计数。
+// 连接意外断开后会话保留 GRACE 毫秒，期间用户仍然在线，发给他的消息照常排队；
+// 客户端在此期间重新连接，用 RESUME 帧带上令牌和已收到的条数，一次往返即可恢复：
+// 服务器只补发缺少的消息，不再校验密码、广播上线和下线通知或回放历史消息，大量客户端同时重连时开销很小。
+// 重发缓冲最多 BUFFER 字节，缺少的消息已被挤出时恢复失败，客户端改为重新登录。
+class Session {
+    static final long GRACE = Long.getLong("chat.resume.grace", 60_000); // 断线后保留会话的毫秒数
+    static final long BUFFER = Long.getLong("chat.resume.buffer", 1024 * 1024); // 重发缓冲的字节数上限
+    static final int ACK_EVERY = 16; // 客户端每收到多少条消息确认一次
+
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    final String token = newToken(); // 会话令牌
+    private final ReentrantLock lock = new ReentrantLock(); // 保护重发缓冲的锁
+    // 已写出但未确认的消息：已编码的帧，或边收边转的图片（Relay，恢复时改发摘要或整张图片）
+    private final ArrayDeque<Object> unacked = new ArrayDeque<>();
+    private long sent = 0; // 已写出的消息数
+    private long bytes = 0; // 重发缓冲中的字节数
+    ScheduledFuture<?> expiry; // 断线后到期结束会话的任务，由 ChatServer 在会话锁内读写
+
+    private static String newToken() {
+        byte[] bytes = new byte[16];
+        RANDOM.nextBytes(bytes);
+        StringBuilder sb = new StringBuilder(32);
+        for (byte b : bytes) {
+            sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return sb.toString();
+    }
+
+    // 该类型的帧是否计数，服务器和客户端用同一规则
+    static boolean counted(byte type) {
+        return type == Frame.TEXT || type == Frame.IMAGE || type == Frame.IMAGE_REF;
+    }
+
+    // 已编码的数据是否是计数的帧
+    static boolean counted(byte[] data) {
+        return data.length >= Frame.HEADER_SIZE && data[0] == Frame.VERSION && counted(data[1]);
+    }
+
+    // 一条消息已写入套接字（由发送队列在持有其锁时调用）
+    void sent(Object message) {
+        lock.lock();
+        try {
+            sent++;
+            unacked.addLast(message);
+            bytes += size(message);
+            while (bytes > BUFFER && unacked.size() > 1) {
+                bytes -= size(unacked.removeFirst()); // 挤出最早的，之后从更早的位置恢复会失败
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // 客户端确认已收到 received 条
+    void ack(long received) {
+        lock.lock();
+        try {
+            long first = sent - unacked.size() + 1; // 缓冲中第一条的序号
+            Iterator<Object> it = unacked.iterator();
+            for (; first <= received && it.hasNext(); first++) {
+                bytes -= size(it.next());
+                it.remove();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // 客户端已收到 received 条后重新连接，返回需要补发的消息并从 received 开始重新计数；
+    // 缺少的消息已不在缓冲中时返回 null
+    List<Object> resume(long received) {
+        lock.lock();
+        try {
+            long missing = sent - received;
+            if (missing < 0 || missing > unacked.size()) {
+                return null;
+            }
+            List<Object> messages = new ArrayList<>(unacked);
+            messages = messages.subList(messages.size() - (int) missing, messages.size());
+            sent = received;
+            unacked.clear();
+            bytes = 0;
+            return messages;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static long size(Object message) {
+        return message instanceof byte[] ? ((byte[]) message).length : 0;
+    }
+}
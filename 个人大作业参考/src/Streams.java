@@ -0,0 +1,135 @@
+import java.io.*; // 导入用于输入输出的类
+import java.util.HashMap; // 导入哈希表类
+import java.util.Map; // 导入地图接口
+import java.util.concurrent.locks.Condition; // 导入条件变量接口
+import java.util.concurrent.locks.ReentrantLock; // 导入可重入锁类
+
+// 分片传输（CAP_STREAMS）的收发两端
+// 发送方把大帧拆成不超过 CHUNK 字节的分片，每个流最多有 WINDOW 字节已发出但未被接收方处理；
+// 接收方每处理完一个分片就用 WINDOW 帧归还相应的字节数。分片之间可以插入其他流和流 0 上的帧，
+// 一张大图片只占用它自己的窗口，文字消息最多等一个分片。服务器一侧的发送在 OutboundQueue 中完成。
+class Streams {
+    static final int CHUNK = Integer.getInteger("chat.stream.chunk", 32 * 1024); // 分片负载的最大字节数
+    static final int WINDOW = Integer.getInteger("chat.stream.window", 256 * 1024); // 每个流的初始窗口
+    static final int MAX_OPEN = 8; // 一个连接上同时在接收的流数上限
+
+    // 接收方：把各流的分片拼回完整的帧，只在读取该连接的线程上使用
+    static final class Assembler {
+        private final Map<Integer, Frame> first = new HashMap<>(); // 流 ID → 第一个分片
+        private final Map<Integer, ByteArrayOutputStream> parts = new HashMap<>(); // 流 ID → 已收到的负载
+        private long buffered = 0; // 所有流已缓存的字节数
+
+        // 收到一个流上的分片，流的最后一片到达时返回拼好的帧（流 ID 为 0），否则返回 null
+        Frame accept(Frame frame) throws IOException {
+            int id = frame.streamId;
+            ByteArrayOutputStream data = parts.get(id);
+            if (frame.type != Frame.DATA) {
+                if (data != null) {
+                    throw new IOException("流 " + id + " 重复开始");
+                }
+                if (!frame.hasFlag(Frame.FLAG_MORE)) {
+                    return new Frame(frame.type, frame.flags, 0, frame.payload); // 只有一片
+                }
+                if (parts.size() >= MAX_OPEN) {
+                    throw new IOException("同时传输的流过多");
+                }
+                data = new ByteArrayOutputStream(Math.min(frame.payload.length * 4, Frame.MAX_PAYLOAD));
+                first.put(id, frame);
+                parts.put(id, data);
+            } else if (data == null) {
+                return null; // 已被 RESET 的流的剩余分片
+            }
+            buffered += frame.payload.length;
+            if (data.size() + frame.payload.length > Frame.MAX_PAYLOAD || buffered > Frame.MAX_PAYLOAD) {
+                throw new IOException("流 " + id + " 超过单帧负载上限");
+            }
+            data.write(frame.payload);
+            if (frame.hasFlag(Frame.FLAG_MORE)) {
+                return null;
+            }
+            Frame head = first.remove(id);
+            parts.remove(id);
+            buffered -= data.size();
+            return new Frame(head.type, (byte) (head.flags & ~Frame.FLAG_MORE), 0, data.toByteArray());
+        }
+
+        // 对方放弃了该流，丢弃已收到的分片
+        void reset(int id) {
+            ByteArrayOutputStream data = parts.remove(id);
+            first.remove(id);
+            if (data != null) {
+                buffered -= data.size();
+            }
+        }
+    }
+
+    // 发送方：各流剩余的窗口，发送线程在窗口用完时等待接收方归还
+    static final class Window {
+        private final ReentrantLock lock = new ReentrantLock();
+        private final Condition granted = lock.newCondition(); // 有流得到了新的窗口或连接已断开
+        private final Map<Integer, Integer> credits = new HashMap<>(); // 流 ID → 剩余窗口
+        private boolean closed = false; // 连接已断开
+
+        void open(int id) {
+            lock.lock();
+            try {
+                credits.put(id, WINDOW);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        // 取得最多 max 字节的窗口，窗口为 0 时等待；返回实际可以发送的字节数
+        int acquire(int id, int max) throws IOException, InterruptedException {
+            lock.lock();
+            try {
+                int credit;
+                while ((credit = credits.getOrDefault(id, 0)) == 0 && !closed) {
+                    granted.await();
+                }
+                if (closed) {
+                    throw new IOException("连接已断开");
+                }
+                int n = Math.min(credit, max);
+                credits.put(id, credit - n);
+                return n;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        // 接收方归还了窗口，已结束的流忽略
+        void grant(int id, int bytes) {
+            lock.lock();
+            try {
+                Integer credit = credits.get(id);
+                if (credit != null) {
+                    credits.put(id, credit + bytes);
+                    granted.signalAll();
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void remove(int id) {
+            lock.lock();
+            try {
+                credits.remove(id);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        // 连接断开，唤醒所有等待窗口的发送线程
+        void close() {
+            lock.lock();
+            try {
+                closed = true;
+                granted.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+}
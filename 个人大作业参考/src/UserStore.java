@@ -0,0 +1,211 @@
+import java.io.*; // 导入用于输入输出的类
+import java.nio.channels.Channels; // 导入通道与流的转换工具
+import java.nio.channels.FileChannel; // 导入文件通道类
+import java.nio.charset.StandardCharsets; // 导入字符集常量
+import java.nio.file.*; // 导入文件路径相关类
+import java.util.Map; // 导入地图接口
+import java.util.concurrent.ConcurrentHashMap; // 导入并发哈希表
+import java.util.concurrent.ConcurrentLinkedQueue; // 导入无锁并发队列
+import java.util.concurrent.locks.LockSupport; // 导入线程挂起与唤醒工具
+import java.util.stream.IntStream; // 导入整数流类
+
+// 用户账号存储
+// 内存中是一个并发哈希表，登录校验和注册在任意多线程下都不需要加锁；
+// 磁盘上是一份快照 users.txt 加一个只追加的注册日志 users.log，每行都是 "用户名,密码"。
+// 注册只写入哈希表并把一行放进队列，由写线程批量追加到日志并 fsync；
+// 日志累积到一定行数后，写线程把整个哈希表写成新的快照并清空日志。
+// 启动时先读快照再重放日志。
+class UserStore {
+    static final int COMPACT_EVERY = Integer.getInteger("chat.users.compact", 10000); // 日志达到多少行时写快照
+    private static final int LOAD_SPLIT_BYTES = 1024 * 1024; // 并行加载时每段的最小字节数
+
+    private final Path snapshot; // 快照文件
+    private final Path log; // 注册日志
+    private final Map<String, String> users; // 用户名 → 密码
+    private final ConcurrentLinkedQueue<String> pending = new ConcurrentLinkedQueue<>(); // 等待写入日志的行
+    private Thread writer; // 写线程
+    private volatile boolean running = true; // 是否正在运行
+    private Writer logOut; // 日志输出流（仅写线程访问）
+    private FileChannel logChannel; // 日志文件通道，用于 fsync 和清空
+    private int logLines = 0; // 日志中的行数（仅写线程访问）
+
+    UserStore(String snapshotFile, String logFile) throws IOException {
+        this.snapshot = Paths.get(snapshotFile);
+        this.log = Paths.get(logFile);
+        // 按快照大小预估账号数，避免加载过程中反复扩容
+        long size = Files.exists(snapshot) ? Files.size(snapshot) : 0;
+        this.users = new ConcurrentHashMap<>((int) Math.min(Integer.MAX_VALUE / 2, size / 16 + 16));
+        load(snapshot);
+        logLines = load(log);
+        start();
+    }
+
+    // 读取一个 "用户名,密码" 文件到哈希表，返回有效行数，文件不存在时返回 0
+    // 整个文件一次读入后按换行切成若干段，各段在多个核上并行解析，直接在字节上查找分隔符
+    private int load(Path file) throws IOException {
+        if (!Files.exists(file)) {
+            return 0;
+        }
+        byte[] data = Files.readAllBytes(file);
+        int parts = data.length < LOAD_SPLIT_BYTES ? 1
+                : Math.min(Runtime.getRuntime().availableProcessors() * 4, data.length / LOAD_SPLIT_BYTES);
+        int[] bounds = new int[parts + 1];
+        bounds[parts] = data.length;
+        for (int i = 1; i < parts; i++) {
+            int pos = Math.max(bounds[i - 1], (int) ((long) data.length * i / parts));
+            while (pos < data.length && data[pos - 1] != '\n') {
+                pos++; // 分段边界对齐到行首
+            }
+            bounds[i] = pos;
+        }
+        return IntStream.range(0, parts).parallel()
+                .map(i -> loadRange(data, bounds[i], bounds[i + 1]))
+                .sum();
+    }
+
+    // 解析 data[from, to) 中的各行
+    private int loadRange(byte[] data, int from, int to) {
+        int count = 0;
+        int start = from;
+        while (start < to) {
+            int end = start;
+            int comma = -1;
+            int commas = 0;
+            while (end < to && data[end] != '\n') {
+                if (data[end] == ',') {
+                    comma = end;
+                    commas++;
+                }
+                end++;
+            }
+            int lineEnd = end > start && data[end - 1] == '\r' ? end - 1 : end; // 兼容 Windows 换行
+            // 只接受恰好一个逗号且两边都不为空的行
+            if (commas == 1 && comma > start && comma < lineEnd - 1) {
+                users.put(new String(data, start, comma - start, StandardCharsets.UTF_8),
+                        new String(data, comma + 1, lineEnd - comma - 1, StandardCharsets.UTF_8));
+                count++;
+            }
+            start = end + 1;
+        }
+        return count;
+    }
+
+    private void start() throws IOException {
+        logChannel = FileChannel.open(log, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.APPEND);
+        logOut = new BufferedWriter(Channels.newWriter(logChannel, StandardCharsets.UTF_8), 64 * 1024);
+        writer = new Thread(this::writeLoop, "user-store-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    // 用户名和密码能否写入用户文件：文件每行为“用户名,密码”，含逗号或换行的账号会改写其他账号，字段为空的账号在重新加载时丢失
+    static boolean valid(String username, String password) {
+        return !username.isEmpty() && !password.isEmpty() && plain(username) && plain(password);
+    }
+
+    private static boolean plain(String s) {
+        return s.indexOf(',') < 0 && s.indexOf('\r') < 0 && s.indexOf('\n') < 0;
+    }
+
+    // 注册新用户，用户名不合法或已存在时返回 false；不等待磁盘写入
+    boolean register(String username, String password) {
+        if (!valid(username, password) || users.putIfAbsent(username, password) != null) {
+            return false;
+        }
+        pending.add(username + "," + password + "\n");
+        LockSupport.unpark(writer);
+        return true;
+    }
+
+    // 校验用户名和密码
+    boolean check(String username, String password) {
+        String stored = users.get(username);
+        return stored != null && stored.equals(password);
+    }
+
+    boolean exists(String username) {
+        return users.containsKey(username);
+    }
+
+    // 所有用户名，遍历时不加锁
+    Iterable<String> names() {
+        return users.keySet();
+    }
+
+    int size() {
+        return users.size();
+    }
+
+    // 停止写线程，写完排队的注册并写一份快照
+    void close() {
+        running = false;
+        LockSupport.unpark(writer);
+        try {
+            writer.join(10000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // 写线程：批量追加注册日志，每批 fsync 一次；日志过长时写快照
+    private void writeLoop() {
+        try {
+            if (logLines > 0) {
+                compact(); // 上次运行留下的日志合并进快照
+            }
+            while (running || !pending.isEmpty()) {
+                String line = pending.poll();
+                if (line == null) {
+                    LockSupport.park(this);
+                    continue;
+                }
+                do {
+                    logOut.write(line);
+                    logLines++;
+                } while ((line = pending.poll()) != null);
+                logOut.flush();
+                logChannel.force(false);
+                if (logLines >= COMPACT_EVERY) {
+                    compact();
+                }
+            }
+            compact();
+        } catch (IOException e) {
+            System.out.println("写入用户文件失败：" + e.getMessage());
+        } finally {
+            try {
+                logOut.close();
+            } catch (IOException e) {
+                e.printStackTrace(); // 打印异常信息
+            }
+        }
+    }
+
+    // 把哈希表写成新的快照并清空日志
+    // 写快照前日志里的每一行都已在哈希表中，因此都会出现在快照里；写快照期间新注册的用户
+    // 仍在队列中，清空日志后才会写入，不会丢失
+    private void compact() throws IOException {
+        if (logLines == 0) {
+            return;
+        }
+        Path tmp = snapshot.resolveSibling(snapshot.getFileName() + ".tmp");
+        try (FileChannel ch = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+                Writer out = new BufferedWriter(Channels.newWriter(ch, StandardCharsets.UTF_8), 256 * 1024)) {
+            for (Map.Entry<String, String> e : users.entrySet()) {
+                out.write(e.getKey());
+                out.write(',');
+                out.write(e.getValue());
+                out.write('\n');
+            }
+            out.flush();
+            ch.force(true);
+        }
+        Files.move(tmp, snapshot, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        logOut.flush();
+        logChannel.truncate(0);
+        logChannel.force(true);
+        logLines = 0;
+    }
+}